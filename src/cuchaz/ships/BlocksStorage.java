@@ -122,6 +122,11 @@ public class BlocksStorage
 		return m_blocks.blockSet();
 	}
 	
+	public boolean hasBlock( Coords coords )
+	{
+		return m_blocks.containsKey( coords );
+	}
+	
 	public BlockStorage getBlock( Coords coords )
 	{
 		BlockStorage storage = m_blocks.get( coords );
@@ -137,9 +142,69 @@ public class BlocksStorage
 		m_blocks.put( coords, val );
 	}
 	
+	public boolean addBlock( Coords coords, BlockStorage val )
+	{
+		// returns true if the geometry and displacement could be patched in place
+		coords = new Coords( coords.x, coords.y, coords.z );
+		m_blocks.put( coords, val );
+		if( m_geometry != null )
+		{
+			m_geometry.addBlock( coords );
+		}
+		return updateDisplacement( coords, null, Block.blocksList[val.id] );
+	}
+	
+	public boolean removeBlock( Coords coords )
+	{
+		BlockStorage val = m_blocks.remove( coords );
+		if( val == null )
+		{
+			return true;
+		}
+		if( m_geometry != null )
+		{
+			m_geometry.removeBlock( coords );
+		}
+		return updateDisplacement( coords, Block.blocksList[val.id], null );
+	}
+	
+	public boolean onBlockChanged( Coords coords, int oldBlockId )
+	{
+		// the block is still there, but it might not be watertight anymore
+		return updateDisplacement( coords, Block.blocksList[oldBlockId], Block.blocksList[getBlock( coords ).id] );
+	}
+	
 	public BoundingBoxInt getBoundingBox( )
 	{
-		return getGeometry().getEnvelopes().getBoundingBox();
+		return getGeometry().getBoundingBox();
+	}
+	
+	private boolean updateDisplacement( Coords coords, Block oldBlock, Block newBlock )
+	{
+		if( m_displacement == null )
+		{
+			// nothing to update, the displacement will be built from scratch when someone asks
+			return true;
+		}
+		
+		boolean wasWatertight = oldBlock != null && BlockProperties.isWatertight( oldBlock );
+		boolean isWatertight = newBlock != null && BlockProperties.isWatertight( newBlock );
+		boolean isPatched = true;
+		if( !wasWatertight && isWatertight )
+		{
+			isPatched = m_displacement.tryAddBlock( coords );
+		}
+		else if( wasWatertight && !isWatertight )
+		{
+			isPatched = m_displacement.tryRemoveBlock( coords );
+		}
+		
+		if( !isPatched )
+		{
+			// the edit changed the box or split/joined the void around the block, so rebuild the whole thing
+			m_displacement = null;
+		}
+		return isPatched;
 	}
 	
 	public ShipType getShipType( )
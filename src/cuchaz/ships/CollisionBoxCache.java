@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.minecraft.block.Block;
+import net.minecraft.util.AxisAlignedBB;
+import cuchaz.modsShared.blocks.Coords;
+
+public class CollisionBoxCache
+{
+	// NOTE: the boxes for each block are stored as a flat array of extents, six doubles per box
+	// like ShipWorld, this cache assumes the client/server are single-threaded
+	
+	private static final double[] NoBoxes = new double[0];
+	
+	private ShipWorld m_world;
+	private Map<Coords,double[]> m_boxes;
+	private Coords m_lookupCoords;
+	private List<AxisAlignedBB> m_blockBoxes;
+	private AxisAlignedBB m_blockQueryBox;
+	
+	public CollisionBoxCache( ShipWorld world )
+	{
+		m_world = world;
+		m_boxes = new HashMap<Coords,double[]>();
+		m_lookupCoords = new Coords( 0, 0, 0 );
+		m_blockBoxes = new ArrayList<AxisAlignedBB>();
+		m_blockQueryBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+	}
+	
+	public double[] getBoxes( int x, int y, int z )
+	{
+		m_lookupCoords.set( x, y, z );
+		double[] boxes = m_boxes.get( m_lookupCoords );
+		if( boxes == null )
+		{
+			boxes = computeBoxes( x, y, z );
+			m_boxes.put( new Coords( x, y, z ), boxes );
+		}
+		return boxes;
+	}
+	
+	public void getBoxes( List<AxisAlignedBB> out, int x, int y, int z, AxisAlignedBB box )
+	{
+		// this matches Block.addCollisionBoxesToList()
+		double[] boxes = getBoxes( x, y, z );
+		for( int i=0; i<boxes.length; i+=6 )
+		{
+			if( intersects( boxes, i, box ) )
+			{
+				out.add( AxisAlignedBB.getAABBPool().getAABB(
+					boxes[i], boxes[i + 1], boxes[i + 2],
+					boxes[i + 3], boxes[i + 4], boxes[i + 5]
+				) );
+			}
+		}
+	}
+	
+	public void getBoxes( CollisionBoxList out, int x, int y, int z, AxisAlignedBB box )
+	{
+		double[] boxes = getBoxes( x, y, z );
+		for( int i=0; i<boxes.length; i+=6 )
+		{
+			if( intersects( boxes, i, box ) )
+			{
+				out.add( x, y, z, boxes, i );
+			}
+		}
+	}
+	
+	public void invalidate( Coords coords )
+	{
+		// some collision boxes depend on the neighboring blocks (e.g. stairs, fences), so invalidate those too
+		for( int dx=-1; dx<=1; dx++ )
+		{
+			for( int dy=-1; dy<=1; dy++ )
+			{
+				for( int dz=-1; dz<=1; dz++ )
+				{
+					m_lookupCoords.set( coords.x + dx, coords.y + dy, coords.z + dz );
+					m_boxes.remove( m_lookupCoords );
+				}
+			}
+		}
+	}
+	
+	protected double[] computeBoxes( int x, int y, int z )
+	{
+		Block block = Block.blocksList[m_world.getBlockId( x, y, z )];
+		if( block == null )
+		{
+			return NoBoxes;
+		}
+		
+		// NOTE: some collision boxes stick out of their blocks (e.g. fences), so query the neighbors too
+		m_blockQueryBox.setBounds( x - 1, y - 1, z - 1, x + 2, y + 2, z + 2 );
+		m_blockBoxes.clear();
+		block.addCollisionBoxesToList( m_world, x, y, z, m_blockQueryBox, m_blockBoxes, null );
+		if( m_blockBoxes.isEmpty() )
+		{
+			return NoBoxes;
+		}
+		
+		double[] boxes = new double[m_blockBoxes.size()*6];
+		for( int i=0; i<m_blockBoxes.size(); i++ )
+		{
+			AxisAlignedBB box = m_blockBoxes.get( i );
+			boxes[i*6] = box.minX;
+			boxes[i*6 + 1] = box.minY;
+			boxes[i*6 + 2] = box.minZ;
+			boxes[i*6 + 3] = box.maxX;
+			boxes[i*6 + 4] = box.maxY;
+			boxes[i*6 + 5] = box.maxZ;
+		}
+		return boxes;
+	}
+	
+	private static boolean intersects( double[] boxes, int i, AxisAlignedBB box )
+	{
+		// this matches AxisAlignedBB.intersectsWith()
+		return box.maxX > boxes[i] && box.minX < boxes[i + 3]
+			&& box.maxY > boxes[i + 1] && box.minY < boxes[i + 4]
+			&& box.maxZ > boxes[i + 2] && box.minZ < boxes[i + 5];
+	}
+}
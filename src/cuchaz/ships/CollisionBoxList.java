@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import java.util.Arrays;
+
+import net.minecraft.util.AxisAlignedBB;
+
+public class CollisionBoxList
+{
+	// NOTE: boxes are stored as primitive extents so the list can be refilled every tick without allocating
+	// the offset calculations match AxisAlignedBB.calculateXOffset() and friends
+	
+	private static final int InitialCapacity = 64;
+	
+	private int[] m_coords;
+	private double[] m_extents;
+	private int m_size;
+	
+	public CollisionBoxList( )
+	{
+		m_coords = new int[InitialCapacity*3];
+		m_extents = new double[InitialCapacity*6];
+		m_size = 0;
+	}
+	
+	public int size( )
+	{
+		return m_size;
+	}
+	
+	public boolean isEmpty( )
+	{
+		return m_size == 0;
+	}
+	
+	public void clear( )
+	{
+		m_size = 0;
+	}
+	
+	public void add( int x, int y, int z, AxisAlignedBB box )
+	{
+		add( x, y, z, box.minX, box.minY, box.minZ, box.maxX, box.maxY, box.maxZ );
+	}
+	
+	public void add( int x, int y, int z, double[] extents, int offset )
+	{
+		add(
+			x, y, z,
+			extents[offset], extents[offset + 1], extents[offset + 2],
+			extents[offset + 3], extents[offset + 4], extents[offset + 5]
+		);
+	}
+	
+	public void add( int x, int y, int z, double minX, double minY, double minZ, double maxX, double maxY, double maxZ )
+	{
+		if( m_size*6 == m_extents.length )
+		{
+			m_coords = Arrays.copyOf( m_coords, m_coords.length*2 );
+			m_extents = Arrays.copyOf( m_extents, m_extents.length*2 );
+		}
+		m_coords[m_size*3] = x;
+		m_coords[m_size*3 + 1] = y;
+		m_coords[m_size*3 + 2] = z;
+		m_extents[m_size*6] = minX;
+		m_extents[m_size*6 + 1] = minY;
+		m_extents[m_size*6 + 2] = minZ;
+		m_extents[m_size*6 + 3] = maxX;
+		m_extents[m_size*6 + 4] = maxY;
+		m_extents[m_size*6 + 5] = maxZ;
+		m_size++;
+	}
+	
+	public int getX( int i )
+	{
+		return m_coords[i*3];
+	}
+	
+	public int getY( int i )
+	{
+		return m_coords[i*3 + 1];
+	}
+	
+	public int getZ( int i )
+	{
+		return m_coords[i*3 + 2];
+	}
+	
+	public double calculateXOffset( AxisAlignedBB box, double dx )
+	{
+		for( int i=0; i<m_size; i++ )
+		{
+			int j = i*6;
+			if( box.maxY > m_extents[j + 1] && box.minY < m_extents[j + 4] && box.maxZ > m_extents[j + 2] && box.minZ < m_extents[j + 5] )
+			{
+				if( dx > 0 && box.maxX <= m_extents[j] )
+				{
+					double dist = m_extents[j] - box.maxX;
+					if( dist < dx )
+					{
+						dx = dist;
+					}
+				}
+				if( dx < 0 && box.minX >= m_extents[j + 3] )
+				{
+					double dist = m_extents[j + 3] - box.minX;
+					if( dist > dx )
+					{
+						dx = dist;
+					}
+				}
+			}
+		}
+		return dx;
+	}
+	
+	public double calculateYOffset( AxisAlignedBB box, double dy )
+	{
+		for( int i=0; i<m_size; i++ )
+		{
+			int j = i*6;
+			if( box.maxX > m_extents[j] && box.minX < m_extents[j + 3] && box.maxZ > m_extents[j + 2] && box.minZ < m_extents[j + 5] )
+			{
+				if( dy > 0 && box.maxY <= m_extents[j + 1] )
+				{
+					double dist = m_extents[j + 1] - box.maxY;
+					if( dist < dy )
+					{
+						dy = dist;
+					}
+				}
+				if( dy < 0 && box.minY >= m_extents[j + 4] )
+				{
+					double dist = m_extents[j + 4] - box.minY;
+					if( dist > dy )
+					{
+						dy = dist;
+					}
+				}
+			}
+		}
+		return dy;
+	}
+	
+	public double calculateZOffset( AxisAlignedBB box, double dz )
+	{
+		for( int i=0; i<m_size; i++ )
+		{
+			int j = i*6;
+			if( box.maxX > m_extents[j] && box.minX < m_extents[j + 3] && box.maxY > m_extents[j + 1] && box.minY < m_extents[j + 4] )
+			{
+				if( dz > 0 && box.maxZ <= m_extents[j + 2] )
+				{
+					double dist = m_extents[j + 2] - box.maxZ;
+					if( dist < dz )
+					{
+						dz = dist;
+					}
+				}
+				if( dz < 0 && box.minZ >= m_extents[j + 5] )
+				{
+					double dist = m_extents[j + 5] - box.minZ;
+					if( dist > dz )
+					{
+						dz = dist;
+					}
+				}
+			}
+		}
+		return dz;
+	}
+}
@@ -80,17 +80,29 @@ public class CommandShips extends CommandBase
 			public void process( ICommandSender sender, String[] args )
 			{
 				List<EntityShip> ships = ShipLocator.getShips( sender.getEntityWorld() );
+				int numSleeping = 0;
+				for( EntityShip ship : ships )
+				{
+					if( ship.isSleeping() )
+					{
+						numSleeping++;
+					}
+				}
 				StringBuilder buf = new StringBuilder();
-				buf.append( "Found " );
-				buf.append( ships.size() );
-				buf.append( " ships.\n" );
+				buf.append( String.format( "Found %d ships (%d awake, %d asleep).\n", ships.size(), ships.size() - numSleeping, numSleeping ) );
 				for( EntityShip ship : ships )
 				{
+					ShipWorld shipWorld = ship.getShipWorld();
+					int numEdits = shipWorld.getNumPatchedEdits() + shipWorld.getNumRebuiltEdits();
 					buf.append( String.format(
-						" id: %8d,   blocks: %5d,   pos: ( %.1f, %.1f, %.1f )\n",
+						" id: %8d,   blocks: %5d,   pos: ( %.1f, %.1f, %.1f ),   %s,   edits: %d (%d rebuilt, %.2f ms avg)\n",
 						ship.entityId,
-						ship.getShipWorld().coords().size(),
-						ship.posX, ship.posY, ship.posZ
+						shipWorld.getNumBlocks(),
+						ship.posX, ship.posY, ship.posZ,
+						ship.isSleeping() ? "asleep" : "awake",
+						numEdits,
+						shipWorld.getNumRebuiltEdits(),
+						numEdits > 0 ? shipWorld.getEditNanos()/1e6/numEdits : 0.0
 					) );
 				}
 				reply( sender, buf.toString() );
@@ -10,10 +10,8 @@
  ******************************************************************************/
 package cuchaz.ships;
 
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 import net.minecraft.block.Block;
 import net.minecraft.client.Minecraft;
@@ -35,18 +33,16 @@ import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 import cuchaz.modsShared.EntityUtils;
 import cuchaz.modsShared.Environment;
-import cuchaz.modsShared.blocks.BlockSet;
 import cuchaz.modsShared.blocks.BlockSide;
-import cuchaz.modsShared.blocks.BlockUtils;
 import cuchaz.modsShared.blocks.Coords;
-import cuchaz.modsShared.blocks.Envelopes;
 import cuchaz.modsShared.math.CircleRange;
 import cuchaz.modsShared.math.CompareReal;
 import cuchaz.modsShared.math.RotatedBB;
 import cuchaz.modsShared.perf.DelayTimer;
-import cuchaz.ships.config.BlockProperties;
+import cuchaz.ships.packets.PacketChangedBlocks;
 import cuchaz.ships.packets.PacketPilotShip;
 import cuchaz.ships.packets.PacketRequestShipBlocks;
+import cuchaz.ships.packets.PacketShipCorrection;
 import cuchaz.ships.packets.PacketShipLaunched;
 import cuchaz.ships.persistence.PersistenceException;
 import cuchaz.ships.persistence.ShipPersistence;
@@ -59,6 +55,30 @@ public class EntityShip extends Entity
 	public static final int LinearThrottleStep = 2;
 	public static final int AngularThrottleMax = 1;
 	public static final int AngularThrottleMin = -1;
+	private static final double MotionEpsilon = 1e-3;
+	private static final int NumRestingTicksBeforeSleep = 20*5;
+	private static final int NumTicksBetweenBlockRequests = 20*5;
+	private static final int MaxPendingBlockChanges = 1024;
+	public static final int TrackingRange = 256;
+	
+	// clients predict the ship motion themselves, the server only corrects them when they get too far off
+	private static final double CorrectionDistance = 0.25;
+	private static final float CorrectionYaw = 2.0f;
+	private static final int MaxTicksBetweenCorrections = 20*5;
+	private static final double CorrectionSnapDistance = 8;
+	private static final double CorrectionBlend = 0.2;
+	
+	private static class ShipMotion
+	{
+		public double x;
+		public double y;
+		public double z;
+		public float yaw;
+		public double motionX;
+		public double motionY;
+		public double motionZ;
+		public float motionYaw;
+	}
 	
 	public float motionYaw;
 	public int linearThrottle;
@@ -74,17 +94,24 @@ public class EntityShip extends Entity
 	private int m_oldPilotActions;
 	private BlockSide m_sideShipForward;
 	private boolean m_sendPilotChangesToServer;
-	private boolean m_hasInfoFromServer;
-	private double m_xFromServer;
-	private double m_yFromServer;
-	private double m_zFromServer;
-	private float m_yawFromServer;
-	private float m_pitchFromServer;
+	private double m_xError;
+	private double m_yError;
+	private double m_zError;
+	private float m_yawError;
+	private ShipMotion m_motion;
+	private ShipMotion m_clientMotion;
+	private int m_numTicksSinceCorrection;
+	private ShipWatchers m_watchers;
 	private ShipCollider m_collider;
 	private WaterDisplacer m_waterDisplacer;
 	private RainDisplacer m_rainDisplacer;
 	private DelayTimer m_throttleKillDelay;
-	private Map<Integer,Entity> m_ridersLastTick;
+	private List<Entity> m_ridersLastTick;
+	private WaterSurfaceCache m_waterSurface;
+	private boolean m_isSleeping;
+	private int m_numRestingTicks;
+	private int m_numTicksUntilBlockRequest;
+	private List<PacketChangedBlocks> m_pendingBlockChanges;
 	
 	public EntityShip( World world )
 	{
@@ -107,17 +134,24 @@ public class EntityShip extends Entity
 		m_oldPilotActions = 0;
 		m_sideShipForward = null;
 		m_sendPilotChangesToServer = false;
-		m_hasInfoFromServer = false;
-		m_xFromServer = 0;
-		m_yFromServer = 0;
-		m_zFromServer = 0;
-		m_yawFromServer = 0;
-		m_pitchFromServer = 0;
+		m_xError = 0;
+		m_yError = 0;
+		m_zError = 0;
+		m_yawError = 0;
+		m_motion = new ShipMotion();
+		m_clientMotion = new ShipMotion();
+		m_numTicksSinceCorrection = 0;
+		m_watchers = new ShipWatchers( this );
 		m_collider = new ShipCollider( this );
 		m_waterDisplacer = new WaterDisplacer( this );
 		m_rainDisplacer = new RainDisplacer( this );
 		m_throttleKillDelay = null;
-		m_ridersLastTick = new TreeMap<Integer,Entity>();
+		m_ridersLastTick = new ArrayList<Entity>();
+		m_waterSurface = new WaterSurfaceCache();
+		m_isSleeping = false;
+		m_numRestingTicks = 0;
+		m_numTicksUntilBlockRequest = 0;
+		m_pendingBlockChanges = new ArrayList<PacketChangedBlocks>();
 	}
 	
 	@Override
@@ -154,6 +188,14 @@ public class EntityShip extends Entity
 		m_shipBlockZ = -centerOfMass.zCoord;
 		
 		m_collider.computeShipBoundingBox( boundingBox, posX, posY, posZ, rotationYaw );
+		ShipLocator.getRegistry( worldObj ).update( this );
+		
+		// catch up on any block changes that got here before the blocks did
+		for( PacketChangedBlocks packet : m_pendingBlockChanges )
+		{
+			packet.applyTo( m_shipWorld );
+		}
+		m_pendingBlockChanges.clear();
 		
 		// LOGGING
 		Ships.logger.info( String.format(
@@ -164,10 +206,67 @@ public class EntityShip extends Entity
 		) );
 	}
 	
+	public void addPendingBlockChanges( PacketChangedBlocks packet )
+	{
+		if( m_pendingBlockChanges.size() >= MaxPendingBlockChanges )
+		{
+			Ships.logger.warning( "Too many block changes for ship %d before its blocks arrived! Dropping them.", entityId );
+			return;
+		}
+		m_pendingBlockChanges.add( packet );
+	}
+	
+	public void onBlockChanged( Coords coords, Block oldBlock, boolean hadBlock, Block newBlock, boolean hasBlock, boolean isDisplacementPatched )
+	{
+		// the ship might not float the same way anymore
+		wakeUp();
+		
+		// update the physics one block at a time instead of starting over
+		Vec3 oldCenterOfMass = Vec3.createVectorHelper( -m_shipBlockX, -m_shipBlockY, -m_shipBlockZ );
+		m_physics.onBlockChanged( coords, oldBlock, hadBlock, newBlock, hasBlock, isDisplacementPatched );
+		
+		// finding the propulsion looks at the whole ship, so only do it when the change could matter
+		if( Propulsion.isAffectedByBlockChange( m_shipWorld.getBlocksStorage(), coords, oldBlock, newBlock ) )
+		{
+			m_propulsion = new Propulsion( m_shipWorld.getBlocksStorage() );
+		}
+		
+		// the center of mass moved, so move the ship so the blocks stay put in the world
+		Vec3 centerOfMass = m_physics.getCenterOfMass();
+		m_shipBlockX = -centerOfMass.xCoord;
+		m_shipBlockY = -centerOfMass.yCoord;
+		m_shipBlockZ = -centerOfMass.zCoord;
+		Vec3 delta = Vec3.createVectorHelper(
+			centerOfMass.xCoord - oldCenterOfMass.xCoord,
+			centerOfMass.yCoord - oldCenterOfMass.yCoord,
+			centerOfMass.zCoord - oldCenterOfMass.zCoord
+		);
+		shipToWorldDirection( delta );
+		prevPosX += delta.xCoord;
+		prevPosY += delta.yCoord;
+		prevPosZ += delta.zCoord;
+		lastTickPosX += delta.xCoord;
+		lastTickPosY += delta.yCoord;
+		lastTickPosZ += delta.zCoord;
+		setPosition( posX + delta.xCoord, posY + delta.yCoord, posZ + delta.zCoord );
+	}
+	
+	public boolean isSleeping( )
+	{
+		return m_isSleeping;
+	}
+	
+	public void wakeUp( )
+	{
+		m_isSleeping = false;
+		m_numRestingTicks = 0;
+	}
+	
 	@Override
 	public void setDead( )
 	{
 		super.setDead();
+		ShipLocator.getRegistry( worldObj ).remove( this );
 		
 		// LOGGING
 		Ships.logger.info( "EntityShip %d died!", entityId );
@@ -241,6 +340,21 @@ public class EntityShip extends Entity
 		return m_rainDisplacer;
 	}
 	
+	public ShipWatchers getWatchers( )
+	{
+		return m_watchers;
+	}
+	
+	public int getPilotActions( )
+	{
+		return m_pilotActions;
+	}
+	
+	public BlockSide getSideShipForward( )
+	{
+		return m_sideShipForward;
+	}
+	
 	@Override
 	public boolean canBeCollidedWith()
     {
@@ -272,6 +386,7 @@ public class EntityShip extends Entity
         if( m_collider != null )
         {
         	m_collider.computeShipBoundingBox( boundingBox, posX, posY, posZ, rotationYaw );
+        	ShipLocator.getRegistry( worldObj ).update( this );
         }
 	}
 	
@@ -279,15 +394,33 @@ public class EntityShip extends Entity
 	public void setPositionAndRotation2( double x, double y, double z, float yaw, float pitch, int alwaysThree )
 	{
 		// NOTE: this function should really be called onGetUpdatedPositionFromServer()
-		// also, server positions are off by as much as 0.03 in {x,y,z}
+		// but these positions are off by as much as 0.03 in {x,y,z} and they're a round trip behind the client's prediction
+		// so ignore them. The server sends a PacketShipCorrection when the client needs it
+	}
+	
+	public void onCorrectionFromServer( double x, double y, double z, float yaw, double motionX, double motionY, double motionZ, float motionYaw )
+	{
+		wakeUp();
+		
+		// start predicting from the server's motion
+		this.motionX = motionX;
+		this.motionY = motionY;
+		this.motionZ = motionZ;
+		this.motionYaw = motionYaw;
+		
+		// if we don't have blocks yet, there's nothing to move
+		if( m_shipWorld == null )
+		{
+			rotationYaw = yaw;
+			setPosition( x, y, z );
+			return;
+		}
 		
-		// just save the info and we'll deal with it on the next update tick
-		m_hasInfoFromServer = true;
-		m_xFromServer = x;
-		m_yFromServer = y;
-		m_zFromServer = z;
-		m_yawFromServer = yaw;
-		m_pitchFromServer = pitch;
+		// otherwise, fix the position a little at a time on the next update ticks
+		m_xError = x - posX;
+		m_yError = y - posY;
+		m_zError = z - posZ;
+		m_yawError = getYawDelta( rotationYaw, yaw );
 	}
 	
 	@Override
@@ -307,10 +440,11 @@ public class EntityShip extends Entity
 			{
 				packet.process( this );
 			}
-			else
+			else if( m_numTicksUntilBlockRequest-- <= 0 )
 			{
-				// ask for blocks
-				PacketDispatcher.sendPacketToServer( new PacketRequestShipBlocks( entityId ).getCustomPacket() );
+				// ask for blocks, but big ships take a while to send, so don't ask again right away
+				PacketDispatcher.sendPacketToServer( new PacketRequestShipBlocks( entityId, false ).getCustomPacket() );
+				m_numTicksUntilBlockRequest = NumTicksBetweenBlockRequests;
 			}
 		}
 		
@@ -320,47 +454,70 @@ public class EntityShip extends Entity
 			return;
 		}
 		
+		// sleeping ships skip the physics and collisions until something wakes them up
+		if( m_isSleeping && ( m_pilotActions != 0 || linearThrottle != 0 || angularThrottle != 0 ) )
+		{
+			wakeUp();
+		}
+		if( m_isSleeping )
+		{
+			m_shipWorld.updateEntities();
+			if( Environment.isServer() )
+			{
+				correctClients( null, false );
+				m_watchers.update();
+			}
+			return;
+		}
+		
 		double waterHeightInBlockSpace = shipToBlocksY( worldToShipY( getWaterHeight() ) );
-		adjustMotionDueToGravityAndBuoyancy( waterHeightInBlockSpace );
-		adjustMotionDueToThrustAndDrag( waterHeightInBlockSpace );
+		processPilotActions();
+		getMotion( m_motion );
+		adjustMotionDueToGravityAndBuoyancy( m_motion, waterHeightInBlockSpace );
+		adjustMotionDueToThrustAndDrag( m_motion, waterHeightInBlockSpace );
+		motionX = m_motion.motionX;
+		motionY = m_motion.motionY;
+		motionZ = m_motion.motionZ;
+		motionYaw = m_motion.motionYaw;
 		
 		double dx = motionX;
 		double dy = motionY;
 		double dz = motionZ;
 		float dYaw = motionYaw;
 		
-		// did we get an updated position from the server?
-		if( m_hasInfoFromServer )
+		// did the server correct our prediction?
+		if( m_xError != 0 || m_yError != 0 || m_zError != 0 || m_yawError != 0 )
 		{
-			// position deltas are easy
-			dx += m_xFromServer - posX;
-			dy += m_yFromServer - posY;
-			dz += m_zFromServer - posZ;
+			// blend in the correction so the ship doesn't jump, unless we're really far off
+			double errorSq = m_xError*m_xError + m_yError*m_yError + m_zError*m_zError;
+			double blend = errorSq > CorrectionSnapDistance*CorrectionSnapDistance ? 1 : CorrectionBlend;
+			double xCorrection = m_xError*blend;
+			double yCorrection = m_yError*blend;
+			double zCorrection = m_zError*blend;
+			float yawCorrection = (float)( m_yawError*blend );
+			dx += xCorrection;
+			dy += yCorrection;
+			dz += zCorrection;
+			dYaw += yawCorrection;
+			m_xError -= xCorrection;
+			m_yError -= yCorrection;
+			m_zError -= zCorrection;
+			m_yawError -= yawCorrection;
 			
-			// we need fancy math to get the correct rotation delta
-			double yawRadClient = CircleRange.mapMinusPiToPi( Math.toRadians( rotationYaw ) );
-			double yawRadServer = CircleRange.mapMinusPiToPi( Math.toRadians( m_yawFromServer ) );
-			double yawDelta = CircleRange.newByShortSegment( yawRadClient, yawRadServer ).getLength();
-			
-			// was the rotation delta actually positive?
-			if( !CompareReal.eq( CircleRange.mapMinusPiToPi( yawRadClient + yawDelta ), yawRadServer ) )
+			// stop when the rest of the error is too small to see
+			if( Math.abs( m_xError ) < MotionEpsilon && Math.abs( m_yError ) < MotionEpsilon && Math.abs( m_zError ) < MotionEpsilon && Math.abs( m_yawError ) < MotionEpsilon )
 			{
-				// nope. it's a negative delta
-				yawDelta = -yawDelta;
+				m_xError = 0;
+				m_yError = 0;
+				m_zError = 0;
+				m_yawError = 0;
 			}
-			yawDelta = Math.toDegrees( yawDelta );
-			
-			dYaw += yawDelta;
-			
-			// just apply the pitch directly
-			rotationPitch = m_pitchFromServer;
-			
-			m_hasInfoFromServer = false;
 		}
 		
 		// did we even move a noticeable amount?
-		final double Epsilon = 1e-3;
-		if( Math.abs( dx ) >= Epsilon || Math.abs( dy ) >= Epsilon || Math.abs( dz ) >= Epsilon || Math.abs( dYaw ) >= Epsilon )
+		boolean isMoving = Math.abs( dx ) >= MotionEpsilon || Math.abs( dy ) >= MotionEpsilon || Math.abs( dz ) >= MotionEpsilon || Math.abs( dYaw ) >= MotionEpsilon;
+		boolean isBlocked = false;
+		if( isMoving )
 		{
 			List<Entity> riders = m_collider.getRiders();
 			
@@ -375,11 +532,18 @@ public class EntityShip extends Entity
 			m_collider.moveShip( dx, dy, dz, dYaw );
 			
 			// recalculate the deltas
+			double oldDx = dx;
+			double oldDy = dy;
+			double oldDz = dz;
+			float oldDYaw = dYaw;
 			dx = posX - prevPosX;
 			dy = posY - prevPosY;
 			dz = posZ - prevPosZ;
 			dYaw = rotationYaw - prevRotationYaw;
 			
+			// did we bump into something?
+			isBlocked = Math.abs( dx - oldDx ) >= MotionEpsilon || Math.abs( dy - oldDy ) >= MotionEpsilon || Math.abs( dz - oldDz ) >= MotionEpsilon || Math.abs( dYaw - oldDYaw ) >= MotionEpsilon;
+			
 			m_waterDisplacer.update( waterHeightInBlockSpace );
 			m_rainDisplacer.update();
 			moveRiders( riders, dx, dy, dz, dYaw );
@@ -406,40 +570,132 @@ public class EntityShip extends Entity
 			}
 		}
 		
+		// if the ship has been at rest for a while, put it to sleep
+		if( isMoving || m_pilotActions != 0 || linearThrottle != 0 || angularThrottle != 0 )
+		{
+			m_numRestingTicks = 0;
+		}
+		else if( ++m_numRestingTicks >= NumRestingTicksBeforeSleep )
+		{
+			m_isSleeping = true;
+			motionX = 0;
+			motionY = 0;
+			motionZ = 0;
+			motionYaw = 0;
+			
+			// the clients put their ships to sleep the same way
+			m_clientMotion.motionX = 0;
+			m_clientMotion.motionY = 0;
+			m_clientMotion.motionZ = 0;
+			m_clientMotion.motionYaw = 0;
+		}
+		
 		// update the world
 		m_shipWorld.updateEntities();
+		
+		// tell the clients what the ship did this tick
+		if( Environment.isServer() )
+		{
+			correctClients( waterHeightInBlockSpace, isBlocked );
+			m_watchers.update();
+		}
 	}
 	
-	public double getWaterHeight( )
+	private void correctClients( Double waterHeightInBlockSpace, boolean isBlocked )
 	{
-		// search in the ship box for water blocks (and air wall blocks)
-		BlockSet waterCoords = new BlockSet();
-		BlockUtils.worldRangeQuery( waterCoords, worldObj, boundingBox );
-		
-		Iterator<Coords> iter = waterCoords.iterator();
-		while( iter.hasNext() )
+		// NOTE: run the same physics step the clients run, from the last correction and with the same pilot inputs
+		// the model doesn't collide with anything. Clients collide the same way the server does,
+		// so when the ship gets blocked, the model takes the blocked pose instead of moving through the obstacle
+		if( waterHeightInBlockSpace != null )
 		{
-			Coords coords = iter.next();
-			Block block = Block.blocksList[worldObj.getBlockId( coords.x, coords.y, coords.z )];
-			if( !BlockProperties.isWater( block ) )
+			// the water surface is about the same a fraction of a block away
+			double clientWaterHeight = waterHeightInBlockSpace + posY - m_clientMotion.y;
+			adjustMotionDueToGravityAndBuoyancy( m_clientMotion, clientWaterHeight );
+			adjustMotionDueToThrustAndDrag( m_clientMotion, clientWaterHeight );
+			if( isBlocked )
+			{
+				m_clientMotion.x = posX;
+				m_clientMotion.y = posY;
+				m_clientMotion.z = posZ;
+				m_clientMotion.yaw = rotationYaw;
+			}
+			else
 			{
-				iter.remove();
+				m_clientMotion.x += m_clientMotion.motionX;
+				m_clientMotion.y += m_clientMotion.motionY;
+				m_clientMotion.z += m_clientMotion.motionZ;
+				m_clientMotion.yaw += m_clientMotion.motionYaw;
 			}
 		}
+		m_numTicksSinceCorrection++;
 		
-		if( waterCoords.isEmpty() )
+		// are the clients too far off? Even if they're not, check in every so often while the ship is moving
+		double dx = posX - m_clientMotion.x;
+		double dy = posY - m_clientMotion.y;
+		double dz = posZ - m_clientMotion.z;
+		boolean isOff = dx*dx + dy*dy + dz*dz > CorrectionDistance*CorrectionDistance
+			|| Math.abs( getYawDelta( m_clientMotion.yaw, rotationYaw ) ) > CorrectionYaw;
+		boolean isOverdue = !m_isSleeping && m_numTicksSinceCorrection >= MaxTicksBetweenCorrections;
+		if( !isOff && !isOverdue )
 		{
-			return 0;
+			return;
 		}
 		
-		// compute the average y from the top envelope of these blocks
-		double sum = 0;
-		BlockSet topEnvelope = new Envelopes( waterCoords ).getEnvelope( BlockSide.Top ).toBlockSet();
-		for( Coords coords : topEnvelope )
+		sendCorrection();
+	}
+	
+	public void sendCorrection( )
+	{
+		m_watchers.addPacket( new PacketShipCorrection( this ) );
+		
+		// the clients will predict from here now
+		getMotion( m_clientMotion );
+		
+		// the correction only carries floats for the motion
+		m_clientMotion.motionX = (float)m_clientMotion.motionX;
+		m_clientMotion.motionY = (float)m_clientMotion.motionY;
+		m_clientMotion.motionZ = (float)m_clientMotion.motionZ;
+		m_numTicksSinceCorrection = 0;
+	}
+	
+	private void getMotion( ShipMotion out )
+	{
+		out.x = posX;
+		out.y = posY;
+		out.z = posZ;
+		out.yaw = rotationYaw;
+		out.motionX = motionX;
+		out.motionY = motionY;
+		out.motionZ = motionZ;
+		out.motionYaw = motionYaw;
+	}
+	
+	private float getYawDelta( float fromYaw, float toYaw )
+	{
+		// we need fancy math to get the correct rotation delta
+		double yawRadFrom = CircleRange.mapMinusPiToPi( Math.toRadians( fromYaw ) );
+		double yawRadTo = CircleRange.mapMinusPiToPi( Math.toRadians( toYaw ) );
+		double yawDelta = CircleRange.newByShortSegment( yawRadFrom, yawRadTo ).getLength();
+		
+		// was the rotation delta actually positive?
+		if( !CompareReal.eq( CircleRange.mapMinusPiToPi( yawRadFrom + yawDelta ), yawRadTo ) )
 		{
-			sum += coords.y + 1; // +1 for the top of the block
+			// nope. it's a negative delta
+			yawDelta = -yawDelta;
 		}
-		return sum/topEnvelope.size();
+		return (float)Math.toDegrees( yawDelta );
+	}
+	
+	public double getWaterHeight( )
+	{
+		// average the top water blocks (and air wall blocks) in the ship box
+		return m_waterSurface.getWaterHeight( worldObj, boundingBox );
+	}
+	
+	public void onWorldBlocksChanged( int minX, int minY, int minZ, int maxX, int maxY, int maxZ )
+	{
+		wakeUp();
+		m_waterSurface.invalidate( minX, minY, minZ, maxX, maxY, maxZ );
 	}
 
 	@Override
@@ -457,6 +713,9 @@ public class EntityShip extends Entity
 			return false;
 		}
 		
+		// riders messing with the ship wake it up
+		wakeUp();
+		
 		// activate the block
 		Block block = Block.blocksList[m_shipWorld.getBlockId( hit.hit.blockX, hit.hit.blockY, hit.hit.blockZ )];
 		return block.onBlockActivated(
@@ -489,9 +748,14 @@ public class EntityShip extends Entity
 	}
 	
 	public void worldToShipDirection( Vec3 v )
+	{
+		worldToShipDirection( v, rotationYaw );
+	}
+	
+	private void worldToShipDirection( Vec3 v, float yaw )
 	{
 		// just apply the rotation
-		double yawRad = Math.toRadians( rotationYaw );
+		double yawRad = Math.toRadians( yaw );
 		double cos = Math.cos( yawRad );
 		double sin = Math.sin( yawRad );
 		double x = v.xCoord*cos - v.zCoord*sin;
@@ -657,7 +921,7 @@ public class EntityShip extends Entity
 		return new RotatedBB( box, rotationYaw );
 	}
 	
-	private void adjustMotionDueToGravityAndBuoyancy( double waterHeightInBlockSpace )
+	private void adjustMotionDueToGravityAndBuoyancy( ShipMotion motion, double waterHeightInBlockSpace )
 	{
 		/* only simulate buoyancy if we're outside of the epsilon for the equilibrium y pos
 		final double EquilibriumWaterHeightEpsilon = 0.05;
@@ -666,25 +930,25 @@ public class EntityShip extends Entity
 		{
 		*/
 		
-		Vec3 velocity = Vec3.createVectorHelper( 0, motionY, 0 );
+		Vec3 velocity = Vec3.createVectorHelper( 0, motion.motionY, 0 );
 		
 		double accelerationDueToBouyancy = m_physics.getNetUpAcceleration( waterHeightInBlockSpace );
 		double accelerationDueToDrag = m_physics.getLinearAccelerationDueToDrag( velocity, waterHeightInBlockSpace );
 		
 		// make sure drag acceleration doesn't reverse the velocity!
 		// NOTE: drag is always positive right now. We'll fix the sign later
-		accelerationDueToDrag = Math.min( Math.abs( motionY + accelerationDueToBouyancy ), accelerationDueToDrag );
+		accelerationDueToDrag = Math.min( Math.abs( motion.motionY + accelerationDueToBouyancy ), accelerationDueToDrag );
 		
 		// make sure drag opposes velocity
-		if( Math.signum( accelerationDueToDrag ) == Math.signum( motionY ) )
+		if( Math.signum( accelerationDueToDrag ) == Math.signum( motion.motionY ) )
 		{
 			accelerationDueToDrag *= -1;
 		}
 		
-		motionY += accelerationDueToBouyancy + accelerationDueToDrag;
+		motion.motionY += accelerationDueToBouyancy + accelerationDueToDrag;
 	}
 	
-	private void adjustMotionDueToThrustAndDrag( double waterHeightInBlockSpace )
+	private void processPilotActions( )
 	{
 		// process pilot actions
 		PilotAction.resetShip( this, m_pilotActions, m_oldPilotActions );
@@ -701,9 +965,20 @@ public class EntityShip extends Entity
 			linearThrottle = LinearThrottleMax;
 		}
 		
+		if( m_sideShipForward != null && m_sendPilotChangesToServer )
+		{
+			// send a packet to the server
+			PacketPilotShip packet = new PacketPilotShip( entityId, m_pilotActions, m_sideShipForward, linearThrottle, angularThrottle );
+			PacketDispatcher.sendPacketToServer( packet.getCustomPacket() );
+			m_sendPilotChangesToServer = false;
+		}
+	}
+	
+	private void adjustMotionDueToThrustAndDrag( ShipMotion motion, double waterHeightInBlockSpace )
+	{
 		// get the velocity direction
-		double velocityDirX = motionX;
-		double velocityDirZ = motionZ;
+		double velocityDirX = motion.motionX;
+		double velocityDirZ = motion.motionZ;
 		double speed = Math.sqrt( velocityDirX*velocityDirX + velocityDirZ*velocityDirZ );
 		if( speed > 0 )
 		{
@@ -712,24 +987,16 @@ public class EntityShip extends Entity
 		}
 		
 		// get the velocity in block coords
-		Vec3 velocityInBlockCoords = Vec3.createVectorHelper( motionX, 0, motionZ );
-		worldToShipDirection( velocityInBlockCoords );
+		Vec3 velocityInBlockCoords = Vec3.createVectorHelper( motion.motionX, 0, motion.motionZ );
+		worldToShipDirection( velocityInBlockCoords, motion.yaw );
 		
 		// compute the linear acceleration due to thrust
 		double linearAccelerationDueToThrustX = 0;
 		double linearAccelerationDueToThrustZ = 0;
 		if( m_sideShipForward != null )
 		{
-			if( m_sendPilotChangesToServer )
-			{
-				// send a packet to the server
-				PacketPilotShip packet = new PacketPilotShip( entityId, m_pilotActions, m_sideShipForward, linearThrottle, angularThrottle );
-				PacketDispatcher.sendPacketToServer( packet.getCustomPacket() );
-				m_sendPilotChangesToServer = false;
-			}
-			
 			// compute the forward vector
-			float yawRad = (float)Math.toRadians( rotationYaw );
+			float yawRad = (float)Math.toRadians( motion.yaw );
 			float cos = MathHelper.cos( yawRad );
 			float sin = MathHelper.sin( yawRad );
 			double forwardX = m_sideShipForward.getDx()*cos + m_sideShipForward.getDz()*sin;
@@ -745,81 +1012,87 @@ public class EntityShip extends Entity
 		double linearAccelerationDueToDrag = m_physics.getLinearAccelerationDueToDrag( velocityInBlockCoords, waterHeightInBlockSpace );
 		
 		// make sure drag acceleration doesn't reverse the velocity!
-		double nextSpeedX = motionX + linearAccelerationDueToThrustX;
-		double nextSpeedZ = motionZ + linearAccelerationDueToThrustZ;
+		double nextSpeedX = motion.motionX + linearAccelerationDueToThrustX;
+		double nextSpeedZ = motion.motionZ + linearAccelerationDueToThrustZ;
 		double nextSpeed = Math.sqrt( nextSpeedX*nextSpeedX + nextSpeedZ*nextSpeedZ );
 		linearAccelerationDueToDrag = Math.min( nextSpeed, linearAccelerationDueToDrag );
 		
 		// apply the linear acceleration
-		motionX += linearAccelerationDueToThrustX - velocityDirX*linearAccelerationDueToDrag;
-		motionZ += linearAccelerationDueToThrustZ - velocityDirZ*linearAccelerationDueToDrag;
+		motion.motionX += linearAccelerationDueToThrustX - velocityDirX*linearAccelerationDueToDrag;
+		motion.motionZ += linearAccelerationDueToThrustZ - velocityDirZ*linearAccelerationDueToDrag;
 		
 		// get the angular acceleration
 		double angularAccelerationDueToThrust = m_physics.getAngularAccelerationDueToThrust( m_propulsion )*angularThrottle/AngularThrottleMax;
-		double angularAccelerationDueToDrag = m_physics.getAngularAccelerationDueToDrag( motionYaw, waterHeightInBlockSpace );
+		double angularAccelerationDueToDrag = m_physics.getAngularAccelerationDueToDrag( motion.motionYaw, waterHeightInBlockSpace );
 		
 		// make sure drag acceleration doesn't reverse the velocity!
-		angularAccelerationDueToDrag = Math.min( Math.abs( motionYaw + angularAccelerationDueToThrust ), angularAccelerationDueToDrag );
+		angularAccelerationDueToDrag = Math.min( Math.abs( motion.motionYaw + angularAccelerationDueToThrust ), angularAccelerationDueToDrag );
 		
 		// make sure the drag is opposed to the velocity
-		if( Math.signum( angularAccelerationDueToDrag ) == Math.signum( motionYaw ) )
+		if( Math.signum( angularAccelerationDueToDrag ) == Math.signum( motion.motionYaw ) )
 		{
 			angularAccelerationDueToDrag *= -1;
 		}
 		
 		// apply the angular acceleration
-		motionYaw += angularAccelerationDueToThrust + angularAccelerationDueToDrag;
+		motion.motionYaw += angularAccelerationDueToThrust + angularAccelerationDueToDrag;
 	}
 	
 	private void moveRiders( List<Entity> riders, double dx, double dy, double dz, float dYaw )
 	{
-		// remove all current riders from the last known riders
-		// meaning, only lost riders will be left
-		for( Entity rider : riders )
+		// the ship moved rigidly this tick, so every rider gets the same transformation:
+		// a rotation about the ship's center in the xz plane, then the ship's translation
+		float yawRad = (float)Math.toRadians( dYaw );
+		double cos = MathHelper.cos( yawRad );
+		double sin = MathHelper.sin( yawRad );
+		
+		// riders from last tick that aren't riding anymore get moved one last time
+		for( int i=0; i<m_ridersLastTick.size(); i++ )
 		{
-			if( m_ridersLastTick.containsKey( rider.entityId ) )
+			Entity rider = m_ridersLastTick.get( i );
+			if( !riders.contains( rider ) )
 			{
-				m_ridersLastTick.remove( rider.entityId );
+				moveRider( rider, dx, dy, dz, dYaw, cos, sin, true );
 			}
 		}
-		for( Entity rider : m_ridersLastTick.values() )
-		{
-			Vec3 delta = getRiderDelta( rider, dx, dy, dz, dYaw );
-			
-			// impart some velocity to the old rider
-			rider.motionX += delta.xCoord;
-			rider.motionY += delta.yCoord;
-			rider.motionZ += delta.zCoord;
-			
-			// apply the delta for one last time
-			rider.rotationYaw -= dYaw;
-			rider.setPosition(
-				rider.posX + delta.xCoord,
-				rider.posY + delta.yCoord,
-				rider.posZ + delta.zCoord
-			);
-		}
 		
 		// update the last known riders
 		m_ridersLastTick.clear();
-		for( Entity rider : riders )
+		for( int i=0; i<riders.size(); i++ )
 		{
-			m_ridersLastTick.put( rider.entityId, rider );
+			m_ridersLastTick.add( riders.get( i ) );
 		}
 		
-		// first, move the riders
-		for( Entity rider : riders )
+		// then, move the riders
+		for( int i=0; i<riders.size(); i++ )
 		{
-			Vec3 delta = getRiderDelta( rider, dx, dy, dz, dYaw );
-			
-			// apply the transformation
-			rider.rotationYaw -= dYaw;
-			rider.setPosition(
-				rider.posX + delta.xCoord,
-				rider.posY + delta.yCoord,
-				rider.posZ + delta.zCoord
-			);
+			moveRider( riders.get( i ), dx, dy, dz, dYaw, cos, sin, false );
+		}
+	}
+	
+	private void moveRider( Entity rider, double dx, double dy, double dz, float dYaw, double cos, double sin, boolean isLost )
+	{
+		// rotate the rider's position relative to the ship center and convert it into a delta
+		double x = rider.posX + dx - posX;
+		double z = rider.posZ + dz - posZ;
+		double riderDx = x*cos + z*sin - x + dx;
+		double riderDz = -x*sin + z*cos - z + dz;
+		
+		if( isLost )
+		{
+			// impart some velocity to the old rider
+			rider.motionX += riderDx;
+			rider.motionY += dy;
+			rider.motionZ += riderDz;
 		}
+		
+		// apply the transformation
+		rider.rotationYaw -= dYaw;
+		rider.setPosition(
+			rider.posX + riderDx,
+			rider.posY + dy,
+			rider.posZ + riderDz
+		);
 	}
 	
 	public void setPilotActions( int actions, BlockSide sideShipForward, boolean sendPilotChangesToServer )
@@ -829,30 +1102,6 @@ public class EntityShip extends Entity
 		m_sendPilotChangesToServer = sendPilotChangesToServer;
 	}
 	
-	private Vec3 getRiderDelta( Entity rider, double shipDx, double shipDy, double shipDz, double shipDyaw )
-	{
-		Vec3 p = Vec3.createVectorHelper( 0, 0, 0 );
-		
-		// apply rotation of position relative to the ship center
-		p.xCoord = rider.posX + shipDx;
-		p.zCoord = rider.posZ + shipDz;
-		worldToShip( p );
-		float yawRad = (float)Math.toRadians( shipDyaw );
-		float cos = MathHelper.cos( yawRad );
-		float sin = MathHelper.sin( yawRad );
-		double x = p.xCoord*cos + p.zCoord*sin;
-		double z = -p.xCoord*sin + p.zCoord*cos;
-		p.xCoord = x;
-		p.zCoord = z;
-		shipToWorld( p );
-		
-		// convert the new position into a delta vector
-		p.xCoord -= rider.posX;
-		p.yCoord = shipDy;
-		p.zCoord -= rider.posZ;
-		return p;
-	}
-	
 	@SideOnly( Side.CLIENT )
 	private void clickWorldBlock( EntityPlayer player, MovingObjectPosition hit, boolean isLeftButton )
 	{
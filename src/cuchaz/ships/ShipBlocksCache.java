@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import cuchaz.modsShared.Util;
+
+public class ShipBlocksCache
+{
+	// NOTE: ship blocks are cached on disk by the hash of their data, so the server only has to send the hash
+	// files are touched when they're read, so the least recently used ships get evicted first
+	
+	private static final String Extension = ".ship";
+	
+	private File m_dir;
+	private long m_maxNumBytes;
+	
+	public ShipBlocksCache( File dir, long maxNumBytes )
+	{
+		m_dir = dir;
+		m_maxNumBytes = maxNumBytes;
+	}
+	
+	public static String getHash( byte[] data )
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( data );
+			StringBuilder buf = new StringBuilder();
+			for( byte b : digest )
+			{
+				buf.append( String.format( "%02x", b & 0xff ) );
+			}
+			return buf.toString();
+		}
+		catch( NoSuchAlgorithmException ex )
+		{
+			// all JVMs have to support SHA-1
+			throw new Error( ex );
+		}
+	}
+	
+	public byte[] get( String hash )
+	{
+		File file = getFile( hash );
+		if( file == null || !file.exists() )
+		{
+			return null;
+		}
+		
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream( new FileInputStream( file ) );
+			byte[] data = new byte[(int)file.length()];
+			in.readFully( data );
+			in.close();
+			in = null;
+			
+			// don't trust files that don't match their names
+			if( !hash.equals( getHash( data ) ) )
+			{
+				Ships.logger.warning( "Cached ship %s is corrupted! Removing it from the cache.", hash );
+				file.delete();
+				return null;
+			}
+			
+			file.setLastModified( System.currentTimeMillis() );
+			return data;
+		}
+		catch( IOException ex )
+		{
+			Ships.logger.warning( ex, "Unable to read cached ship %s!", hash );
+			return null;
+		}
+		finally
+		{
+			Util.closeSilently( in );
+		}
+	}
+	
+	public void put( byte[] data )
+	{
+		File file = getFile( getHash( data ) );
+		if( file == null || data.length > m_maxNumBytes )
+		{
+			return;
+		}
+		if( file.exists() )
+		{
+			file.setLastModified( System.currentTimeMillis() );
+			return;
+		}
+		
+		OutputStream out = null;
+		try
+		{
+			// write to a temp file first, so we never leave half-written ships in the cache
+			File tempFile = new File( m_dir, file.getName() + ".tmp" );
+			out = new FileOutputStream( tempFile );
+			out.write( data );
+			out.close();
+			out = null;
+			if( !tempFile.renameTo( file ) )
+			{
+				tempFile.delete();
+				return;
+			}
+		}
+		catch( IOException ex )
+		{
+			Ships.logger.warning( ex, "Unable to cache ship!" );
+			return;
+		}
+		finally
+		{
+			Util.closeSilently( out );
+		}
+		
+		evict();
+	}
+	
+	private File getFile( String hash )
+	{
+		// the hash comes from the server, so make sure it's really a hash before using it as a file name
+		if( !hash.matches( "[0-9a-f]{40}" ) )
+		{
+			return null;
+		}
+		if( !m_dir.exists() && !m_dir.mkdirs() )
+		{
+			return null;
+		}
+		return new File( m_dir, hash + Extension );
+	}
+	
+	private void evict( )
+	{
+		File[] files = m_dir.listFiles();
+		if( files == null )
+		{
+			return;
+		}
+		
+		// oldest files first
+		Arrays.sort( files, new Comparator<File>( )
+		{
+			@Override
+			public int compare( File a, File b )
+			{
+				return Long.valueOf( a.lastModified() ).compareTo( b.lastModified() );
+			}
+		} );
+		
+		long numBytes = 0;
+		for( File file : files )
+		{
+			if( file.getName().endsWith( Extension ) )
+			{
+				numBytes += file.length();
+			}
+		}
+		for( File file : files )
+		{
+			if( numBytes <= m_maxNumBytes )
+			{
+				break;
+			}
+			if( file.getName().endsWith( Extension ) )
+			{
+				numBytes -= file.length();
+				file.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import net.minecraft.util.AxisAlignedBB;
+import cuchaz.modsShared.blocks.BlockSet;
+import cuchaz.modsShared.blocks.Coords;
+
+public class ShipBoxTree
+{
+	// NOTE: this is a bounding volume hierarchy over the block boxes of a ship, in blocks space
+	// nodes are stored in flat arrays, and each node owns a contiguous range of the sorted blocks
+	
+	private static final int MaxBlocksPerLeaf = 4;
+	private static final int NoChild = -1;
+	
+	private static final Comparator<Coords> XComparator = new Comparator<Coords>( )
+	{
+		@Override
+		public int compare( Coords a, Coords b )
+		{
+			return a.x - b.x;
+		}
+	};
+	
+	private static final Comparator<Coords> YComparator = new Comparator<Coords>( )
+	{
+		@Override
+		public int compare( Coords a, Coords b )
+		{
+			return a.y - b.y;
+		}
+	};
+	
+	private static final Comparator<Coords> ZComparator = new Comparator<Coords>( )
+	{
+		@Override
+		public int compare( Coords a, Coords b )
+		{
+			return a.z - b.z;
+		}
+	};
+	
+	private Coords[] m_blocks;
+	private int[] m_bounds;
+	private int[] m_children;
+	private int[] m_ranges;
+	private int m_numNodes;
+	
+	public ShipBoxTree( BlockSet blocks )
+	{
+		m_blocks = blocks.toArray( new Coords[blocks.size()] );
+		
+		// a binary tree with at least one block per leaf can't have more than 2n-1 nodes
+		int maxNumNodes = Math.max( 2*m_blocks.length - 1, 0 );
+		m_bounds = new int[maxNumNodes*6];
+		m_children = new int[maxNumNodes*2];
+		m_ranges = new int[maxNumNodes*2];
+		m_numNodes = 0;
+		
+		if( m_blocks.length > 0 )
+		{
+			buildNode( 0, m_blocks.length );
+		}
+	}
+	
+	public int getNumNodes( )
+	{
+		return m_numNodes;
+	}
+	
+	public int getRoot( )
+	{
+		return m_numNodes > 0 ? 0 : NoChild;
+	}
+	
+	public boolean isLeaf( int node )
+	{
+		return m_children[node*2] == NoChild;
+	}
+	
+	public int getLeftChild( int node )
+	{
+		return m_children[node*2];
+	}
+	
+	public int getRightChild( int node )
+	{
+		return m_children[node*2 + 1];
+	}
+	
+	public int getBlocksStart( int node )
+	{
+		return m_ranges[node*2];
+	}
+	
+	public int getBlocksEnd( int node )
+	{
+		return m_ranges[node*2 + 1];
+	}
+	
+	public Coords getBlock( int index )
+	{
+		return m_blocks[index];
+	}
+	
+	public int getMinX( int node )
+	{
+		return m_bounds[node*6];
+	}
+	
+	public int getMinY( int node )
+	{
+		return m_bounds[node*6 + 1];
+	}
+	
+	public int getMinZ( int node )
+	{
+		return m_bounds[node*6 + 2];
+	}
+	
+	public int getMaxX( int node )
+	{
+		return m_bounds[node*6 + 3];
+	}
+	
+	public int getMaxY( int node )
+	{
+		return m_bounds[node*6 + 4];
+	}
+	
+	public int getMaxZ( int node )
+	{
+		return m_bounds[node*6 + 5];
+	}
+	
+	public int getVolume( int node )
+	{
+		return ( getMaxX( node ) - getMinX( node ) )*( getMaxY( node ) - getMinY( node ) )*( getMaxZ( node ) - getMinZ( node ) );
+	}
+	
+	public AxisAlignedBB getBox( AxisAlignedBB out, int node )
+	{
+		return out.setBounds(
+			getMinX( node ), getMinY( node ), getMinZ( node ),
+			getMaxX( node ), getMaxY( node ), getMaxZ( node )
+		);
+	}
+	
+	private int buildNode( int start, int end )
+	{
+		int node = m_numNodes++;
+		m_ranges[node*2] = start;
+		m_ranges[node*2 + 1] = end;
+		
+		// compute the bounds of the block boxes
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int minZ = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		int maxZ = Integer.MIN_VALUE;
+		for( int i=start; i<end; i++ )
+		{
+			Coords coords = m_blocks[i];
+			minX = Math.min( minX, coords.x );
+			minY = Math.min( minY, coords.y );
+			minZ = Math.min( minZ, coords.z );
+			maxX = Math.max( maxX, coords.x + 1 );
+			maxY = Math.max( maxY, coords.y + 1 );
+			maxZ = Math.max( maxZ, coords.z + 1 );
+		}
+		m_bounds[node*6] = minX;
+		m_bounds[node*6 + 1] = minY;
+		m_bounds[node*6 + 2] = minZ;
+		m_bounds[node*6 + 3] = maxX;
+		m_bounds[node*6 + 4] = maxY;
+		m_bounds[node*6 + 5] = maxZ;
+		
+		if( end - start <= MaxBlocksPerLeaf )
+		{
+			m_children[node*2] = NoChild;
+			m_children[node*2 + 1] = NoChild;
+			return node;
+		}
+		
+		// split at the median of the longest axis
+		int sizeX = maxX - minX;
+		int sizeY = maxY - minY;
+		int sizeZ = maxZ - minZ;
+		Comparator<Coords> comparator;
+		if( sizeX >= sizeY && sizeX >= sizeZ )
+		{
+			comparator = XComparator;
+		}
+		else if( sizeY >= sizeZ )
+		{
+			comparator = YComparator;
+		}
+		else
+		{
+			comparator = ZComparator;
+		}
+		Arrays.sort( m_blocks, start, end, comparator );
+		int mid = ( start + end )/2;
+		
+		// NOTE: children must be built after the parent claims its slot
+		int left = buildNode( start, mid );
+		int right = buildNode( mid, end );
+		m_children[node*2] = left;
+		m_children[node*2 + 1] = right;
+		return node;
+	}
+}
@@ -11,8 +11,10 @@
 package cuchaz.ships;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockFlower;
@@ -37,19 +39,7 @@ import cuchaz.ships.render.ShipDebugRenderInfo;
 
 public class ShipCollider
 {
-	private static class PossibleCollision
-	{
-		public Coords coords;
-		public AxisAlignedBB box;
-		
-		public PossibleCollision( Coords coords, AxisAlignedBB box )
-		{
-			this.coords = coords;
-			this.box = box;
-		}
-	}
-	
-	private static class CollisionResult
+	static class CollisionResult
 	{
 		public double scaling;
 		public int numCollidingBoxes;
@@ -57,12 +47,55 @@ public class ShipCollider
 	
 	
 	private EntityShip m_ship;
+	
+	// NOTE: scratch buffers for the entity and ship collision paths, so moving things doesn't allocate
+	// each collider is only ever used by the thread that owns its world
+	private ShipOccupancy.Cursor m_queryCursor;
+	private ShipOccupancy.RayCursor m_rayCursor;
+	private CollisionBoxList m_possibleCollisions;
+	private List<AxisAlignedBB> m_blockBoxes;
+	private AxisAlignedBB m_oldEntityBox;
+	private AxisAlignedBB m_newEntityBox;
+	private AxisAlignedBB m_tempBox;
+	private AxisAlignedBB m_queryBox;
+	private AxisAlignedBB m_trajectoryBox;
+	private Vec3 m_tempPos;
+	private Vec3 m_delta;
+	private int[] m_nodeStack;
+	private AxisAlignedBB m_nodeBox;
+	private AxisAlignedBB m_nextNodeBox;
+	private AxisAlignedBB m_otherNodeBox;
+	private AxisAlignedBB m_shipBlockBox;
+	private AxisAlignedBB m_nextShipBlockBox;
+	private AxisAlignedBB m_shipTrajectoryBox;
+	private AxisAlignedBB m_otherBlockBox;
+	private List<AxisAlignedBB> m_otherBoxes;
 	@SideOnly( Side.CLIENT )
 	private ShipDebugRenderInfo m_debugRenderInfo;
 	
 	public ShipCollider( EntityShip ship )
 	{
 		m_ship = ship;
+		m_queryCursor = new ShipOccupancy.Cursor();
+		m_rayCursor = new ShipOccupancy.RayCursor();
+		m_possibleCollisions = new CollisionBoxList();
+		m_blockBoxes = new ArrayList<AxisAlignedBB>();
+		m_oldEntityBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_newEntityBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_tempBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_queryBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_trajectoryBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_tempPos = Vec3.createVectorHelper( 0, 0, 0 );
+		m_delta = Vec3.createVectorHelper( 0, 0, 0 );
+		m_nodeStack = new int[64];
+		m_nodeBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_nextNodeBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_otherNodeBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_shipBlockBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_nextShipBlockBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_shipTrajectoryBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_otherBlockBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_otherBoxes = new ArrayList<AxisAlignedBB>();
 		
 		if( Environment.isClient() )
 		{
@@ -128,8 +161,8 @@ public class ShipCollider
 		}
 		
 		// get a box for the entity's original positions
-		AxisAlignedBB oldEntityBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
-		getEntityBoxInBlockSpace( oldEntityBox, entity, Vec3.createVectorHelper( oldX, oldY, oldZ ) );
+		AxisAlignedBB oldEntityBox = m_oldEntityBox;
+		getEntityBoxInBlockSpace( oldEntityBox, entity, oldX, oldY, oldZ );
 		
 		// to make collisions for standing on blocks more robust, if the old box is JUST beneath the top of a block, pop it up.
 		final double Epsilon = 1e-1;
@@ -141,7 +174,7 @@ public class ShipCollider
 		}
 		
 		// get a box for the entity's current position
-		AxisAlignedBB newEntityBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		AxisAlignedBB newEntityBox = m_newEntityBox;
 		getEntityBoxInBlockSpace( newEntityBox, entity );
 		
 		// adjust the old box for the old ySize
@@ -151,7 +184,7 @@ public class ShipCollider
 		
 		if( Environment.isClient() && ShipDebugRenderInfo.isDebugRenderingOn() && entity instanceof EntityLivingBase )
 		{
-			m_debugRenderInfo.setQueryBox( entity, oldEntityBox );
+			m_debugRenderInfo.setQueryBox( entity, oldEntityBox.copy() );
 		}
 		
 		// get the deltas in blocks coordinates
@@ -173,15 +206,16 @@ public class ShipCollider
 			
 			// reduce the movement delta to ensure player is always standing on a ship block
 			final double StepSize = 0.05;
-			while( dx != 0 && m_ship.getShipWorld().getGeometry().rangeQuery( oldEntityBox.getOffsetBoundingBox( dx + bufferX, -1.0, 0.0 ) ).isEmpty() )
+			ShipGeometry geometry = m_ship.getShipWorld().getGeometry();
+			while( dx != 0 && !geometry.hasBlocksInRange( getOffsetBox( m_queryBox, oldEntityBox, dx + bufferX, -1.0, 0.0 ) ) )
             {
 				dx = stepTowardsZero( dx, StepSize );
             }
-			while( dz != 0 && m_ship.getShipWorld().getGeometry().rangeQuery( oldEntityBox.getOffsetBoundingBox( 0.0, -1.0, dz + bufferZ ) ).isEmpty() )
+			while( dz != 0 && !geometry.hasBlocksInRange( getOffsetBox( m_queryBox, oldEntityBox, 0.0, -1.0, dz + bufferZ ) ) )
             {
 				dz = stepTowardsZero( dz, StepSize );
             }
-			while( dx != 0 && dz != 0 && m_ship.getShipWorld().getGeometry().rangeQuery( oldEntityBox.getOffsetBoundingBox( dx + bufferX, -1.0, dz + bufferZ ) ).isEmpty() )
+			while( dx != 0 && dz != 0 && !geometry.hasBlocksInRange( getOffsetBox( m_queryBox, oldEntityBox, dx + bufferX, -1.0, dz + bufferZ ) ) )
             {
 				dx = stepTowardsZero( dx, StepSize );
 				dz = stepTowardsZero( dz, StepSize );
@@ -194,13 +228,23 @@ public class ShipCollider
 			newEntityBox.maxZ = oldEntityBox.maxZ + dz;
 		}
 		
-		List<PossibleCollision> possibleCollisions = trajectoryQuery( oldEntityBox, newEntityBox );
+		ShipWorld shipWorld = m_ship.getShipWorld();
+		if( shipWorld == null || shipWorld.getGeometry() == null )
+		{
+			// the ship probably hasn't loaded yet, so there shouldn't be any collisions
+			return;
+		}
+		ShipGeometry geometry = shipWorld.getGeometry();
+		CollisionBoxCache collisionBoxes = shipWorld.getCollisionBoxes();
+		
+		CollisionBoxList possibleCollisions = m_possibleCollisions;
+		trajectoryQuery( possibleCollisions, geometry, collisionBoxes, oldEntityBox, newEntityBox );
 		
 		if( Environment.isClient() && ShipDebugRenderInfo.isDebugRenderingOn() && entity instanceof EntityLivingBase )
 		{
-			for( PossibleCollision collision : possibleCollisions )
+			for( int i=0; i<possibleCollisions.size(); i++ )
 			{
-				m_debugRenderInfo.addCollidedCoord( collision.coords );
+				m_debugRenderInfo.addCollidedCoord( new Coords( possibleCollisions.getX( i ), possibleCollisions.getY( i ), possibleCollisions.getZ( i ) ) );
 			}
 		}
 		
@@ -210,73 +254,101 @@ public class ShipCollider
 			return;
 		}
 		
+		Vec3 delta = collideInBlockSpace( possibleCollisions, geometry, collisionBoxes, oldEntityBox, newEntityBox, originalDx, originalDy, originalDz, dx, dy, dz, entity.stepHeight );
+		dx = delta.xCoord;
+		dy = delta.yCoord;
+		dz = delta.zCoord;
+		
+		// translate back into world coordinates
+		Vec3 newPos = m_tempPos;
+		newPos.xCoord = ( oldEntityBox.minX + oldEntityBox.maxX )/2;
+		newPos.yCoord = oldEntityBox.minY;
+		newPos.zCoord = ( oldEntityBox.minZ + oldEntityBox.maxZ )/2;
+		m_ship.blocksToShip( newPos );
+		m_ship.shipToWorld( newPos );
+		
+		// update the entity properties
+		entity.setPosition( newPos.xCoord, newPos.yCoord + entity.yOffset - entity.ySize, newPos.zCoord );
+		entity.isCollidedHorizontally = originalDx != dx || originalDz != dz;
+		entity.isCollidedVertically = originalDy != dy;
+		entity.onGround = entity.isCollidedVertically && originalDy < 0;
+		entity.isCollided = entity.isCollidedHorizontally || entity.isCollidedVertically;
+		
+		// if we collided, kill the velocity
+		if( originalDx != dx )
+		{
+			entity.motionX = 0;
+		}
+		if( originalDy != dy )
+		{
+			entity.motionY = 0;
+		}
+		if( originalDz != dz )
+		{
+			entity.motionZ = 0;
+		}
+        
+		// update fall state. Sadly, we can't just call this:
+		//entity.updateFallState( dy, entity.onGround );
+		// so we're going have to do it using package injection
+		EntityAccessor.updateFallState( entity, dy, entity.onGround );
+	}
+	
+	Vec3 collideInBlockSpace( CollisionBoxList possibleCollisions, ShipGeometry geometry, CollisionBoxCache collisionBoxes, AxisAlignedBB box, AxisAlignedBB newBox, double originalDx, double originalDy, double originalDz, double dx, double dy, double dz, float stepHeight )
+	{
+		// NOTE: possibleCollisions should hold the trajectoryQuery() for the boxes
+		// the box is moved to its new position, and the deltas are returned in a scratch vector
+		
 		// calculate the actual collision
 		// move along the manhattan path, stopping at the first collision
 		// y first, then x, then z
 		// different orders should give different collisions,
 		// but for a small enough d vector, the difference should be un-noticeable
-		for( PossibleCollision collision : possibleCollisions )
-		{
-			dy = collision.box.calculateYOffset( oldEntityBox, dy );
-		}
+		dy = possibleCollisions.calculateYOffset( box, dy );
 		dy = applyBackoff( dy, originalDy );
-		oldEntityBox.offset( 0, dy, 0 );
+		box.offset( 0, dy, 0 );
 		
-		for( PossibleCollision collision : possibleCollisions )
-		{
-			dx = collision.box.calculateXOffset( oldEntityBox, dx );
-		}
+		dx = possibleCollisions.calculateXOffset( box, dx );
 		dx = applyBackoff( dx, originalDx );
-		oldEntityBox.offset( dx, 0, 0 );
+		box.offset( dx, 0, 0 );
 		
-		for( PossibleCollision collision : possibleCollisions )
-		{
-			dz = collision.box.calculateZOffset( oldEntityBox, dz );
-		}
+		dz = possibleCollisions.calculateZOffset( box, dz );
 		dz = applyBackoff( dz, originalDz );
-		oldEntityBox.offset( 0, 0, dz );
+		box.offset( 0, 0, dz );
 		
 		// handle stairs/slabs
-		if( entity.stepHeight > 0 && ( originalDx != dx || originalDz != dz ) && originalDy != dy )
+		if( stepHeight > 0 && ( originalDx != dx || originalDz != dz ) && originalDy != dy )
 		{
 			// stupid roundoff error grumble grumble...
 			final double EpsilonStairs = 1e-6;
 			
 			// pop up the target over the step height
-			newEntityBox.minY = oldEntityBox.minY + entity.stepHeight + EpsilonStairs;
-			newEntityBox.maxY = oldEntityBox.maxY + entity.stepHeight + EpsilonStairs;
-			possibleCollisions = trajectoryQuery( oldEntityBox, newEntityBox );
+			newBox.minY = box.minY + stepHeight + EpsilonStairs;
+			newBox.maxY = box.maxY + stepHeight + EpsilonStairs;
+			trajectoryQuery( possibleCollisions, geometry, collisionBoxes, box, newBox );
 			
 			// what's the rest of the distance to the target?
-			double originalStairsDx = newEntityBox.minX - oldEntityBox.minX;
-			double originalStairsDy = newEntityBox.minY - oldEntityBox.minY;
-			double originalStairsDz = newEntityBox.minZ - oldEntityBox.minZ;
+			double originalStairsDx = newBox.minX - box.minX;
+			double originalStairsDy = newBox.minY - box.minY;
+			double originalStairsDz = newBox.minZ - box.minZ;
 			
 			double stairsDx = originalStairsDx;
 			double stairsDy = originalStairsDy;
 			double stairsDz = originalStairsDz;
 			
-			AxisAlignedBB tempBox = oldEntityBox.copy();
+			AxisAlignedBB tempBox = m_tempBox;
+			tempBox.setBB( box );
 			if( !possibleCollisions.isEmpty() )
 			{
-				for( PossibleCollision collision : possibleCollisions )
-				{
-					stairsDy = collision.box.calculateYOffset( tempBox, stairsDy );
-				}
+				stairsDy = possibleCollisions.calculateYOffset( tempBox, stairsDy );
 				stairsDy = applyBackoff( stairsDy, originalDy );
 				tempBox.offset( 0, stairsDy, 0 );
 				
-				for( PossibleCollision collision : possibleCollisions )
-				{
-					stairsDx = collision.box.calculateXOffset( tempBox, stairsDx );
-				}
+				stairsDx = possibleCollisions.calculateXOffset( tempBox, stairsDx );
 				stairsDx = applyBackoff( stairsDx, originalDx );
 				tempBox.offset( stairsDx, 0, 0 );
 				
-				for( PossibleCollision collision : possibleCollisions )
-				{
-					stairsDz = collision.box.calculateZOffset( tempBox, stairsDz );
-				}
+				stairsDz = possibleCollisions.calculateZOffset( tempBox, stairsDz );
 				stairsDz = applyBackoff( stairsDz, originalDz );
 				tempBox.offset( 0, 0, stairsDz );
 			}
@@ -292,44 +364,15 @@ public class ShipCollider
 				dx += stairsDx;
 				dy += stairsDy;
 				dz += stairsDz;
-				oldEntityBox.setBB( tempBox );
+				box.setBB( tempBox );
 			}
 		}
 		
-		// translate back into world coordinates
-		Vec3 newPos = Vec3.createVectorHelper(
-			( oldEntityBox.minX + oldEntityBox.maxX )/2,
-			oldEntityBox.minY,
-			( oldEntityBox.minZ + oldEntityBox.maxZ )/2
-		);
-		m_ship.blocksToShip( newPos );
-		m_ship.shipToWorld( newPos );
-		
-		// update the entity properties
-		entity.setPosition( newPos.xCoord, newPos.yCoord + entity.yOffset - entity.ySize, newPos.zCoord );
-		entity.isCollidedHorizontally = originalDx != dx || originalDz != dz;
-		entity.isCollidedVertically = originalDy != dy;
-		entity.onGround = entity.isCollidedVertically && originalDy < 0;
-		entity.isCollided = entity.isCollidedHorizontally || entity.isCollidedVertically;
-		
-		// if we collided, kill the velocity
-		if( originalDx != dx )
-		{
-			entity.motionX = 0;
-		}
-		if( originalDy != dy )
-		{
-			entity.motionY = 0;
-		}
-		if( originalDz != dz )
-		{
-			entity.motionZ = 0;
-		}
-        
-		// update fall state. Sadly, we can't just call this:
-		//entity.updateFallState( dy, entity.onGround );
-		// so we're going have to do it using package injection
-		EntityAccessor.updateFallState( entity, dy, entity.onGround );
+		Vec3 delta = m_delta;
+		delta.xCoord = dx;
+		delta.yCoord = dy;
+		delta.zCoord = dz;
+		return delta;
 	}
 	
 	public AxisAlignedBB getBlockBoxInBlockSpace( Coords coords )
@@ -355,8 +398,12 @@ public class ShipCollider
 	
 	public void getCollisionBoxesInBlockSpace( List<AxisAlignedBB> out, Coords coords, AxisAlignedBB box )
 	{
-		Block block = Block.blocksList[m_ship.getShipWorld().getBlockId( coords )];
-		block.addCollisionBoxesToList( m_ship.getShipWorld(), coords.x, coords.y, coords.z, box, out, null );
+		getCollisionBoxesInBlockSpace( out, coords.x, coords.y, coords.z, box );
+	}
+	
+	public void getCollisionBoxesInBlockSpace( List<AxisAlignedBB> out, int x, int y, int z, AxisAlignedBB box )
+	{
+		m_ship.getShipWorld().getCollisionBoxes().getBoxes( out, x, y, z, box );
 	}
 	
 	public RotatedBB getBlockBoxInWorldSpace( Coords coords )
@@ -434,11 +481,15 @@ public class ShipCollider
 	
 	public void moveShip( double dx, double dy, double dz, float dYaw )
 	{
+		// only blocks on the leading side of the ship's hull can be the first to collide
+		// NOTE: other ships don't move while we do, so the same shell works for ship-vs-ship collisions at any relative yaw
+		BlockSet shellBlocks = m_ship.getShipWorld().getGeometry().getCollisionShell( dx, dy, dz, m_ship.rotationYaw, dYaw );
+		
 		// compute the scaling of the delta (between 0 and 1) that avoids collisions
 		double scaling = 1.0;
 		int numCollidingBoxes = 0;
 		CollisionResult collisionResult = new CollisionResult();
-		for( Coords coords : m_ship.getShipWorld().coords() )
+		for( Coords coords : shellBlocks )
 		{
 			checkBlockCollision( collisionResult, coords, dx, dy, dz, dYaw );
 			if( collisionResult.scaling < 1.0 )
@@ -463,14 +514,14 @@ public class ShipCollider
 			}
 			
 			// handle inter-ship collisions
-			for( Coords coords : m_ship.getShipWorld().coords() )
+			checkShipCollision( collisionResult, shellBlocks, dx, dy, dz, dYaw, ship );
+			if( collisionResult.scaling < 1.0 )
 			{
-				checkShipCollision( collisionResult, coords, dx, dy, dz, dYaw, ship );
-				if( collisionResult.scaling < 1.0 )
-				{
-					scaling = Math.min( scaling, collisionResult.scaling );
-					numCollidingBoxes += collisionResult.numCollidingBoxes;
-				}
+				scaling = Math.min( scaling, collisionResult.scaling );
+				numCollidingBoxes += collisionResult.numCollidingBoxes;
+				
+				// we bumped into the other ship, so it should react
+				ship.wakeUp();
 			}
 		}
 		
@@ -549,7 +600,7 @@ public class ShipCollider
 	public boolean isEntityStandingOnBlock( Entity entity )
 	{
 		// get the bounding box of the entity in block space
-		AxisAlignedBB checkBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		AxisAlignedBB checkBox = m_tempBox;
 		getEntityBoxInBlockSpace( checkBox, entity );
 		
 		// change the box so it only occupies space JUST UNDER the entity
@@ -557,23 +608,34 @@ public class ShipCollider
 		checkBox.minY -= 0.1;
 		
 		// get the list of nearby boxes that could be colliding
-		List<AxisAlignedBB> nearbyBoxes = new ArrayList<AxisAlignedBB>();
-		for( Coords coords : m_ship.getShipWorld().getGeometry().rangeQuery( checkBox.expand( 0, 1, 0 ) ) )
+		List<AxisAlignedBB> nearbyBoxes = m_blockBoxes;
+		nearbyBoxes.clear();
+		m_queryBox.setBounds( checkBox.minX, checkBox.minY - 1, checkBox.minZ, checkBox.maxX, checkBox.maxY + 1, checkBox.maxZ );
+		m_ship.getShipWorld().getGeometry().rangeQuery( m_queryCursor, m_queryBox );
+		while( m_queryCursor.next() )
 		{
-			getCollisionBoxesInBlockSpace( nearbyBoxes, coords, checkBox );
+			getCollisionBoxesInBlockSpace( nearbyBoxes, m_queryCursor.x, m_queryCursor.y, m_queryCursor.z, checkBox );
+			if( !nearbyBoxes.isEmpty() )
+			{
+				return true;
+			}
 		}
-		return !nearbyBoxes.isEmpty();
+		return false;
 	}
 	
 	public boolean isEntityOnLadder( EntityLivingBase entity )
 	{
 		ShipWorld shipWorld = m_ship.getShipWorld();
-		AxisAlignedBB entityBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		AxisAlignedBB entityBox = m_tempBox;
 		getEntityBoxInBlockSpace( entityBox, entity );
-		for( Coords coords : shipWorld.getGeometry().rangeQuery( entityBox ) )
+		shipWorld.getGeometry().rangeQuery( m_queryCursor, entityBox );
+		while( m_queryCursor.next() )
 		{
-			Block block = Block.blocksList[shipWorld.getBlockId( coords )];
-			if( block != null && block.isLadder( shipWorld, coords.x, coords.y, coords.z, entity ) )
+			int x = m_queryCursor.x;
+			int y = m_queryCursor.y;
+			int z = m_queryCursor.z;
+			Block block = Block.blocksList[shipWorld.getBlockId( x, y, z )];
+			if( block != null && block.isLadder( shipWorld, x, y, z, entity ) )
 			{
 				return true;
 			}
@@ -583,14 +645,56 @@ public class ShipCollider
 	
 	public boolean isColliding( AxisAlignedBB box )
 	{
-		// UNDONE: can optimize this by converting box into ship coords and doing a range query
+		return isColliding(
+			box,
+			m_ship.getShipWorld().getGeometry(),
+			m_ship.posX, m_ship.posY, m_ship.posZ, m_ship.rotationYaw,
+			m_ship.blocksToShipX( 0 ), m_ship.blocksToShipY( 0 ), m_ship.blocksToShipZ( 0 )
+		);
+	}
+	
+	boolean isColliding( AxisAlignedBB box, ShipGeometry geometry, double shipX, double shipY, double shipZ, float shipYaw, double shipBlockX, double shipBlockY, double shipBlockZ )
+	{
+		// NOTE: every block has the same world bounding box (see getBlockBoundingBox()),
+		// so a block collides with the box exactly when its center is inside the box grown by the block half-size
+		float yawRad = (float)Math.toRadians( shipYaw );
+		double halfSize = Math.max(
+			Math.abs( MathHelper.cos( yawRad ) - MathHelper.sin( yawRad ) ),
+			Math.abs( MathHelper.sin( yawRad ) + MathHelper.cos( yawRad ) )
+		)/2;
+		double minX = box.minX - halfSize;
+		double minY = box.minY - 0.5;
+		double minZ = box.minZ - halfSize;
+		double maxX = box.maxX + halfSize;
+		double maxY = box.maxY + 0.5;
+		double maxZ = box.maxZ + halfSize;
 		
-		for( Coords coords : m_ship.getShipWorld().coords() )
+		// transform the grown box into blocks space, then convert from block centers to block corners
+		// NOTE: this matches EntityShip.worldToShip() and shipToBlocks()
+		double yaw = Math.toRadians( shipYaw );
+		double cos = Math.cos( yaw );
+		double sin = Math.sin( yaw );
+		m_queryBox.setBounds(
+			Double.POSITIVE_INFINITY, minY - shipY - shipBlockY - 0.5, Double.POSITIVE_INFINITY,
+			Double.NEGATIVE_INFINITY, maxY - shipY - shipBlockY - 0.5, Double.NEGATIVE_INFINITY
+		);
+		expandQueryBox( minX - shipX, minZ - shipZ, cos, sin, shipBlockX, shipBlockZ );
+		expandQueryBox( minX - shipX, maxZ - shipZ, cos, sin, shipBlockX, shipBlockZ );
+		expandQueryBox( maxX - shipX, minZ - shipZ, cos, sin, shipBlockX, shipBlockZ );
+		expandQueryBox( maxX - shipX, maxZ - shipZ, cos, sin, shipBlockX, shipBlockZ );
+		
+		// check the blocks in range, but stop at the first collision
+		geometry.rangeQuery( m_queryCursor, m_queryBox );
+		while( m_queryCursor.next() )
 		{
-			AxisAlignedBB shipBlockBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
-			getBlockWorldBoundingBox( shipBlockBox, coords );
+			// this matches EntityShip.blocksToShip() and shipToWorld()
+			double x = m_queryCursor.x + 0.5 + shipBlockX;
+			double y = m_queryCursor.y + 0.5 + shipBlockY + shipY;
+			double z = m_queryCursor.z + 0.5 + shipBlockZ;
+			double worldX = x*cos + z*sin + shipX;
+			double worldZ = -x*sin + z*cos + shipZ;
 			
-			if( shipBlockBox.intersectsWith( box ) )
+			if( worldX > minX && worldX < maxX && y > minY && y < maxY && worldZ > minZ && worldZ < maxZ )
 			{
 				return true;
 			}
@@ -598,27 +702,25 @@ public class ShipCollider
 		return false;
 	}
 	
-	public List<MovingObjectPosition> lineSegmentQuery( final Vec3 from, Vec3 to )
+	private void expandQueryBox( double dx, double dz, double cos, double sin, double shipBlockX, double shipBlockZ )
 	{
-		// do a range query using the bounding box of the line segment
-		AxisAlignedBB box = AxisAlignedBB.getBoundingBox(
-			Math.min( from.xCoord, to.xCoord ),
-			Math.min( from.yCoord, to.yCoord ),
-			Math.min( from.zCoord, to.zCoord ),
-			Math.max( from.xCoord, to.xCoord ),
-			Math.max( from.yCoord, to.yCoord ),
-			Math.max( from.zCoord, to.zCoord )
-		);
-		BlockSet nearbyBlocks = m_ship.getShipWorld().getGeometry().rangeQuery( box );
-		
-		// sort the boxes by their line/box intersection distance to the "from" point
-		// throw out boxes that don't actually intersect the line segment
+		double blockX = dx*cos - dz*sin - shipBlockX - 0.5;
+		double blockZ = dx*sin + dz*cos - shipBlockZ - 0.5;
+		m_queryBox.minX = Math.min( m_queryBox.minX, blockX );
+		m_queryBox.minZ = Math.min( m_queryBox.minZ, blockZ );
+		m_queryBox.maxX = Math.max( m_queryBox.maxX, blockX );
+		m_queryBox.maxZ = Math.max( m_queryBox.maxZ, blockZ );
+	}
+	
+	public List<MovingObjectPosition> lineSegmentQuery( Vec3 from, Vec3 to )
+	{
+		// walk the blocks along the line segment and ray trace each one
+		// NOTE: the hits come out sorted by their distance to the "from" point
 		List<MovingObjectPosition> intersections = new ArrayList<MovingObjectPosition>();
-		for( Coords coords : nearbyBlocks )
+		m_ship.getShipWorld().getGeometry().lineSegmentQuery( m_rayCursor, from, to );
+		while( m_rayCursor.next() )
 		{
-			// get the intersection point with the line segment
-			Block block = Block.blocksList[m_ship.getShipWorld().getBlockId( coords )];
-			MovingObjectPosition intersection = block.collisionRayTrace( m_ship.getShipWorld(), coords.x, coords.y, coords.z, from, to );
+			MovingObjectPosition intersection = rayTraceBlock( m_rayCursor.x, m_rayCursor.y, m_rayCursor.z, from, to );
 			if( intersection != null )
 			{
 				intersections.add( intersection );
@@ -627,6 +729,46 @@ public class ShipCollider
 		return intersections;
 	}
 	
+	public MovingObjectPosition lineSegmentQueryClosest( Vec3 from, Vec3 to )
+	{
+		// walk the blocks along the line segment and stop at the first hit
+		// NOTE: a block's hit is never before the segment enters its cell,
+		// but it can be after the segment enters the next cell, so keep going until we pass the hit
+		double length = from.distanceTo( to );
+		MovingObjectPosition closestHit = null;
+		double closestDist = Double.POSITIVE_INFINITY;
+		m_ship.getShipWorld().getGeometry().lineSegmentQuery( m_rayCursor, from, to );
+		while( m_rayCursor.next() )
+		{
+			if( m_rayCursor.t*length > closestDist )
+			{
+				break;
+			}
+			
+			MovingObjectPosition intersection = rayTraceBlock( m_rayCursor.x, m_rayCursor.y, m_rayCursor.z, from, to );
+			if( intersection != null )
+			{
+				double dist = from.distanceTo( intersection.hitVec );
+				if( dist < closestDist )
+				{
+					closestHit = intersection;
+					closestDist = dist;
+				}
+			}
+		}
+		return closestHit;
+	}
+	
+	private MovingObjectPosition rayTraceBlock( int x, int y, int z, Vec3 from, Vec3 to )
+	{
+		Block block = Block.blocksList[m_ship.getShipWorld().getBlockId( x, y, z )];
+		if( block == null )
+		{
+			return null;
+		}
+		return block.collisionRayTrace( m_ship.getShipWorld(), x, y, z, from, to );
+	}
+	
 	public double getDistanceSqToEntity( Entity entity )
 	{
 		// find the nearest neighbor block of entity
@@ -650,12 +792,12 @@ public class ShipCollider
 		return Math.sqrt( minDistSq );
 	}
 	
-	public void getIntersectingWorldBlocks( BlockSet worldBlocks, BlockSet shipBlocks )
+	public void getIntersectingWorldBlocks( BlockSet worldBlocks, Set<Coords> shipBlocks )
 	{
 		getIntersectingWorldBlocks( worldBlocks, shipBlocks, 0, false );
 	}
 	
-	public void getIntersectingWorldBlocks( BlockSet worldBlocks, BlockSet shipBlocks, double epsilon, boolean includeAir )
+	public void getIntersectingWorldBlocks( BlockSet worldBlocks, Set<Coords> shipBlocks, double epsilon, boolean includeAir )
 	{
 		// find the world blocks that intersect the trapped air blocks
 		AxisAlignedBB box = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
@@ -728,40 +870,234 @@ public class ShipCollider
         result.numCollidingBoxes = nearbyWorldBlocks.size();
 	}
 	
-	private void checkShipCollision( CollisionResult result, Coords coords, double dx, double dy, double dz, float dYaw, EntityShip ship )
+	private void checkShipCollision( CollisionResult result, BlockSet shellBlocks, double dx, double dy, double dz, float dYaw, EntityShip ship )
 	{
 		// NOTE: all inter-ship collision calculations take place in the other ship's coordinate system
 		
-		// get the current bounding box for the ship block
-		AxisAlignedBB shipBlockBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
-		getBlockBoundingBox( shipBlockBox, coords, ship );
+		result.scaling = 1;
+		result.numCollidingBoxes = 0;
 		
-		// where would the ship block move to?
-		double nextX = m_ship.posX + dx;
-		double nextY = m_ship.posY + dy;
-		double nextZ = m_ship.posZ + dz;
-		float nextYaw = m_ship.rotationYaw + dYaw;
-		AxisAlignedBB nextShipBlockBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
- 		getBlockBoundingBox( nextShipBlockBox, coords, nextX, nextY, nextZ, nextYaw, ship );
- 		
- 		// get the collisions with the other ship
- 		List<PossibleCollision> possibleCollisions = trajectoryQuery( shipBlockBox, nextShipBlockBox );
-        
-        // get the scaling that avoids the collisions
-        result.scaling = 1;
-        result.numCollidingBoxes = 0;
-        for( PossibleCollision possibleCollision : possibleCollisions )
+		if( ship.getShipWorld() == null || ship.getShipWorld().getGeometry() == null )
+		{
+			// the other ship hasn't loaded yet, so there can't be any collisions
+			return;
+		}
+		
+		// get the transforms from our blocks space into the other ship's blocks space, before and after the move
+		double[] transform = getBlocksToBlocksTransform(
+			m_ship.posX, m_ship.posY, m_ship.posZ, m_ship.rotationYaw, ship
+		);
+		double[] nextTransform = getBlocksToBlocksTransform(
+			m_ship.posX + dx, m_ship.posY + dy, m_ship.posZ + dz, m_ship.rotationYaw + dYaw, ship
+		);
+		
+		checkShipCollision(
+			result, shellBlocks,
+			m_ship.getShipWorld().getGeometry().getBoxTree(), transform, nextTransform,
+			ship.getShipWorld().getGeometry().getBoxTree(), ship.getShipWorld().getCollisionBoxes()
+		);
+	}
+	
+	void checkShipCollision( CollisionResult result, BlockSet shellBlocks, ShipBoxTree tree, double[] transform, double[] nextTransform, ShipBoxTree otherTree, CollisionBoxCache otherCollisionBoxes )
+	{
+		result.scaling = 1;
+		result.numCollidingBoxes = 0;
+		
+		if( tree.getNumNodes() == 0 || otherTree.getNumNodes() == 0 )
+		{
+			return;
+		}
+		
+		// traverse both trees together, looking for pairs of leaves that could collide
+		AxisAlignedBB box = m_nodeBox;
+		AxisAlignedBB nextBox = m_nextNodeBox;
+		AxisAlignedBB otherBox = m_otherNodeBox;
+		int stackSize = 0;
+		m_nodeStack[stackSize++] = tree.getRoot();
+		m_nodeStack[stackSize++] = otherTree.getRoot();
+		while( stackSize > 0 )
+		{
+			int otherNode = m_nodeStack[--stackSize];
+			int node = m_nodeStack[--stackSize];
+			
+			// get the box swept by our node in the other ship's blocks space
+			transformBox( tree.getBox( box, node ), transform );
+			transformBox( tree.getBox( nextBox, node ), nextTransform );
+			unionBox( box, nextBox );
+			
+			// NOTE: grow the other box by 1 so we pick up collision boxes that stick out of their blocks (e.g. fences)
+			otherTree.getBox( otherBox, otherNode );
+			otherBox.setBounds(
+				otherBox.minX - 1, otherBox.minY - 1, otherBox.minZ - 1,
+				otherBox.maxX + 1, otherBox.maxY + 1, otherBox.maxZ + 1
+			);
+			if( !box.intersectsWith( otherBox ) )
+			{
+				continue;
+			}
+			
+			boolean isLeaf = tree.isLeaf( node );
+			boolean isOtherLeaf = otherTree.isLeaf( otherNode );
+			if( isLeaf && isOtherLeaf )
+			{
+				checkLeafCollision( result, shellBlocks, tree, node, transform, nextTransform, otherTree, otherNode, otherCollisionBoxes );
+				continue;
+			}
+			
+			// make room on the stack for two more pairs
+			if( stackSize + 4 > m_nodeStack.length )
+			{
+				m_nodeStack = Arrays.copyOf( m_nodeStack, m_nodeStack.length*2 );
+			}
+			
+			// descend into the bigger node
+			if( isOtherLeaf || ( !isLeaf && tree.getVolume( node ) >= otherTree.getVolume( otherNode ) ) )
+			{
+				m_nodeStack[stackSize++] = tree.getLeftChild( node );
+				m_nodeStack[stackSize++] = otherNode;
+				m_nodeStack[stackSize++] = tree.getRightChild( node );
+				m_nodeStack[stackSize++] = otherNode;
+			}
+			else
+			{
+				m_nodeStack[stackSize++] = node;
+				m_nodeStack[stackSize++] = otherTree.getLeftChild( otherNode );
+				m_nodeStack[stackSize++] = node;
+				m_nodeStack[stackSize++] = otherTree.getRightChild( otherNode );
+			}
+		}
+	}
+	
+	private void checkLeafCollision( CollisionResult result, BlockSet shellBlocks, ShipBoxTree tree, int node, double[] transform, double[] nextTransform, ShipBoxTree otherTree, int otherNode, CollisionBoxCache otherCollisionBoxes )
+	{
+		AxisAlignedBB shipBlockBox = m_shipBlockBox;
+		AxisAlignedBB nextShipBlockBox = m_nextShipBlockBox;
+		AxisAlignedBB trajectoryBox = m_shipTrajectoryBox;
+		AxisAlignedBB otherBlockBox = m_otherBlockBox;
+		List<AxisAlignedBB> otherBoxes = m_otherBoxes;
+		for( int i=tree.getBlocksStart( node ); i<tree.getBlocksEnd( node ); i++ )
 		{
-        	double scaling = getScalingToAvoidCollision( shipBlockBox, dx, dy, dz, possibleCollision.box );
-       		result.scaling = Math.min( result.scaling, scaling );
-       		if( scaling < 1 )
-       		{
-       			result.numCollidingBoxes++;
-       		}
+			// only the leading blocks can collide
+			Coords coords = tree.getBlock( i );
+			if( !shellBlocks.contains( coords ) )
+			{
+				continue;
+			}
+			
+			// get the box swept by the block in the other ship's blocks space
+			shipBlockBox.setBounds( coords.x, coords.y, coords.z, coords.x + 1, coords.y + 1, coords.z + 1 );
+			transformBox( shipBlockBox, transform );
+			nextShipBlockBox.setBounds( coords.x, coords.y, coords.z, coords.x + 1, coords.y + 1, coords.z + 1 );
+			transformBox( nextShipBlockBox, nextTransform );
+			trajectoryBox.setBB( shipBlockBox );
+			unionBox( trajectoryBox, nextShipBlockBox );
+			
+			// the block moves along a different delta in the other ship's blocks space
+			double blockDx = nextShipBlockBox.minX - shipBlockBox.minX;
+			double blockDy = nextShipBlockBox.minY - shipBlockBox.minY;
+			double blockDz = nextShipBlockBox.minZ - shipBlockBox.minZ;
+			
+			for( int j=otherTree.getBlocksStart( otherNode ); j<otherTree.getBlocksEnd( otherNode ); j++ )
+			{
+				// NOTE: grow the block box by 1 so we pick up collision boxes that stick out of their blocks
+				Coords otherCoords = otherTree.getBlock( j );
+				otherBlockBox.setBounds(
+					otherCoords.x - 1, otherCoords.y - 1, otherCoords.z - 1,
+					otherCoords.x + 2, otherCoords.y + 2, otherCoords.z + 2
+				);
+				if( !otherBlockBox.intersectsWith( trajectoryBox ) )
+				{
+					continue;
+				}
+				
+				// get the scaling that avoids the collisions
+				otherBoxes.clear();
+				otherCollisionBoxes.getBoxes( otherBoxes, otherCoords.x, otherCoords.y, otherCoords.z, trajectoryBox );
+				for( AxisAlignedBB otherBox : otherBoxes )
+				{
+					double scaling = getScalingToAvoidCollision( shipBlockBox, blockDx, blockDy, blockDz, otherBox );
+					result.scaling = Math.min( result.scaling, scaling );
+					if( scaling < 1 )
+					{
+						result.numCollidingBoxes++;
+					}
+				}
+			}
 		}
 	}
 	
-	private double getScalingToAvoidCollision( AxisAlignedBB box, double dx, double dy, double dz, AxisAlignedBB obstacleBox )
+	private double[] getBlocksToBlocksTransform( double shipX, double shipY, double shipZ, float shipYaw, EntityShip ship )
+	{
+		// temporarily place the ship at the new position
+		double oldX = m_ship.posX;
+		double oldY = m_ship.posY;
+		double oldZ = m_ship.posZ;
+		float oldYaw = m_ship.rotationYaw;
+		m_ship.posX = shipX;
+		m_ship.posY = shipY;
+		m_ship.posZ = shipZ;
+		m_ship.rotationYaw = shipYaw;
+		
+		// the transform is affine and only rotates around y, so the images of the origin and the x and z axes are enough
+		double[] transform = new double[9];
+		Vec3 p = Vec3.createVectorHelper( 0, 0, 0 );
+		for( int i=0; i<3; i++ )
+		{
+			p.xCoord = i == 1 ? 1 : 0;
+			p.yCoord = 0;
+			p.zCoord = i == 2 ? 1 : 0;
+			m_ship.blocksToShip( p );
+			m_ship.shipToWorld( p );
+			ship.worldToShip( p );
+			ship.shipToBlocks( p );
+			transform[i*3] = p.xCoord;
+			transform[i*3 + 1] = p.yCoord;
+			transform[i*3 + 2] = p.zCoord;
+		}
+		for( int i=3; i<9; i++ )
+		{
+			transform[i] -= transform[i%3];
+		}
+		
+		// restore the ship before anyone notices =P
+		m_ship.posX = oldX;
+		m_ship.posY = oldY;
+		m_ship.posZ = oldZ;
+		m_ship.rotationYaw = oldYaw;
+		
+		return transform;
+	}
+	
+	private static void transformBox( AxisAlignedBB box, double[] transform )
+	{
+		double halfX = ( box.maxX - box.minX )/2;
+		double halfY = ( box.maxY - box.minY )/2;
+		double halfZ = ( box.maxZ - box.minZ )/2;
+		double centerX = box.minX + halfX;
+		double centerY = box.minY + halfY;
+		double centerZ = box.minZ + halfZ;
+		
+		// transform the center, and get the bounding box of the rotated extents
+		double x = transform[0] + centerX*transform[3] + centerZ*transform[6];
+		double y = transform[1] + centerY;
+		double z = transform[2] + centerX*transform[5] + centerZ*transform[8];
+		double extentX = Math.abs( transform[3] )*halfX + Math.abs( transform[6] )*halfZ;
+		double extentZ = Math.abs( transform[5] )*halfX + Math.abs( transform[8] )*halfZ;
+		box.setBounds(
+			x - extentX, y - halfY, z - extentZ,
+			x + extentX, y + halfY, z + extentZ
+		);
+	}
+	
+	private static void unionBox( AxisAlignedBB box, AxisAlignedBB other )
+	{
+		box.setBounds(
+			Math.min( box.minX, other.minX ), Math.min( box.minY, other.minY ), Math.min( box.minZ, other.minZ ),
+			Math.max( box.maxX, other.maxX ), Math.max( box.maxY, other.maxY ), Math.max( box.maxZ, other.maxZ )
+		);
+	}
+	
+	static double getScalingToAvoidCollision( AxisAlignedBB box, double dx, double dy, double dz, AxisAlignedBB obstacleBox )
 	{
 		double sx = getScalingToAvoidCollision( dx, box.minX, box.maxX, obstacleBox.minX, obstacleBox.maxX );
 		double sy = getScalingToAvoidCollision( dy, box.minY, box.maxY, obstacleBox.minY, obstacleBox.maxY );
@@ -769,7 +1105,7 @@ public class ShipCollider
 		return Math.min( sx, Math.min( sy, sz ) );
 	}
 	
-	private double getScalingToAvoidCollision( double delta, double selfMin, double selfMax, double obstacleMin, double obstacleMax )
+	private static double getScalingToAvoidCollision( double delta, double selfMin, double selfMax, double obstacleMin, double obstacleMax )
 	{
 		// by default, don't scale the delta
 		double scaling = 1;
@@ -828,40 +1164,41 @@ public class ShipCollider
 		return d;
 	}
 	
-	private List<PossibleCollision> trajectoryQuery( AxisAlignedBB oldBox, AxisAlignedBB newBox )
+	void trajectoryQuery( CollisionBoxList out, ShipGeometry geometry, CollisionBoxCache collisionBoxes, AxisAlignedBB oldBox, AxisAlignedBB newBox )
 	{
+		out.clear();
+		
 		// get a bounding box containing the entire entity trajectory
-		AxisAlignedBB trajectoryBox = oldBox.func_111270_a( newBox );
+		AxisAlignedBB trajectoryBox = m_trajectoryBox;
+		trajectoryBox.setBounds(
+			Math.min( oldBox.minX, newBox.minX ), Math.min( oldBox.minY, newBox.minY ), Math.min( oldBox.minZ, newBox.minZ ),
+			Math.max( oldBox.maxX, newBox.maxX ), Math.max( oldBox.maxY, newBox.maxY ), Math.max( oldBox.maxZ, newBox.maxZ )
+		);
 		
 		// collect the boxes for the blocks in the trajectory box
-		List<AxisAlignedBB> boxes = new ArrayList<AxisAlignedBB>();
-		List<PossibleCollision> collisions = new ArrayList<PossibleCollision>();
-		if( m_ship != null && m_ship.getShipWorld() != null && m_ship.getShipWorld().getGeometry() != null )
-		// NOTE: if one of these things is null, the ship probably hasn't loaded yet, so there shouldn't be any collisions
+		// NOTE: expand trajectoryBox by 1 so we pick up boxes whose collision boxes are outside their bounding boxes
+		m_queryBox.setBounds(
+			trajectoryBox.minX - 1, trajectoryBox.minY - 1, trajectoryBox.minZ - 1,
+			trajectoryBox.maxX + 1, trajectoryBox.maxY + 1, trajectoryBox.maxZ + 1
+		);
+		geometry.rangeQuery( m_queryCursor, m_queryBox );
+		while( m_queryCursor.next() )
 		{
-			for( Coords coords : m_ship.getShipWorld().getGeometry().rangeQuery( trajectoryBox.expand( 1, 1, 1 ) ) )
-			// NOTE: expand trajectoryBox by 1 so we pick up boxes whose collision boxes are outside their bounding boxes
-			{
-				boxes.clear();
-				getCollisionBoxesInBlockSpace( boxes, coords, trajectoryBox );
-				for( AxisAlignedBB box : boxes )
-				{
-					collisions.add( new PossibleCollision( coords, box ) );
-				}
-			}
+			collisionBoxes.getBoxes( out, m_queryCursor.x, m_queryCursor.y, m_queryCursor.z, trajectoryBox );
 		}
-		return collisions;
 	}
 	
 	private void getEntityBoxInBlockSpace( AxisAlignedBB box, Entity entity )
 	{
-		getEntityBoxInBlockSpace( box, entity, Vec3.createVectorHelper( entity.posX, entity.posY, entity.posZ ) );
+		getEntityBoxInBlockSpace( box, entity, entity.posX, entity.posY, entity.posZ );
 	}
 	
-	private void getEntityBoxInBlockSpace( AxisAlignedBB box, Entity entity, Vec3 pos )
+	private void getEntityBoxInBlockSpace( AxisAlignedBB box, Entity entity, double x, double y, double z )
 	{
-		// copy the vector since we need to modify it
-		pos = Vec3.createVectorHelper( pos.xCoord, pos.yCoord, pos.zCoord );
+		Vec3 pos = m_tempPos;
+		pos.xCoord = x;
+		pos.yCoord = y;
+		pos.zCoord = z;
 		
 		// transform to block coords
 		m_ship.worldToShip( pos );
@@ -873,6 +1210,14 @@ public class ShipCollider
 		box.offset( pos.xCoord, pos.yCoord, pos.zCoord );
 	}
 	
+	private AxisAlignedBB getOffsetBox( AxisAlignedBB out, AxisAlignedBB box, double dx, double dy, double dz )
+	{
+		return out.setBounds(
+			box.minX + dx, box.minY + dy, box.minZ + dz,
+			box.maxX + dx, box.maxY + dy, box.maxZ + dz
+		);
+	}
+	
 	private double stepTowardsZero( double val, double epsilon )
 	{
 		if( val < epsilon && val >= -epsilon )
@@ -10,60 +10,562 @@
  ******************************************************************************/
 package cuchaz.ships;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import net.minecraft.util.MathHelper;
 import cuchaz.modsShared.blocks.BlockSet;
-import cuchaz.modsShared.blocks.BlockSetHeightIndex;
-import cuchaz.modsShared.blocks.BlockUtils;
+import cuchaz.modsShared.blocks.BlockSide;
 import cuchaz.modsShared.blocks.BlockUtils.Neighbors;
+import cuchaz.modsShared.blocks.BoundingBoxInt;
 import cuchaz.modsShared.blocks.Coords;
 
 public class ShipDisplacement
 {
-	private static class ClassifiedSegment
+	private class LevelView extends AbstractSet<Coords>
 	{
-		BlockSet segment;
-		BlockSet surfaceBlocks;
-		BlockSet underwaterBlocks;
-		boolean isTrapped;
+		// NOTE: a read-only view of the blocks at or below one level
+		// every block is stored once, in the layer where it starts displacing water, so views don't copy anything
+		
+		private int m_level;
+		private boolean m_hasShipAtLevel;
+		private boolean m_hasShipBelow;
+		private boolean m_hasAirAtLevel;
+		private boolean m_hasAirBelow;
+		
+		public LevelView( int y, boolean hasShipAtLevel, boolean hasShipBelow, boolean hasAirAtLevel, boolean hasAirBelow )
+		{
+			m_level = getLevel( y );
+			m_hasShipAtLevel = hasShipAtLevel;
+			m_hasShipBelow = hasShipBelow;
+			m_hasAirAtLevel = hasAirAtLevel;
+			m_hasAirBelow = hasAirBelow;
+		}
+		
+		@Override
+		public int size( )
+		{
+			if( m_level < 0 )
+			{
+				return 0;
+			}
+			
+			int size = 0;
+			if( m_hasShipBelow )
+			{
+				for( int i=0; i<m_level; i++ )
+				{
+					size += m_shipLayers.get( i ).size();
+				}
+			}
+			if( m_hasShipAtLevel )
+			{
+				size += m_shipLayers.get( m_level ).size();
+			}
+			
+			// air trapped in the layer at this level is always still trapped here
+			int numAirAtLevel = m_airLayers.get( m_level ).size();
+			if( m_hasAirBelow )
+			{
+				size += m_numTrappedAir[m_level] - numAirAtLevel;
+			}
+			if( m_hasAirAtLevel )
+			{
+				size += numAirAtLevel;
+			}
+			return size;
+		}
+		
+		@Override
+		public boolean contains( Object o )
+		{
+			if( m_level < 0 || !( o instanceof Coords ) )
+			{
+				return false;
+			}
+			Coords coords = (Coords)o;
+			int layer = coords.y - m_minY;
+			if( layer < 0 || layer > m_level )
+			{
+				return false;
+			}
+			
+			boolean isAtLevel = layer == m_level;
+			if( ( isAtLevel ? m_hasShipAtLevel : m_hasShipBelow ) && m_shipLayers.get( layer ).contains( coords ) )
+			{
+				return true;
+			}
+			if( isAtLevel ? m_hasAirAtLevel : m_hasAirBelow )
+			{
+				return isTrapped( coords, m_minY + m_level );
+			}
+			return false;
+		}
+		
+		@Override
+		public Iterator<Coords> iterator( )
+		{
+			return new Iterator<Coords>( )
+			{
+				// walk the layers from the bottom up, the ship blocks of each layer, then its trapped air
+				private int m_layer = -1;
+				private boolean m_isAir = true;
+				private Iterator<Coords> m_source = null;
+				private Coords m_next = findNext();
+				
+				@Override
+				public boolean hasNext( )
+				{
+					return m_next != null;
+				}
+				
+				@Override
+				public Coords next( )
+				{
+					if( m_next == null )
+					{
+						throw new NoSuchElementException();
+					}
+					Coords coords = m_next;
+					m_next = findNext();
+					return coords;
+				}
+				
+				@Override
+				public void remove( )
+				{
+					throw new UnsupportedOperationException( "Displacement views are read-only." );
+				}
+				
+				private Coords findNext( )
+				{
+					int y = m_minY + m_level;
+					while( true )
+					{
+						if( m_source != null )
+						{
+							while( m_source.hasNext() )
+							{
+								Coords coords = m_source.next();
+								if( !m_isAir || isTrapped( coords, y ) )
+								{
+									return coords;
+								}
+							}
+						}
+						
+						if( m_isAir )
+						{
+							m_layer++;
+						}
+						m_isAir = !m_isAir;
+						if( m_layer > m_level )
+						{
+							return null;
+						}
+						
+						boolean isAtLevel = m_layer == m_level;
+						m_source = null;
+						if( !m_isAir && ( isAtLevel ? m_hasShipAtLevel : m_hasShipBelow ) )
+						{
+							m_source = m_shipLayers.get( m_layer ).iterator();
+						}
+						else if( m_isAir && ( isAtLevel ? m_hasAirAtLevel : m_hasAirBelow ) )
+						{
+							m_source = m_airLayers.get( m_layer ).iterator();
+						}
+					}
+				}
+			};
+		}
 	}
 	
-	private static class DisplacementEntry
+	private static class Grid
 	{
-		public int numFillableBlocks;
-		public BlockSet trappedAir;
-		public BlockSet surfaceBlocks;
-		public BlockSet underwaterBlocks;
+		// NOTE: a dense grid over the ship's bounding box, padded by one block on every side
+		// cells are addressed by packed indices, one xz layer after another. The padding is the shell outside the box
+		
+		public int minX;
+		public int minY;
+		public int minZ;
+		public int sizeX;
+		public int sizeY;
+		public int sizeZ;
+		public int layerSize;
+		public boolean[] isShip;
+		public boolean[] isBoundary;
 		
-		public DisplacementEntry( )
+		private Coords[] m_coords;
+		
+		public Grid( BlockSet blocks, BoundingBoxInt box )
 		{
-			numFillableBlocks = 0;
-			trappedAir = new BlockSet();
-			surfaceBlocks = new BlockSet();
-			underwaterBlocks = new BlockSet();
+			minX = box.minX - 1;
+			minY = box.minY - 1;
+			minZ = box.minZ - 1;
+			sizeX = box.getDx() + 2;
+			sizeY = box.getDy() + 2;
+			sizeZ = box.getDz() + 2;
+			layerSize = sizeX*sizeZ;
+			isShip = new boolean[layerSize*sizeY];
+			isBoundary = new boolean[layerSize*sizeY];
+			m_coords = new Coords[layerSize*sizeY];
+			
+			for( Coords coords : blocks )
+			{
+				isShip[getIndex( coords.x, coords.y, coords.z )] = true;
+			}
+			
+			// the boundary is every void cell touching a ship block on a face or an edge
+			for( Coords coords : blocks )
+			{
+				for( int dx=-1; dx<=1; dx++ )
+				{
+					for( int dy=-1; dy<=1; dy++ )
+					{
+						for( int dz=-1; dz<=1; dz++ )
+						{
+							int dist = Math.abs( dx ) + Math.abs( dy ) + Math.abs( dz );
+							if( dist < 1 || dist > 2 )
+							{
+								continue;
+							}
+							int i = getIndex( coords.x + dx, coords.y + dy, coords.z + dz );
+							isBoundary[i] = !isShip[i];
+						}
+					}
+				}
+			}
+		}
+		
+		public int getNumCells( )
+		{
+			return isShip.length;
+		}
+		
+		public int getIndex( int x, int y, int z )
+		{
+			return ( ( y - minY )*sizeZ + z - minZ )*sizeX + x - minX;
+		}
+		
+		public int getY( int i )
+		{
+			return minY + i/layerSize;
+		}
+		
+		public boolean isPadding( int i )
+		{
+			int x = i%sizeX;
+			int y = i/layerSize;
+			int z = ( i/sizeX )%sizeZ;
+			return x == 0 || x == sizeX - 1 || y == 0 || y == sizeY - 1 || z == 0 || z == sizeZ - 1;
+		}
+		
+		public int getNeighbor( int i, BlockSide side )
+		{
+			// returns -1 if the neighbor is off the grid
+			int x = i%sizeX + side.getDx();
+			int y = i/layerSize + side.getDy();
+			int z = ( i/sizeX )%sizeZ + side.getDz();
+			if( x < 0 || x >= sizeX || y < 0 || y >= sizeY || z < 0 || z >= sizeZ )
+			{
+				return -1;
+			}
+			return ( y*sizeZ + z )*sizeX + x;
+		}
+		
+		public Coords getCoords( int i )
+		{
+			// share the coords between all the sets that need them
+			if( m_coords[i] == null )
+			{
+				m_coords[i] = new Coords( minX + i%sizeX, minY + i/layerSize, minZ + ( i/sizeX )%sizeZ );
+			}
+			return m_coords[i];
+		}
+		
+		public boolean[] getExterior( )
+		{
+			// flood fill the void from the padding
+			boolean[] isExterior = new boolean[getNumCells()];
+			int[] queue = new int[getNumCells()];
+			int tail = 0;
+			for( int i=0; i<getNumCells(); i++ )
+			{
+				if( isPadding( i ) )
+				{
+					isExterior[i] = true;
+					queue[tail++] = i;
+				}
+			}
+			int head = 0;
+			while( head < tail )
+			{
+				int i = queue[head++];
+				for( BlockSide side : BlockSide.values() )
+				{
+					int n = getNeighbor( i, side );
+					if( n >= 0 && !isShip[n] && !isExterior[n] )
+					{
+						isExterior[n] = true;
+						queue[tail++] = n;
+					}
+				}
+			}
+			return isExterior;
+		}
+		
+		public List<BlockSet> getComponents( boolean[] isIncluded )
+		{
+			List<BlockSet> components = new ArrayList<BlockSet>();
+			boolean[] isVisited = new boolean[getNumCells()];
+			int[] queue = new int[getNumCells()];
+			for( int start=0; start<getNumCells(); start++ )
+			{
+				if( !isIncluded[start] || isVisited[start] )
+				{
+					continue;
+				}
+				
+				BlockSet component = new BlockSet();
+				int head = 0;
+				int tail = 0;
+				queue[tail++] = start;
+				isVisited[start] = true;
+				while( head < tail )
+				{
+					int i = queue[head++];
+					component.add( getCoords( i ) );
+					for( BlockSide side : BlockSide.values() )
+					{
+						int n = getNeighbor( i, side );
+						if( n >= 0 && isIncluded[n] && !isVisited[n] )
+						{
+							isVisited[n] = true;
+							queue[tail++] = n;
+						}
+					}
+				}
+				components.add( component );
+			}
+			return components;
+		}
+	}
+	
+	private static class AirComponents
+	{
+		// NOTE: a union-find over the void cells, built one layer at a time from the bottom up
+		// after layer y, each component is the void a water surface at y could see. Components touching the padding are open
+		// when a closed component joins an open one, all of its air is released at once
+		// every union and release is logged by layer, so the layers above an edit can be undone and re-run
+		
+		public static final int NeverReleased = Integer.MAX_VALUE;
+		
+		public int[] releaseY;
+		public int[] numReleased;
+		
+		private Grid m_grid;
+		private int[] m_parents;
+		private int[] m_sizes;
+		private boolean[] m_isOpen;
+		private int[] m_heads;
+		private int[] m_tails;
+		private int[] m_nexts;
+		private int[] m_unionChildren;
+		private int[] m_unionOldTails;
+		private boolean[] m_unionWasOpen;
+		private int m_numUnions;
+		private int[] m_layerNumUnions;
+		private int[] m_releasedCells;
+		private int m_numReleasedCells;
+		private int[] m_layerNumReleasedCells;
+		
+		public AirComponents( Grid grid )
+		{
+			m_grid = grid;
+			int numCells = grid.getNumCells();
+			releaseY = new int[numCells];
+			numReleased = new int[grid.sizeY];
+			m_parents = new int[numCells];
+			m_sizes = new int[numCells];
+			m_isOpen = new boolean[numCells];
+			m_heads = new int[numCells];
+			m_tails = new int[numCells];
+			m_nexts = new int[numCells];
+			
+			// each union joins two components, and each cell is released at most once, so neither log can outgrow the grid
+			m_unionChildren = new int[numCells];
+			m_unionOldTails = new int[numCells];
+			m_unionWasOpen = new boolean[numCells];
+			m_numUnions = 0;
+			m_layerNumUnions = new int[grid.sizeY];
+			m_releasedCells = new int[numCells];
+			m_numReleasedCells = 0;
+			m_layerNumReleasedCells = new int[grid.sizeY];
+			
+			for( int ly=0; ly<grid.sizeY; ly++ )
+			{
+				addLayer( ly );
+			}
+		}
+		
+		public void updateFromLayer( int ly )
+		{
+			// NOTE: the grid has changed at layer ly, but nothing below it has
+			
+			// undo the unions from layer ly up, newest first
+			for( int u=m_numUnions - 1; u>=m_layerNumUnions[ly]; u-- )
+			{
+				int b = m_unionChildren[u];
+				int a = m_parents[b];
+				m_parents[b] = b;
+				m_sizes[a] -= m_sizes[b];
+				m_isOpen[a] = m_unionWasOpen[u];
+				m_nexts[m_unionOldTails[u]] = -1;
+				m_tails[a] = m_unionOldTails[u];
+			}
+			m_numUnions = m_layerNumUnions[ly];
+			
+			// and the releases
+			for( int r=m_layerNumReleasedCells[ly]; r<m_numReleasedCells; r++ )
+			{
+				releaseY[m_releasedCells[r]] = NeverReleased;
+			}
+			m_numReleasedCells = m_layerNumReleasedCells[ly];
+			Arrays.fill( numReleased, Math.max( ly - 1, 0 ), numReleased.length, 0 );
+			
+			// then run the layers again
+			for( int i=ly; i<m_grid.sizeY; i++ )
+			{
+				addLayer( i );
+			}
+		}
+		
+		private void addLayer( int ly )
+		{
+			m_layerNumUnions[ly] = m_numUnions;
+			m_layerNumReleasedCells[ly] = m_numReleasedCells;
+			
+			int y = m_grid.minY + ly;
+			int start = ly*m_grid.layerSize;
+			for( int i=start; i<start + m_grid.layerSize; i++ )
+			{
+				if( m_grid.isShip[i] )
+				{
+					continue;
+				}
+				
+				m_parents[i] = i;
+				m_sizes[i] = 1;
+				m_isOpen[i] = m_grid.isPadding( i );
+				m_heads[i] = i;
+				m_tails[i] = i;
+				m_nexts[i] = -1;
+				releaseY[i] = m_isOpen[i] ? y : NeverReleased;
+				
+				// connect to the void before this cell in x, z, and y
+				if( i%m_grid.sizeX > 0 && !m_grid.isShip[i - 1] )
+				{
+					union( i, i - 1, y );
+				}
+				if( ( i/m_grid.sizeX )%m_grid.sizeZ > 0 && !m_grid.isShip[i - m_grid.sizeX] )
+				{
+					union( i, i - m_grid.sizeX, y );
+				}
+				if( ly > 0 && !m_grid.isShip[i - m_grid.layerSize] )
+				{
+					union( i, i - m_grid.layerSize, y );
+				}
+			}
+		}
+		
+		private int find( int i )
+		{
+			// NOTE: no path compression, so unions can be undone. Union by size keeps the trees shallow
+			while( m_parents[i] != i )
+			{
+				i = m_parents[i];
+			}
+			return i;
+		}
+		
+		private void union( int a, int b, int y )
+		{
+			a = find( a );
+			b = find( b );
+			if( a == b )
+			{
+				return;
+			}
+			
+			if( m_isOpen[a] != m_isOpen[b] )
+			{
+				release( m_isOpen[a] ? b : a, y );
+			}
+			
+			// attach the smaller component to the bigger one
+			if( m_sizes[a] < m_sizes[b] )
+			{
+				int swap = a;
+				a = b;
+				b = swap;
+			}
+			m_unionChildren[m_numUnions] = b;
+			m_unionOldTails[m_numUnions] = m_tails[a];
+			m_unionWasOpen[m_numUnions] = m_isOpen[a];
+			m_numUnions++;
+			m_parents[b] = a;
+			m_sizes[a] += m_sizes[b];
+			m_isOpen[a] = m_isOpen[a] || m_isOpen[b];
+			m_nexts[m_tails[a]] = m_heads[b];
+			m_tails[a] = m_tails[b];
+		}
+		
+		private void release( int root, int y )
+		{
+			// the air below y was trapped at y-1, so it can fill with water at y-1
+			int ly = y - m_grid.minY;
+			for( int i=m_heads[root]; i>=0; i=m_nexts[i] )
+			{
+				releaseY[i] = y;
+				m_releasedCells[m_numReleasedCells++] = i;
+				if( i/m_grid.layerSize < ly )
+				{
+					numReleased[ly - 1]++;
+				}
+			}
 		}
 	}
 	
 	public static final Neighbors BoundaryNeighbors = Neighbors.Edges;
 	public static final Neighbors VoidBlockNeighbors = Neighbors.Faces;
-	private static final DisplacementEntry EmptyEntry = new DisplacementEntry();
 	
 	private BlockSet m_blocks;
 	private List<BlockSet> m_outerBoundaries;
 	private List<BlockSet> m_holes;
-	private TreeMap<Integer,DisplacementEntry> m_displacement;
+	private int m_minY;
+	private List<BlockSet> m_shipLayers;
+	private List<List<Coords>> m_airLayers;
+	private Map<Coords,Integer> m_releaseYs;
+	private int[] m_numTrappedAir;
+	private int[] m_numFillableBlocks;
+	private Grid m_grid;
+	private AirComponents m_air;
+	private boolean m_isTrappedAirChanged;
 	
 	public ShipDisplacement( BlockSet blocks )
 	{
 		m_blocks = blocks;
-		m_outerBoundaries = new ArrayList<BlockSet>();
+		m_outerBoundaries = null;
 		m_holes = null;
 		
-		computeBoundaryAndHoles();
+		// NOTE: the boundaries aren't needed for the displacement, so they're only computed if someone asks
 		computeDisplacement();
 	}
 	
@@ -74,14 +576,76 @@ public class ShipDisplacement
 	
 	public List<BlockSet> getOuterBoundaries( )
 	{
+		if( m_outerBoundaries == null )
+		{
+			computeBoundaryAndHoles();
+		}
 		return m_outerBoundaries;
 	}
 	
 	public List<BlockSet> getHoles( )
 	{
+		if( m_holes == null )
+		{
+			computeBoundaryAndHoles();
+		}
 		return m_holes;
 	}
 	
+	public boolean tryAddBlock( Coords coords )
+	{
+		m_isTrappedAirChanged = false;
+		if( m_blocks.contains( coords ) )
+		{
+			return true;
+		}
+		coords = new Coords( coords.x, coords.y, coords.z );
+		BoundingBoxInt oldBox = m_blocks.getBoundingBox();
+		m_blocks.add( coords );
+		if( !canPatch( coords, oldBox ) )
+		{
+			m_blocks.remove( coords );
+			return false;
+		}
+		
+		// the block is now displacing water at its own level and below the surface above it
+		m_shipLayers.get( coords.y - m_minY ).add( coords );
+		updateTrappedAir( coords, true );
+		onPatched();
+		return true;
+	}
+	
+	public boolean tryRemoveBlock( Coords coords )
+	{
+		m_isTrappedAirChanged = false;
+		if( !m_blocks.contains( coords ) )
+		{
+			return true;
+		}
+		BoundingBoxInt oldBox = m_blocks.getBoundingBox();
+		if( !canPatch( coords, oldBox ) )
+		{
+			return false;
+		}
+		m_blocks.remove( coords );
+		if( !isSameBox( oldBox, m_blocks.getBoundingBox() ) )
+		{
+			m_blocks.add( coords );
+			return false;
+		}
+		
+		m_shipLayers.get( coords.y - m_minY ).remove( coords );
+		updateTrappedAir( coords, false );
+		onPatched();
+		return true;
+	}
+	
+	public boolean isTrappedAirChanged( )
+	{
+		// did the last patch change where any air is trapped?
+		return m_isTrappedAirChanged;
+	}
+	
 	public int getMinY( )
 	{
 		return m_blocks.getBoundingBox().minY;
@@ -92,12 +656,12 @@ public class ShipDisplacement
 		return m_blocks.getBoundingBox().maxY;
 	}
 	
-	public BlockSet getTrappedAir( int y )
+	public Set<Coords> getTrappedAir( int y )
 	{
-		return get( y ).trappedAir;
+		return new LevelView( y, false, false, true, true );
 	}
 	
-	public BlockSet getTrappedAirFromWaterHeight( int waterHeightInBlockSpace )
+	public Set<Coords> getTrappedAirFromWaterHeight( int waterHeightInBlockSpace )
 	{
 		// remember, the water height is the y-value of the surface of the water
 		// it's always at the top of the water block
@@ -105,259 +669,345 @@ public class ShipDisplacement
 		return getTrappedAir( waterHeightInBlockSpace - 1 );
 	}
 
-	public BlockSet getTrappedAirFromWaterHeight( double waterHeightInBlockSpace )
+	public Set<Coords> getTrappedAirFromWaterHeight( double waterHeightInBlockSpace )
 	{
 		// for double water height values, round up to the top of the block, then subtract 1
 		// or, just round down
 		return getTrappedAir( MathHelper.floor_double( waterHeightInBlockSpace ) );
 	}
 	
-	public BlockSet getSurfaceBlocks( int y )
+	public Set<Coords> getSurfaceBlocks( int y )
 	{
-		return get( y ).surfaceBlocks;
+		return new LevelView( y, true, false, true, false );
 	}
 	
-	public BlockSet getUnderwaterBlocks( int y )
+	public Set<Coords> getUnderwaterBlocks( int y )
 	{
-		return get( y ).underwaterBlocks;
+		return new LevelView( y, false, true, false, true );
 	}
 	
 	public int getNumFillableBlocks( int y )
 	{
-		return get( y ).numFillableBlocks;
+		int level = getLevel( y );
+		if( level < 0 )
+		{
+			return 0;
+		}
+		return m_numFillableBlocks[level];
 	}
 	
 	public Integer getLastFillY( )
 	{
-		for( Map.Entry<Integer,DisplacementEntry> entry : m_displacement.descendingMap().entrySet() )
+		for( int i=m_numFillableBlocks.length-1; i>=0; i-- )
 		{
-			if( entry.getValue().numFillableBlocks > 0 )
+			if( m_numFillableBlocks[i] > 0 )
 			{
-				return entry.getKey() + 1; // + 1 to get to the top of the block
+				return m_minY + i + 1; // + 1 to get to the top of the block
 			}
 		}
 		return null;
 	}
 	
-	private DisplacementEntry get( int y )
+	private int getLevel( int y )
 	{
-		if( m_displacement.isEmpty() )
-		{
-			return EmptyEntry;
-		}
-		
 		// if y is too big, clamp it. ie when the ship is underwater, we get the max trapped air
-		y = Math.min( y, m_displacement.lastKey() );
+		y = Math.min( y, m_minY + m_numTrappedAir.length - 1 );
 		
-		DisplacementEntry entry = m_displacement.get( y );
-		if( entry == null )
+		// returns -1 if there's no displacement at y
+		return Math.max( y - m_minY, -1 );
+	}
+	
+	private boolean isTrapped( Coords coords, int y )
+	{
+		Integer releaseY = m_releaseYs.get( coords );
+		return releaseY != null && coords.y <= y && releaseY > y;
+	}
+	
+	private boolean canPatch( Coords coords, BoundingBoxInt oldBox )
+	{
+		// NOTE: coords is in m_blocks when this is called
+		// the layer tables are indexed by y and the shell is defined by the box, so the box can't change
+		if( oldBox == null || !isSameBox( oldBox, m_blocks.getBoundingBox() ) )
 		{
-			entry = EmptyEntry;
+			return false;
 		}
-		return entry;
+		
+		// adding or removing the block can't split or join any of the void around it
+		// the trapped air at layer y only looks at the void at or below y, so check that too
+		// NOTE: trapped air nearby is fine, updateTrappedAir() re-solves it from the edited layer up
+		return isVoidLocallyConnected( coords, 1 ) && isVoidLocallyConnected( coords, 0 );
 	}
 	
-	private void computeBoundaryAndHoles( )
+	private boolean isVoidLocallyConnected( Coords coords, int maxDy )
 	{
-		// first, get all blocks touching the ship on an edge (aka the boundary)
-		final BlockSet boundaryBlocks = BlockUtils.getBoundary( m_blocks, BoundaryNeighbors );
+		// flood fill the void in the 3x3x3 neighborhood around coords (without coords itself)
+		// and make sure all the void face neighbors of coords end up in the same component
+		boolean[] isVoid = new boolean[27];
+		boolean[] isVisited = new boolean[27];
+		int[] queue = new int[27];
+		Coords neighborCoords = new Coords( 0, 0, 0 );
+		int numVoidFaceNeighbors = 0;
+		int start = -1;
+		for( int dx=-1; dx<=1; dx++ )
+		{
+			for( int dy=-1; dy<=maxDy; dy++ )
+			{
+				for( int dz=-1; dz<=1; dz++ )
+				{
+					neighborCoords.set( coords.x + dx, coords.y + dy, coords.z + dz );
+					int i = getNeighborIndex( dx, dy, dz );
+					isVoid[i] = ( dx != 0 || dy != 0 || dz != 0 ) && !m_blocks.contains( neighborCoords );
+					if( isVoid[i] && Math.abs( dx ) + Math.abs( dy ) + Math.abs( dz ) == 1 )
+					{
+						numVoidFaceNeighbors++;
+						start = i;
+					}
+				}
+			}
+		}
+		if( numVoidFaceNeighbors == 0 )
+		{
+			// the block is (or would be) an enclosed bubble
+			return false;
+		}
 		
-		// boundaryBlocks will have some number of connected components. Find them all and classify each as inner/outer
-		m_holes = new ArrayList<BlockSet>();
-		for( BlockSet component : BlockUtils.getConnectedComponents( boundaryBlocks, VoidBlockNeighbors ) )
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = start;
+		isVisited[start] = true;
+		while( head < tail )
 		{
-			// is this component the outer boundary?
-			if( BlockUtils.isConnectedToShell( component.iterator().next(), m_blocks, VoidBlockNeighbors ) )
+			int i = queue[head++];
+			int x = i/9 - 1;
+			int y = ( i/3 )%3 - 1;
+			int z = i%3 - 1;
+			for( BlockSide side : BlockSide.values() )
 			{
-				m_outerBoundaries.add( component );
+				int nx = x + side.getDx();
+				int ny = y + side.getDy();
+				int nz = z + side.getDz();
+				if( nx < -1 || nx > 1 || ny < -1 || ny > maxDy || nz < -1 || nz > 1 )
+				{
+					continue;
+				}
+				int n = getNeighborIndex( nx, ny, nz );
+				if( isVoid[n] && !isVisited[n] )
+				{
+					isVisited[n] = true;
+					queue[tail++] = n;
+				}
 			}
-			else
+		}
+		
+		for( BlockSide side : BlockSide.values() )
+		{
+			if( side.getDy() > maxDy )
+			{
+				continue;
+			}
+			int i = getNeighborIndex( side.getDx(), side.getDy(), side.getDz() );
+			if( isVoid[i] && !isVisited[i] )
 			{
-				// compute the hole from the boundary
-				m_holes.add( BlockUtils.getHoleFromInnerBoundary( component, m_blocks, VoidBlockNeighbors ) );
+				return false;
 			}
 		}
+		return true;
 	}
 	
-	private void computeDisplacement( )
+	private static int getNeighborIndex( int dx, int dy, int dz )
 	{
-		// get the y-range
-		int minY = getMinY();
-		int maxY = getMaxY();
+		return ( dx + 1 )*9 + ( dy + 1 )*3 + dz + 1;
+	}
+	
+	private static boolean isSameBox( BoundingBoxInt a, BoundingBoxInt b )
+	{
+		return a != null && b != null
+			&& a.minX == b.minX && a.minY == b.minY && a.minZ == b.minZ
+			&& a.maxX == b.maxX && a.maxY == b.maxY && a.maxZ == b.maxZ;
+	}
+	
+	private void updateTrappedAir( Coords coords, boolean isShip )
+	{
+		// the void below the edited layer can't see the edit, so only re-run the union-find from there up
+		int editIndex = m_grid.getIndex( coords.x, coords.y, coords.z );
+		m_grid.isShip[editIndex] = isShip;
+		m_air.updateFromLayer( editIndex/m_grid.layerSize );
 		
-		m_displacement = new TreeMap<Integer,DisplacementEntry>();
+		int editLevel = coords.y - m_minY;
+		int numLevels = m_shipLayers.size();
+		int[] numTrappedAirChanges = new int[numLevels + 1];
 		
-		// pass 1: compute the displacement of ship blocks
-		BlockSetHeightIndex shipIndex = new BlockSetHeightIndex( m_blocks );
-		for( int y=minY; y<=maxY+1; y++ )
+		// air below the edit that was still trapped at the edit level stays trapped there, but it might be released somewhere else
+		for( int level=0; level<editLevel; level++ )
 		{
-			// build the displacement entry
-			DisplacementEntry entry = new DisplacementEntry();
-			m_displacement.put( y, entry );
-			
-			// separate surface blocks from underwater blocks
-			BlockSet yBlocks = shipIndex.get( y );
-			if( yBlocks != null )
-			{
-				entry.surfaceBlocks.addAll( yBlocks );
-			}
-			if( y > minY )
+			for( Coords airCoords : m_airLayers.get( level ) )
 			{
-				DisplacementEntry lowerEntry = m_displacement.get( y - 1 );
-				entry.underwaterBlocks.addAll( lowerEntry.surfaceBlocks );
-				entry.underwaterBlocks.addAll( lowerEntry.underwaterBlocks );
+				int oldReleaseY = m_releaseYs.get( airCoords );
+				if( oldReleaseY < coords.y )
+				{
+					continue;
+				}
+				int releaseY = m_air.releaseY[m_grid.getIndex( airCoords.x, airCoords.y, airCoords.z )];
+				if( releaseY != oldReleaseY )
+				{
+					m_releaseYs.put( airCoords, releaseY );
+					m_isTrappedAirChanged = true;
+				}
+				if( releaseY != AirComponents.NeverReleased )
+				{
+					numTrappedAirChanges[Math.min( releaseY - m_minY, numLevels )]--;
+				}
 			}
 		}
 		
-		// pass 2: analyze the outer boundary for trapped air
-		BlockSetHeightIndex boundaryIndex = new BlockSetHeightIndex();
-		for( BlockSet blocks : m_outerBoundaries )
-		{
-			boundaryIndex.add( blocks );
-		}
-		List<ClassifiedSegment> boundarySegments = new ArrayList<ClassifiedSegment>();
-		for( int y=minY; y<=maxY+1; y++ )
+		// rebuild the air layers at and above the edit
+		for( int level=editLevel; level<numLevels; level++ )
 		{
-			// get all the segments at y
-			BlockSet blocksAtY = boundaryIndex.get( y );
-			if( blocksAtY != null )
+			List<Coords> airLayer = m_airLayers.get( level );
+			for( Coords airCoords : airLayer )
 			{
-				List<BlockSet> ySegments = BlockUtils.getConnectedComponents( blocksAtY, VoidBlockNeighbors );
-				
-				// merge them with existing segments
-				int numFilledBlocks = 0;
-				for( BlockSet ySegment : ySegments )
-				{
-					List<ClassifiedSegment> connectedSegments = getYConnectedSegments( ySegment, boundarySegments, VoidBlockNeighbors );
-					if( connectedSegments.isEmpty() )
-					{
-						// add the new segment
-						ClassifiedSegment classifiedSegment = new ClassifiedSegment();
-						classifiedSegment.segment = ySegment;
-						classifiedSegment.isTrapped = !BlockUtils.isConnectedToShell( ySegment.iterator().next(), m_blocks, VoidBlockNeighbors, y );
-						classifiedSegment.surfaceBlocks = new BlockSet( ySegment );
-						classifiedSegment.underwaterBlocks = new BlockSet();
-						boundarySegments.add( classifiedSegment );
-					}
-					else
-					{
-						// count the number of possibly filled blocks
-						int numPossiblyFilledBlocks = 0;
-						for( ClassifiedSegment segment : connectedSegments )
-						{
-							if( segment.isTrapped )
-							{
-								numPossiblyFilledBlocks += segment.segment.size();
-							}
-						}
-						
-						// merge all the existing segments
-						ClassifiedSegment baseSegment = connectedSegments.get( 0 );
-						if( baseSegment.isTrapped )
-						{
-							// fill in holes for inner boundaries
-							ySegment.addAll( BlockUtils.getHoleFromInnerBoundary( ySegment, m_blocks, VoidBlockNeighbors, y, y ) );
-						}
-						baseSegment.segment.addAll( ySegment );
-						baseSegment.underwaterBlocks.addAll( baseSegment.surfaceBlocks );
-						baseSegment.surfaceBlocks.clear();
-						baseSegment.surfaceBlocks.addAll( ySegment );
-						for( int i=1; i<connectedSegments.size(); i++ )
-						{
-							ClassifiedSegment nextSegment = connectedSegments.get( i );
-							baseSegment.isTrapped = baseSegment.isTrapped && nextSegment.isTrapped;
-							baseSegment.segment.addAll( nextSegment.segment );
-							baseSegment.underwaterBlocks.addAll( nextSegment.surfaceBlocks );
-							baseSegment.underwaterBlocks.addAll( nextSegment.underwaterBlocks );
-							boundarySegments.remove( nextSegment );
-						}
-						
-						// record the number of filled blocks
-						if( !baseSegment.isTrapped )
-						{
-							numFilledBlocks += numPossiblyFilledBlocks;
-						}
-					}
-				}
-				
-				// handle any filled blocks
-				if( numFilledBlocks > 0 )
+				int i = m_grid.getIndex( airCoords.x, airCoords.y, airCoords.z );
+				if( m_grid.isShip[i] || m_air.releaseY[i] <= airCoords.y )
 				{
-					m_displacement.get( y - 1 ).numFillableBlocks = numFilledBlocks;
+					m_releaseYs.remove( airCoords );
+					m_isTrappedAirChanged = true;
 				}
 			}
+			airLayer.clear();
 			
-			// compute the trapped air so far
-			DisplacementEntry entry = m_displacement.get( y );
-			for( ClassifiedSegment segment : boundarySegments )
+			int start = ( level + 1 )*m_grid.layerSize;
+			for( int i=start; i<start + m_grid.layerSize; i++ )
 			{
-				if( segment.isTrapped )
+				int releaseY = m_air.releaseY[i];
+				if( m_grid.isShip[i] || releaseY <= m_grid.getY( i ) )
 				{
-					entry.trappedAir.addAll( segment.segment );
-					entry.surfaceBlocks.addAll( segment.surfaceBlocks );
-					entry.underwaterBlocks.addAll( segment.underwaterBlocks );
+					continue;
+				}
+				Coords airCoords = m_grid.getCoords( i );
+				airLayer.add( airCoords );
+				Integer oldReleaseY = m_releaseYs.put( airCoords, releaseY );
+				if( oldReleaseY == null || oldReleaseY != releaseY )
+				{
+					m_isTrappedAirChanged = true;
+				}
+				numTrappedAirChanges[level]++;
+				if( releaseY != AirComponents.NeverReleased )
+				{
+					numTrappedAirChanges[Math.min( releaseY - m_minY, numLevels )]--;
 				}
 			}
 		}
 		
-		// pass 3: analyze the holes
-		BlockSetHeightIndex holeIndex = new BlockSetHeightIndex();
-		for( BlockSet hole : m_holes )
+		// the counts below the edit level don't change
+		int numTrappedAir = editLevel > 0 ? m_numTrappedAir[editLevel - 1] : 0;
+		for( int level=editLevel; level<numLevels; level++ )
 		{
-			holeIndex.add( hole );
+			numTrappedAir += numTrappedAirChanges[level];
+			m_numTrappedAir[level] = numTrappedAir;
 		}
-		BlockSet holeBlocks = new BlockSet();
-		BlockSet underwaterBlocks = new BlockSet();
-		for( int y=minY; y<=maxY+1; y++ )
+		for( int level=Math.max( editLevel - 1, 0 ); level<numLevels; level++ )
 		{
-			DisplacementEntry entry = m_displacement.get( y );
-			
-			// add the blocks for this y
-			BlockSet layer = holeIndex.get( y );
-			if( layer != null )
-			{
-				holeBlocks.addAll( layer );
-				entry.surfaceBlocks.addAll( layer );
-			}
-			entry.underwaterBlocks.addAll( underwaterBlocks );
-			entry.trappedAir.addAll( holeBlocks );
-			
-			if( layer != null )
-			{
-				// update the underwater blocks for next time
-				underwaterBlocks.addAll( layer );
-			}			
+			m_numFillableBlocks[level] = m_air.numReleased[level + 1];
 		}
 	}
 	
-	private List<ClassifiedSegment> getYConnectedSegments( BlockSet ySegment, Iterable<ClassifiedSegment> segments, Neighbors neighbors )
+	private void onPatched( )
+	{
+		// the boundaries will be recomputed if anyone asks
+		m_outerBoundaries = null;
+		m_holes = null;
+	}
+	
+	private void computeBoundaryAndHoles( )
 	{
-		List<ClassifiedSegment> connectedSegments = new ArrayList<ClassifiedSegment>();
-		for( ClassifiedSegment segment : segments )
+		m_outerBoundaries = new ArrayList<BlockSet>();
+		m_holes = new ArrayList<BlockSet>();
+		BoundingBoxInt box = m_blocks.getBoundingBox();
+		if( box == null )
 		{
-			if( isYConnected( segment.segment, ySegment, neighbors ) )
-			{
-				connectedSegments.add( segment );
-			}
+			return;
+		}
+		
+		// void the padding can reach is outside the ship. Everything else is a hole
+		Grid grid = new Grid( m_blocks, box );
+		boolean[] isExterior = grid.getExterior();
+		boolean[] isOuterBoundary = new boolean[grid.getNumCells()];
+		boolean[] isHole = new boolean[grid.getNumCells()];
+		for( int i=0; i<grid.getNumCells(); i++ )
+		{
+			isOuterBoundary[i] = grid.isBoundary[i] && isExterior[i];
+			isHole[i] = !grid.isShip[i] && !isExterior[i];
 		}
-		return connectedSegments;
+		m_outerBoundaries = grid.getComponents( isOuterBoundary );
+		m_holes = grid.getComponents( isHole );
 	}
 	
-	private boolean isYConnected( BlockSet below, BlockSet at, Neighbors neighbors )
+	private void computeDisplacement( )
 	{
-		// NOTE: below is strictly below y, at is strictly at y
-		Coords neighborCoords = new Coords( 0, 0, 0 );
-		for( Coords coords : at )
+		m_minY = 0;
+		m_shipLayers = new ArrayList<BlockSet>();
+		m_airLayers = new ArrayList<List<Coords>>();
+		m_releaseYs = new HashMap<Coords,Integer>();
+		m_numTrappedAir = new int[0];
+		m_numFillableBlocks = new int[0];
+		m_grid = null;
+		m_air = null;
+		m_isTrappedAirChanged = false;
+		BoundingBoxInt box = m_blocks.getBoundingBox();
+		if( box == null )
+		{
+			return;
+		}
+		
+		// air is trapped at y if the void around it, cut off at y, can't reach outside the ship's box
+		// that covers both air under the waterline in hulls and holes closed off on every side
+		// NOTE: keep the grid and the union-find around, so edits can re-run just the layers above them
+		Grid grid = new Grid( m_blocks, box );
+		AirComponents air = new AirComponents( grid );
+		m_grid = grid;
+		m_air = air;
+		
+		// there's a level for each layer of the ship, and one more for the top of the ship
+		// level i is grid layer i + 1, since the grid is padded
+		m_minY = box.minY;
+		int numLevels = grid.sizeY - 1;
+		for( int i=0; i<numLevels; i++ )
+		{
+			m_shipLayers.add( new BlockSet() );
+			m_airLayers.add( new ArrayList<Coords>() );
+		}
+		
+		// store each block once, in the layer where it starts displacing water
+		// trapped air also remembers the level where it's released again
+		int[] numTrappedAirChanges = new int[numLevels + 1];
+		for( int i=grid.layerSize; i<grid.getNumCells(); i++ )
 		{
-			for( int i=0; i<neighbors.getNumNeighbors(); i++ )
+			int level = i/grid.layerSize - 1;
+			if( grid.isShip[i] )
 			{
-				neighbors.getNeighbor( neighborCoords, coords, i );
-				if( neighborCoords.y == coords.y - 1 && below.contains( neighborCoords ) )
+				m_shipLayers.get( level ).add( grid.getCoords( i ) );
+			}
+			else if( air.releaseY[i] > grid.getY( i ) )
+			{
+				Coords coords = grid.getCoords( i );
+				m_airLayers.get( level ).add( coords );
+				m_releaseYs.put( coords, air.releaseY[i] );
+				numTrappedAirChanges[level]++;
+				if( air.releaseY[i] != AirComponents.NeverReleased )
 				{
-					return true;
+					numTrappedAirChanges[Math.min( air.releaseY[i] - m_minY, numLevels )]--;
 				}
 			}
 		}
-		return false;
+		
+		m_numTrappedAir = new int[numLevels];
+		m_numFillableBlocks = new int[numLevels];
+		int numTrappedAir = 0;
+		for( int i=0; i<numLevels; i++ )
+		{
+			numTrappedAir += numTrappedAirChanges[i];
+			m_numTrappedAir[i] = numTrappedAir;
+			m_numFillableBlocks[i] = air.numReleased[i + 1];
+		}
 	}
 }
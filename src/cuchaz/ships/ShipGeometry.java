@@ -15,6 +15,7 @@ import net.minecraft.util.MathHelper;
 import net.minecraft.util.Vec3;
 import cuchaz.modsShared.blocks.BlockSet;
 import cuchaz.modsShared.blocks.BlockSide;
+import cuchaz.modsShared.blocks.BoundingBoxInt;
 import cuchaz.modsShared.blocks.Coords;
 import cuchaz.modsShared.blocks.Envelopes;
 import cuchaz.modsShared.math.BoxCorner;
@@ -23,13 +24,42 @@ import cuchaz.modsShared.math.RotatedBB;
 public class ShipGeometry
 {
 	private BlockSet m_blocks;
+	private BoundingBoxInt m_box;
 	private Envelopes m_envelopes;
+	private ShipOccupancy m_occupancy;
+	private BlockSet[] m_exposedBlocks;
+	private BlockSet[] m_shells;
+	private ShipBoxTree m_boxTree;
 	
 	public ShipGeometry( BlockSet blocks )
 	{
 		m_blocks = blocks;
 		
 		m_envelopes = new Envelopes( m_blocks );
+		m_box = new BoundingBoxInt( m_envelopes.getBoundingBox() );
+		m_occupancy = new ShipOccupancy( m_blocks );
+		
+		// find the blocks that are exposed on each side. These are the only blocks that can lead a collision
+		// NOTE: each envelope is a subset of the exposed blocks for its side
+		m_exposedBlocks = new BlockSet[BlockSide.values().length];
+		for( BlockSide side : BlockSide.values() )
+		{
+			BlockSet exposedBlocks = new BlockSet();
+			for( Coords coords : m_blocks )
+			{
+				if( !m_occupancy.contains( coords.x + side.getDx(), coords.y + side.getDy(), coords.z + side.getDz() ) )
+				{
+					exposedBlocks.add( coords );
+				}
+			}
+			m_exposedBlocks[side.ordinal()] = exposedBlocks;
+		}
+		
+		// shells are unions of exposed blocks. Build them lazily, keyed by a bitmask of sides
+		m_shells = new BlockSet[1 << BlockSide.values().length];
+		
+		// the box tree is only needed when ships get close to each other. Build it lazily
+		m_boxTree = null;
 	}
 	
 	public BlockSet getBlocks( )
@@ -39,137 +69,379 @@ public class ShipGeometry
 	
 	public Envelopes getEnvelopes( )
 	{
+		// NOTE: block edits throw out the envelopes, so rebuild them lazily
+		if( m_envelopes == null )
+		{
+			m_envelopes = new Envelopes( m_blocks );
+		}
 		return m_envelopes;
 	}
 	
+	public BoundingBoxInt getBoundingBox( )
+	{
+		return m_box;
+	}
+	
+	public ShipOccupancy getOccupancy( )
+	{
+		return m_occupancy;
+	}
+	
+	public ShipBoxTree getBoxTree( )
+	{
+		if( m_boxTree == null )
+		{
+			m_boxTree = new ShipBoxTree( m_blocks );
+		}
+		return m_boxTree;
+	}
+	
+	public BlockSet getExposedBlocks( BlockSide side )
+	{
+		return m_exposedBlocks[side.ordinal()];
+	}
+	
+	public void addBlock( Coords coords )
+	{
+		if( !m_blocks.add( new Coords( coords.x, coords.y, coords.z ) ) )
+		{
+			return;
+		}
+		if( !m_occupancy.add( coords.x, coords.y, coords.z ) )
+		{
+			// the block is outside the occupancy grid, need a bigger one
+			m_occupancy = new ShipOccupancy( m_blocks );
+		}
+		m_box.minX = Math.min( m_box.minX, coords.x );
+		m_box.minY = Math.min( m_box.minY, coords.y );
+		m_box.minZ = Math.min( m_box.minZ, coords.z );
+		m_box.maxX = Math.max( m_box.maxX, coords.x );
+		m_box.maxY = Math.max( m_box.maxY, coords.y );
+		m_box.maxZ = Math.max( m_box.maxZ, coords.z );
+		onBlockChanged( coords );
+	}
+	
+	public void removeBlock( Coords coords )
+	{
+		if( !m_blocks.remove( coords ) )
+		{
+			return;
+		}
+		m_occupancy.remove( coords.x, coords.y, coords.z );
+		
+		// shrink the bounding box if we removed the last block on one of its faces
+		if( !m_blocks.isEmpty() )
+		{
+			while( m_box.minX < m_box.maxX && !m_occupancy.containsAny( m_box.minX, m_box.minY, m_box.minZ, m_box.minX, m_box.maxY, m_box.maxZ ) )
+			{
+				m_box.minX++;
+			}
+			while( m_box.maxX > m_box.minX && !m_occupancy.containsAny( m_box.maxX, m_box.minY, m_box.minZ, m_box.maxX, m_box.maxY, m_box.maxZ ) )
+			{
+				m_box.maxX--;
+			}
+			while( m_box.minY < m_box.maxY && !m_occupancy.containsAny( m_box.minX, m_box.minY, m_box.minZ, m_box.maxX, m_box.minY, m_box.maxZ ) )
+			{
+				m_box.minY++;
+			}
+			while( m_box.maxY > m_box.minY && !m_occupancy.containsAny( m_box.minX, m_box.maxY, m_box.minZ, m_box.maxX, m_box.maxY, m_box.maxZ ) )
+			{
+				m_box.maxY--;
+			}
+			while( m_box.minZ < m_box.maxZ && !m_occupancy.containsAny( m_box.minX, m_box.minY, m_box.minZ, m_box.maxX, m_box.maxY, m_box.minZ ) )
+			{
+				m_box.minZ++;
+			}
+			while( m_box.maxZ > m_box.minZ && !m_occupancy.containsAny( m_box.minX, m_box.minY, m_box.maxZ, m_box.maxX, m_box.maxY, m_box.maxZ ) )
+			{
+				m_box.maxZ--;
+			}
+		}
+		onBlockChanged( coords );
+	}
+	
+	public BlockSet getCollisionShell( double dx, double dy, double dz, float yaw, float dYaw )
+	{
+		// the delta is in world space, but the sides are in blocks space, so rotate the delta first
+		// NOTE: this matches EntityShip.worldToShipDirection()
+		double yawRad = Math.toRadians( yaw );
+		double cos = Math.cos( yawRad );
+		double sin = Math.sin( yawRad );
+		return getCollisionShell( dx*cos - dz*sin, dy, dx*sin + dz*cos, dYaw );
+	}
+	
+	public BlockSet getCollisionShell( double dx, double dy, double dz, float dYaw )
+	{
+		// which sides lead the motion?
+		int sides = 0;
+		for( BlockSide side : BlockSide.values() )
+		{
+			boolean isLeading = side.getDx()*dx + side.getDy()*dy + side.getDz()*dz > 0;
+			
+			// when rotating, every block moves in a different xz direction, so every xz side could lead
+			if( dYaw != 0 && side.getDy() == 0 )
+			{
+				isLeading = true;
+			}
+			
+			if( isLeading )
+			{
+				sides |= 1 << side.ordinal();
+			}
+		}
+		return getShell( sides );
+	}
+	
+	public BlockSet getShell( int sides )
+	{
+		BlockSet shell = m_shells[sides];
+		if( shell == null )
+		{
+			shell = new BlockSet();
+			for( BlockSide side : BlockSide.values() )
+			{
+				if( ( sides & ( 1 << side.ordinal() ) ) != 0 )
+				{
+					shell.addAll( m_exposedBlocks[side.ordinal()] );
+				}
+			}
+			m_shells[sides] = shell;
+		}
+		return shell;
+	}
+	
 	public BlockSet rangeQuery( RotatedBB box )
 	{
 		// get the bounds in y
 		int minY = MathHelper.floor_double( box.getMinY() );
 		int maxY = MathHelper.floor_double( box.getMaxY() );
 		
+		// the xz footprint is the same for every y, so only scan it once
 		BlockSet blocks = new BlockSet();
+		int[] rows = scanXZ( box );
+		ShipOccupancy.Cursor cursor = new ShipOccupancy.Cursor();
 		for( int y=minY; y<=maxY; y++ )
 		{
-			// add up the blocks from the xz range query
-			blocks.addAll( xzRangeQuery( y, box ) );
+			addBlocks( blocks, cursor, y, rows );
 		}
 		return blocks;
 	}
 	
 	public BlockSet xzRangeQuery( int y, RotatedBB box )
 	{
-		// UNDONE: we can probably optimize this using a better algorithm
-		
-		Vec3 p = Vec3.createVectorHelper( 0, 0, 0 );
-		
-		// get the bounds in x and z
-		int minX = Integer.MAX_VALUE;
-		int maxX = Integer.MIN_VALUE;
-		int minZ = Integer.MAX_VALUE;
-		int maxZ = Integer.MIN_VALUE;
-		for( BoxCorner corner : BlockSide.Top.getCorners() )
-		{
-			box.getCorner( p, corner );
-			int x = MathHelper.floor_double( p.xCoord );
-			int z = MathHelper.floor_double( p.zCoord );
-			
-			minX = Math.min( minX, x );
-			maxX = Math.max( maxX, x );
-			minZ = Math.min( minZ, z );
-			maxZ = Math.max( maxZ, z );
-		}
-		
-		// search over the blocks in the range
-		Coords coords = new Coords();
+		// get the ship blocks in the cells covered by the box
 		BlockSet blocks = new BlockSet();
-		for( int x=minX; x<=maxX; x++ )
+		addBlocks( blocks, new ShipOccupancy.Cursor(), y, scanXZ( box ) );
+		return blocks;
+	}
+	
+	public BlockSet xzCellQuery( int y, RotatedBB box )
+	{
+		// get all the cells covered by the box, whether the ship has blocks there or not
+		BlockSet cells = new BlockSet();
+		int[] rows = scanXZ( box );
+		for( int i=0; i<rows.length; i+=3 )
 		{
-			for( int z=minZ; z<=maxZ; z++ )
+			for( int x=rows[i + 1]; x<=rows[i + 2]; x++ )
 			{
-				coords.set( x, y, z );
-				
-				// is there even a block here?
-				if( m_blocks.contains( coords ) )
-				{
-					continue;
-				}
-				
-				if( blockIntersectsBoxXZ( x, z, box ) )
-				{
-					blocks.add( new Coords( coords ) );
-				}
+				cells.add( new Coords( x, y, rows[i] ) );
 			}
 		}
-		return blocks;
+		return cells;
 	}
 	
 	public BlockSet rangeQuery( AxisAlignedBB box )
 	{
-		// get the block coordinate bounds for y
-		int minY = MathHelper.floor_double( box.minY );
-		int maxY = MathHelper.floor_double( box.maxY );
-		
 		BlockSet blocks = new BlockSet();
-		for( int y=minY; y<=maxY; y++ )
+		ShipOccupancy.Cursor cursor = new ShipOccupancy.Cursor();
+		cursor.reset( m_occupancy, box );
+		while( cursor.next() )
 		{
-			blocks.addAll( rangeQuery( box, y ) );
+			blocks.add( new Coords( cursor.x, cursor.y, cursor.z ) );
 		}
 		return blocks;
 	}
 	
 	public BlockSet rangeQuery( AxisAlignedBB box, int y )
 	{
-		// get the block coordinate bounds for x and z
-		int minX = MathHelper.floor_double( box.minX );
-		int minZ = MathHelper.floor_double( box.minZ );
-		int maxX = MathHelper.floor_double( box.maxX );
-		int maxZ = MathHelper.floor_double( box.maxZ );
-		
-		Coords coords = new Coords();
 		BlockSet blocks = new BlockSet();
-		for( int x=minX; x<=maxX; x++ )
+		ShipOccupancy.Cursor cursor = new ShipOccupancy.Cursor();
+		cursor.reset(
+			m_occupancy,
+			MathHelper.floor_double( box.minX ), y, MathHelper.floor_double( box.minZ ),
+			MathHelper.floor_double( box.maxX ), y, MathHelper.floor_double( box.maxZ )
+		);
+		while( cursor.next() )
+		{
+			blocks.add( new Coords( cursor.x, cursor.y, cursor.z ) );
+		}
+		return blocks;
+	}
+	
+	public void rangeQuery( ShipOccupancy.Cursor cursor, AxisAlignedBB box )
+	{
+		// NOTE: this version doesn't allocate anything. Read the blocks out of the cursor with next()
+		cursor.reset( m_occupancy, box );
+	}
+	
+	public void lineSegmentQuery( ShipOccupancy.RayCursor cursor, Vec3 from, Vec3 to )
+	{
+		// NOTE: the cursor visits the blocks in order along the segment, starting at from
+		cursor.reset( m_occupancy, from, to );
+	}
+	
+	public boolean hasBlocksInRange( AxisAlignedBB box )
+	{
+		return m_occupancy.containsAny( box );
+	}
+	
+	private void onBlockChanged( Coords coords )
+	{
+		// only the block and its neighbors can change their exposed sides
+		updateExposedBlock( coords.x, coords.y, coords.z );
+		for( BlockSide side : BlockSide.values() )
+		{
+			updateExposedBlock( coords.x + side.getDx(), coords.y + side.getDy(), coords.z + side.getDz() );
+		}
+		
+		// the envelopes and the box tree are cheap enough to rebuild the next time someone asks
+		m_envelopes = null;
+		m_boxTree = null;
+	}
+	
+	private void updateExposedBlock( int x, int y, int z )
+	{
+		Coords coords = new Coords( x, y, z );
+		boolean isBlock = m_occupancy.contains( x, y, z );
+		for( BlockSide side : BlockSide.values() )
 		{
-			for( int z=minZ; z<=maxZ; z++ )
+			BlockSet exposedBlocks = m_exposedBlocks[side.ordinal()];
+			if( isBlock && !m_occupancy.contains( x + side.getDx(), y + side.getDy(), z + side.getDz() ) )
 			{
-				coords.set( x, y, z );
-				if( m_blocks.contains( coords ) )
+				exposedBlocks.add( coords );
+			}
+			else
+			{
+				exposedBlocks.remove( coords );
+			}
+		}
+		
+		// update the shells we've already built
+		for( int sides=0; sides<m_shells.length; sides++ )
+		{
+			BlockSet shell = m_shells[sides];
+			if( shell == null )
+			{
+				continue;
+			}
+			boolean isInShell = false;
+			for( BlockSide side : BlockSide.values() )
+			{
+				if( ( sides & ( 1 << side.ordinal() ) ) != 0 && m_exposedBlocks[side.ordinal()].contains( coords ) )
 				{
-					blocks.add( new Coords( coords ) );
+					isInShell = true;
+					break;
 				}
 			}
+			if( isInShell )
+			{
+				shell.add( coords );
+			}
+			else
+			{
+				shell.remove( coords );
+			}
 		}
-		return blocks;
 	}
 	
-	private boolean blockIntersectsBoxXZ( int x, int z, RotatedBB box )
+	private void addBlocks( BlockSet blocks, ShipOccupancy.Cursor cursor, int y, int[] rows )
 	{
-		// return true if any xz corner of the block is in the rotated box
-		double y = ( box.getMinY() + box.getMaxY() )/2;
-		return box.containsPoint( x + 0, y, z + 0 )
-			|| box.containsPoint( x + 0, y, z + 1 )
-			|| box.containsPoint( x + 1, y, z + 0 )
-			|| box.containsPoint( x + 1, y, z + 1 )
-			|| anyCornerIsInBlockXZ( box, x, z );
+		for( int i=0; i<rows.length; i+=3 )
+		{
+			cursor.reset( m_occupancy, rows[i + 1], y, rows[i], rows[i + 2], y, rows[i] );
+			while( cursor.next() )
+			{
+				blocks.add( new Coords( cursor.x, cursor.y, cursor.z ) );
+			}
+		}
 	}
 	
-	private boolean anyCornerIsInBlockXZ( RotatedBB box, int x, int z )
+	private static int[] scanXZ( RotatedBB box )
 	{
+		// scan-convert the xz footprint of the box, which is a convex quad
+		// returns triples of (z, minX, maxX), one for each row of cells
+		// NOTE: cells are chosen the same way as the axis-aligned queries, from floor(min) to floor(max)
+		
+		// get the corners
+		double[] cornerX = new double[4];
+		double[] cornerZ = new double[4];
 		Vec3 p = Vec3.createVectorHelper( 0, 0, 0 );
+		int numCorners = 0;
 		for( BoxCorner corner : BlockSide.Top.getCorners() )
 		{
 			box.getCorner( p, corner );
-			if( isPointInBlockXZ( p.xCoord, p.zCoord, x, z ) )
+			cornerX[numCorners] = p.xCoord;
+			cornerZ[numCorners] = p.zCoord;
+			numCorners++;
+		}
+		double minZ = Double.POSITIVE_INFINITY;
+		double maxZ = Double.NEGATIVE_INFINITY;
+		for( int i=0; i<numCorners; i++ )
+		{
+			minZ = Math.min( minZ, cornerZ[i] );
+			maxZ = Math.max( maxZ, cornerZ[i] );
+		}
+		
+		int minCellZ = MathHelper.floor_double( minZ );
+		int maxCellZ = MathHelper.floor_double( maxZ );
+		int[] rows = new int[( maxCellZ - minCellZ + 1 )*3];
+		for( int z=minCellZ; z<=maxCellZ; z++ )
+		{
+			// clip the quad to this row. The x range of the clipped quad comes from
+			// the corners inside the row and the edge crossings at the row boundaries
+			double rowMinZ = Math.max( z, minZ );
+			double rowMaxZ = Math.min( z + 1, maxZ );
+			double rowMinX = Double.POSITIVE_INFINITY;
+			double rowMaxX = Double.NEGATIVE_INFINITY;
+			for( int i=0; i<numCorners; i++ )
 			{
-				return true;
+				double ax = cornerX[i];
+				double az = cornerZ[i];
+				if( az >= rowMinZ && az <= rowMaxZ )
+				{
+					rowMinX = Math.min( rowMinX, ax );
+					rowMaxX = Math.max( rowMaxX, ax );
+				}
+				
+				// NOTE: we don't know what order the corners come in, so check every pair
+				// the diagonals are inside the quad, so they can't widen the range
+				for( int j=i+1; j<numCorners; j++ )
+				{
+					double bx = cornerX[j];
+					double bz = cornerZ[j];
+					if( az == bz )
+					{
+						// horizontal edges are handled by their corners
+						continue;
+					}
+					for( int k=0; k<2; k++ )
+					{
+						double edgeZ = k == 0 ? rowMinZ : rowMaxZ;
+						if( ( az - edgeZ )*( bz - edgeZ ) <= 0 )
+						{
+							double x = ax + ( bx - ax )*( edgeZ - az )/( bz - az );
+							rowMinX = Math.min( rowMinX, x );
+							rowMaxX = Math.max( rowMaxX, x );
+						}
+					}
+				}
 			}
+			
+			int i = ( z - minCellZ )*3;
+			rows[i] = z;
+			rows[i + 1] = MathHelper.floor_double( rowMinX );
+			rows[i + 2] = MathHelper.floor_double( rowMaxX );
 		}
-		return false;
-	}
-	
-	private boolean isPointInBlockXZ( double px, double pz, int blockX, int blockZ )
-	{
-		return px >= blockX && px <= blockX + 1
-			&& pz >= blockZ && pz <= blockZ + 1;
+		return rows;
 	}
 }
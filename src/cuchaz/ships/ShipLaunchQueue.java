@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.world.World;
+import cpw.mods.fml.common.ITickHandler;
+import cpw.mods.fml.common.TickType;
+import cuchaz.modsShared.blocks.Coords;
+import cuchaz.ships.ShipLauncher.LaunchFlag;
+
+public class ShipLaunchQueue implements ITickHandler
+{
+	// NOTE: the ship analysis runs in the background, so launch requests wait here until it's done
+	// each player can only have a few analyses going at once
+	
+	private static final int MaxPendingLaunchesPerPlayer = 2;
+	
+	private static class Launch
+	{
+		public String username;
+		public ShipLauncher launcher;
+	}
+	
+	private Map<String,Launch> m_launches;
+	
+	public ShipLaunchQueue( )
+	{
+		m_launches = new LinkedHashMap<String,Launch>();
+	}
+	
+	public void launch( EntityPlayer player, World world, Coords shipBlock )
+	{
+		// don't analyze the same ship twice if the player clicks again
+		String key = getKey( world, shipBlock );
+		if( m_launches.containsKey( key ) )
+		{
+			return;
+		}
+		
+		if( getNumPendingLaunches( player.username ) >= MaxPendingLaunchesPerPlayer )
+		{
+			Ships.logger.warning( "%s is already launching too many ships! Ignoring launch at (%d,%d,%d)",
+				player.username, shipBlock.x, shipBlock.y, shipBlock.z
+			);
+			return;
+		}
+		
+		Launch launch = new Launch();
+		launch.username = player.username;
+		launch.launcher = ShipLauncher.startAnalysis( world, shipBlock );
+		m_launches.put( key, launch );
+	}
+	
+	public void update( )
+	{
+		Iterator<Launch> iter = m_launches.values().iterator();
+		while( iter.hasNext() )
+		{
+			Launch launch = iter.next();
+			ShipLauncher launcher = launch.launcher;
+			launcher.update();
+			if( !launcher.isAnalyzed() )
+			{
+				continue;
+			}
+			
+			// the analysis took a few ticks, so make sure the ship block is still there
+			Coords shipBlock = launcher.getShipBlock();
+			if( launcher.getWorld().getBlockId( shipBlock.x, shipBlock.y, shipBlock.z ) != Ships.m_blockShip.blockID )
+			{
+				iter.remove();
+				continue;
+			}
+			
+			// if someone changed the ship in the meantime, the analysis is stale. Do it again
+			if( launcher.isLaunchable() && !launcher.isWorldUnchanged() )
+			{
+				launch.launcher = ShipLauncher.startAnalysis( launcher.getWorld(), shipBlock );
+				continue;
+			}
+			iter.remove();
+			
+			if( launcher.isLaunchable() )
+			{
+				launcher.launch();
+			}
+			else
+			{
+				// debug info
+				Ships.logger.warning(
+					"Server can't launch ship at: (%d,%d,%d)",
+					shipBlock.x, shipBlock.y, shipBlock.z
+				);
+				for( LaunchFlag flag : LaunchFlag.values() )
+				{
+					Ships.logger.warning( "\t" + flag.name() + ": " + launcher.getLaunchFlag( flag ) );
+				}
+			}
+		}
+	}
+	
+	private int getNumPendingLaunches( String username )
+	{
+		int numLaunches = 0;
+		for( Launch launch : m_launches.values() )
+		{
+			if( launch.username.equals( username ) )
+			{
+				numLaunches++;
+			}
+		}
+		return numLaunches;
+	}
+	
+	private String getKey( World world, Coords shipBlock )
+	{
+		// the same coords can hold different ships in different dimensions
+		return String.format( "%d:%d,%d,%d", world.provider.dimensionId, shipBlock.x, shipBlock.y, shipBlock.z );
+	}
+	
+	@Override
+	public void tickStart( EnumSet<TickType> type, Object... tickData )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void tickEnd( EnumSet<TickType> type, Object... tickData )
+	{
+		update();
+	}
+	
+	@Override
+	public EnumSet<TickType> ticks( )
+	{
+		return EnumSet.of( TickType.SERVER );
+	}
+	
+	@Override
+	public String getLabel( )
+	{
+		return "Ships launch queue";
+	}
+}
@@ -13,6 +13,14 @@ package cuchaz.ships;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.minecraft.block.Block;
 import net.minecraft.block.material.Material;
@@ -20,7 +28,6 @@ import net.minecraft.entity.EntityHanging;
 import net.minecraft.util.Vec3;
 import net.minecraft.world.World;
 import net.minecraft.world.WorldServer;
-import cpw.mods.fml.common.network.PacketDispatcher;
 import cuchaz.modsShared.Environment;
 import cuchaz.modsShared.blocks.BlockArray;
 import cuchaz.modsShared.blocks.BlockSet;
@@ -68,6 +75,25 @@ public class ShipLauncher
 	
 	public static final Neighbors ShipBlockNeighbors = Neighbors.Edges;
 	
+	// NOTE: all the analysis jobs share a few threads, and a full queue rejects new jobs
+	private static final int NumAnalysisThreads = 2;
+	private static final int MaxQueuedAnalysisJobs = 32;
+	private static final ExecutorService AnalysisExecutor = new ThreadPoolExecutor(
+		NumAnalysisThreads, NumAnalysisThreads,
+		0, TimeUnit.MILLISECONDS,
+		new LinkedBlockingQueue<Runnable>( MaxQueuedAnalysisJobs ),
+		new ThreadFactory( )
+		{
+			@Override
+			public Thread newThread( Runnable runnable )
+			{
+				Thread thread = new Thread( runnable, "Ship launch analysis" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		}
+	);
+	
 	private World m_world;
 	private Coords m_shipBlock;
 	private ShipType m_shipType;
@@ -77,9 +103,34 @@ public class ShipLauncher
 	private ShipPhysics m_shipPhysics;
 	private Double m_equilibriumWaterHeight;
 	private Integer m_sinkWaterHeight;
-	private int m_numBlocksChecked;
+	private volatile int m_numBlocksChecked;
+	private WorldSnapshot m_snapshot;
+	private Future<?> m_job;
+	private volatile Throwable m_jobError;
+	private boolean m_isAnalyzed;
 	
 	public ShipLauncher( final World world, Coords shipBlock )
+	{
+		this( world, shipBlock, false );
+		
+		// analyze the ship right now
+		searchForBlocks( new BlockExplorer( )
+		{
+			@Override
+			public boolean shouldExploreBlock( Coords coords )
+			{
+				return !BlockProperties.isSeparator( Block.blocksList[world.getBlockId( coords.x, coords.y, coords.z )] );
+			}
+		} );
+		if( m_blocks != null )
+		{
+			m_shipWorld = new ShipWorld( m_world, m_shipBlock, m_blocks );
+			computePhysics();
+		}
+		finishAnalysis();
+	}
+	
+	private ShipLauncher( World world, Coords shipBlock, boolean isAsync )
 	{
 		m_world = world;
 		m_shipBlock = shipBlock;
@@ -87,8 +138,149 @@ public class ShipLauncher
 		// get the ship type from the block
 		m_shipType = Ships.m_blockShip.getShipType( world, m_shipBlock.x, m_shipBlock.y, m_shipBlock.z );
 		
+		m_blocks = null;
+		m_launchFlags = null;
+		m_shipWorld = null;
+		m_shipPhysics = null;
+		m_equilibriumWaterHeight = null;
+		m_sinkWaterHeight = null;
+		m_numBlocksChecked = 0;
+		m_snapshot = null;
+		m_job = null;
+		m_jobError = null;
+		m_isAnalyzed = false;
+		
+		if( isAsync )
+		{
+			// search for the blocks in the background. update() takes it from there
+			m_snapshot = new WorldSnapshot( world );
+			startJob( new Runnable( )
+			{
+				@Override
+				public void run( )
+				{
+					searchForBlocks( new BlockExplorer( )
+					{
+						@Override
+						public boolean shouldExploreBlock( Coords coords )
+						{
+							return !BlockProperties.isSeparator( Block.blocksList[m_snapshot.getBlockId( coords.x, coords.y, coords.z )] );
+						}
+					} );
+				}
+			} );
+		}
+	}
+	
+	public static ShipLauncher startAnalysis( World world, Coords shipBlock )
+	{
+		// NOTE: call update() on the main thread every tick until isAnalyzed() returns true
+		return new ShipLauncher( world, shipBlock, true );
+	}
+	
+	public boolean isAnalyzed( )
+	{
+		return m_isAnalyzed;
+	}
+	
+	public void update( )
+	{
+		// this should only be called on the main thread
+		if( m_isAnalyzed || ( m_job == null && m_jobError == null ) )
+		{
+			return;
+		}
+		
+		// give the job any chunks it asked for
+		m_snapshot.update();
+		if( m_job != null && !m_job.isDone() )
+		{
+			return;
+		}
+		
+		if( m_jobError != null )
+		{
+			Ships.logger.warning( m_jobError, "Unable to analyze ship at (%d,%d,%d)", m_shipBlock.x, m_shipBlock.y, m_shipBlock.z );
+			m_blocks = null;
+			m_shipWorld = null;
+			m_shipPhysics = null;
+			m_equilibriumWaterHeight = null;
+			m_sinkWaterHeight = null;
+			finishAnalysis();
+		}
+		else if( m_blocks != null && m_shipWorld == null )
+		{
+			// the search is done. Copying the ship touches the world, so do that here
+			m_snapshot.close();
+			m_shipWorld = new ShipWorld( m_world, m_shipBlock, m_blocks );
+			
+			// then go back to the background for the physics
+			startJob( new Runnable( )
+			{
+				@Override
+				public void run( )
+				{
+					computePhysics();
+				}
+			} );
+		}
+		else
+		{
+			finishAnalysis();
+		}
+	}
+	
+	public void cancel( )
+	{
+		if( m_snapshot != null )
+		{
+			// any job waiting on a chunk will stop. A physics job just runs out on its own
+			m_snapshot.close();
+		}
+		if( m_job != null )
+		{
+			// jobs that haven't started yet don't need to run at all
+			m_job.cancel( false );
+		}
+		m_job = null;
+	}
+	
+	private void startJob( final Runnable runnable )
+	{
+		m_job = null;
+		try
+		{
+			m_job = AnalysisExecutor.submit( new Runnable( )
+			{
+				@Override
+				public void run( )
+				{
+					try
+					{
+						runnable.run();
+					}
+					catch( CancellationException ex )
+					{
+						// the launcher was cancelled, nothing to do
+					}
+					catch( Throwable t )
+					{
+						m_jobError = t;
+					}
+				}
+			} );
+		}
+		catch( RejectedExecutionException ex )
+		{
+			// too many ships are being analyzed right now. update() reports the error
+			m_jobError = ex;
+		}
+	}
+	
+	private void searchForBlocks( final BlockExplorer explorer )
+	{
 		// determine how many blocks to check
-		int numBlocksToCheck = getNumBlocksToCheck();
+		final int numBlocksToCheck = getNumBlocksToCheck();
 		
 		// find all the blocks connected to the ship block
 		m_blocks = BlockUtils.searchForBlocks(
@@ -99,7 +291,13 @@ public class ShipLauncher
 				@Override
 				public boolean shouldExploreBlock( Coords coords )
 				{
-					return !BlockProperties.isSeparator( Block.blocksList[world.getBlockId( coords.x, coords.y, coords.z )] );
+					boolean shouldExplore = explorer.shouldExploreBlock( coords );
+					if( shouldExplore && m_numBlocksChecked < numBlocksToCheck )
+					{
+						// report progress as we go
+						m_numBlocksChecked++;
+					}
+					return shouldExplore;
 				}
 			},
 			ShipBlockNeighbors
@@ -118,22 +316,34 @@ public class ShipLauncher
 			{
 				// also add the ship block
 				m_blocks.add( m_shipBlock );
-				
-				m_shipWorld = new ShipWorld( m_world, m_shipBlock, m_blocks );
-				m_shipPhysics = new ShipPhysics( m_shipWorld.getBlocksStorage() );
-				m_equilibriumWaterHeight = m_shipPhysics.getEquilibriumWaterHeight();
-				m_sinkWaterHeight = m_shipPhysics.getSinkWaterHeight();
 			}
 		}
 		else
 		{
 			// we found WAY too many blocks
-			m_shipWorld = null;
-			m_shipPhysics = null;
-			m_equilibriumWaterHeight = null;
-			m_sinkWaterHeight = null;
 			m_numBlocksChecked = numBlocksToCheck;
 		}
+	}
+	
+	private void computePhysics( )
+	{
+		m_shipPhysics = new ShipPhysics( m_shipWorld.getBlocksStorage() );
+		m_equilibriumWaterHeight = m_shipPhysics.getEquilibriumWaterHeight();
+		m_sinkWaterHeight = m_shipPhysics.getSinkWaterHeight();
+		
+		// build the envelopes too, so the gui doesn't have to
+		m_shipWorld.getGeometry().getEnvelopes();
+	}
+	
+	private void finishAnalysis( )
+	{
+		if( m_snapshot != null )
+		{
+			m_snapshot.close();
+			m_snapshot = null;
+		}
+		m_job = null;
+		m_isAnalyzed = true;
 		
 		// compute the launch flags
 		m_launchFlags = new ArrayList<Boolean>();
@@ -143,6 +353,11 @@ public class ShipLauncher
 		}
 	}
 	
+	public World getWorld( )
+	{
+		return m_world;
+	}
+	
 	public Coords getShipBlock( )
 	{
 		return m_shipBlock;
@@ -155,11 +370,20 @@ public class ShipLauncher
 	
 	public ShipWorld getShipWorld( )
 	{
+		// NOTE: the ship world belongs to the analysis job until it finishes
+		if( !m_isAnalyzed )
+		{
+			return null;
+		}
 		return m_shipWorld;
 	}
 	
 	public ShipPhysics getShipPhysics( )
 	{
+		if( !m_isAnalyzed )
+		{
+			return null;
+		}
 		return m_shipPhysics;
 	}
 	
@@ -181,6 +405,10 @@ public class ShipLauncher
 	
 	public boolean getLaunchFlag( LaunchFlag flag )
 	{
+		if( m_launchFlags == null )
+		{
+			return false;
+		}
 		return m_launchFlags.get( flag.ordinal() );
 	}
 	
@@ -226,7 +454,7 @@ public class ShipLauncher
 	
 	public BoundingBoxInt getShipBoundingBox( )
 	{
-		if( m_shipWorld == null )
+		if( getShipWorld() == null )
 		{
 			return null;
 		}
@@ -236,7 +464,7 @@ public class ShipLauncher
 	
 	public BlockArray getShipEnvelope( BlockSide side )
 	{
-		if( m_shipWorld == null )
+		if( getShipWorld() == null )
 		{
 			return null;
 		}
@@ -246,39 +474,91 @@ public class ShipLauncher
 	
 	public Double getEquilibriumWaterHeight( )
 	{
+		if( !m_isAnalyzed )
+		{
+			return null;
+		}
 		return m_equilibriumWaterHeight;
 	}
 	
 	public Integer getSinkWaterHeight( )
 	{
+		if( !m_isAnalyzed )
+		{
+			return null;
+		}
 		return m_sinkWaterHeight;
 	}
 	
+	public boolean isWorldUnchanged( )
+	{
+		// did anyone add, remove, or swap blocks in the ship since the analysis copied them?
+		if( m_blocks == null || m_shipWorld == null )
+		{
+			return false;
+		}
+		BlocksStorage storage = m_shipWorld.getBlocksStorage();
+		Coords relativeCoords = new Coords( 0, 0, 0 );
+		for( Coords worldCoords : m_blocks )
+		{
+			relativeCoords.set( worldCoords.x - m_shipBlock.x, worldCoords.y - m_shipBlock.y, worldCoords.z - m_shipBlock.z );
+			if( storage.getBlock( relativeCoords ).id != m_world.getBlockId( worldCoords.x, worldCoords.y, worldCoords.z ) )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	public EntityShip launch( )
 	{
 		// currently, this is only called on the server
 		assert( Environment.isServer() );
 		
-		// spawn the ship
-		EntityShip ship = new EntityShip( m_world );
-		initShip( ship, m_shipWorld, m_shipBlock );
+		// NOTE: this changes the world, so it has to happen on the main thread, after the analysis is done
+		if( !m_isAnalyzed || m_shipWorld == null )
+		{
+			Ships.logger.warning( "Ship at (%d,%d,%d) hasn't been analyzed. Can't launch it.", m_shipBlock.x, m_shipBlock.y, m_shipBlock.z );
+			return null;
+		}
+		if( !isWorldUnchanged() )
+		{
+			Ships.logger.warning( "Ship at (%d,%d,%d) changed since it was analyzed. Can't launch it.", m_shipBlock.x, m_shipBlock.y, m_shipBlock.z );
+			return null;
+		}
+		
+		// the analysis copied the blocks a few ticks ago. Copy them again in the same tick they're removed,
+		// so nothing players did in between (like taking items out of a chest) gets duplicated or lost
+		ShipWorld shipWorld = new ShipWorld( m_world, m_shipBlock, m_blocks );
 		
+		// spawn the ship before touching any blocks, so a failed spawn leaves the world as it was
+		EntityShip ship = new EntityShip( m_world );
+		placeShip( ship, shipWorld, m_shipBlock );
 		if( !m_world.spawnEntityInWorld( ship ) )
 		{
 			Ships.logger.warning( "Could not spawn ship in world at (%.2f,%.2f,%.2f)", ship.posX, ship.posY, ship.posZ );
 			return null;
 		}
 		
+		// then move the blocks out of the world
+		removeShipFromWorld( m_world, shipWorld, m_shipBlock, UpdateRules.UpdateNoOne );
+		
 		// update any berths
-		PlayerRespawner.onShipLaunch( (WorldServer)m_world, m_shipWorld, m_shipBlock );
+		PlayerRespawner.onShipLaunch( (WorldServer)m_world, shipWorld, m_shipBlock );
 		
 		// tell clients the ship launched
-		PacketDispatcher.sendPacketToAllPlayers( new PacketShipLaunched( ship, m_shipBlock ).getCustomPacket() );
+		Ships.m_packetQueue.sendToAllPlayers( new PacketShipLaunched( ship, m_shipBlock ) );
 		
 		return ship;
 	}
 	
 	public static void initShip( EntityShip ship, ShipWorld shipWorld, Coords shipBlock )
+	{
+		placeShip( ship, shipWorld, shipBlock );
+		removeShipFromWorld( ship.worldObj, shipWorld, shipBlock, UpdateRules.UpdateNoOne );
+	}
+	
+	private static void placeShip( EntityShip ship, ShipWorld shipWorld, Coords shipBlock )
 	{
 		Vec3 centerOfMass = new ShipPhysics( shipWorld.getBlocksStorage() ).getCenterOfMass();
 		
@@ -290,8 +570,6 @@ public class ShipLauncher
 			0, 0
 		);
 		ship.setShipWorld( shipWorld );
-		
-		removeShipFromWorld( ship.worldObj, shipWorld, shipBlock, UpdateRules.UpdateNoOne );
 	}
 	
 	public static void removeShipFromWorld( World world, ShipWorld shipWorld, Coords shipBlock, UpdateRules updateRules )
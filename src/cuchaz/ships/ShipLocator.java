@@ -10,9 +10,11 @@
  ******************************************************************************/
 package cuchaz.ships;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.WeakHashMap;
 
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.player.EntityPlayer;
@@ -24,53 +26,44 @@ import net.minecraft.world.World;
 
 public class ShipLocator
 {
-	public static List<EntityShip> getShips( World world )
+	// NOTE: the client and integrated server worlds live on different threads, so guard the map
+	private static Map<World,ShipRegistry> m_registries = Collections.synchronizedMap( new WeakHashMap<World,ShipRegistry>() );
+	
+	public static ShipRegistry getRegistry( World world )
 	{
-		List<EntityShip> ships = new ArrayList<EntityShip>();
-		for( Object entity : world.loadedEntityList )
+		synchronized( m_registries )
 		{
-			if( entity instanceof EntityShip )
+			ShipRegistry registry = m_registries.get( world );
+			if( registry == null )
 			{
-				ships.add( (EntityShip)entity );
+				registry = new ShipRegistry();
+				m_registries.put( world, registry );
 			}
+			return registry;
 		}
-		return ships;
 	}
 	
-	public static EntityShip getShip( World world, int entityId )
+	public static void removeRegistry( World world )
 	{
-		return getShip( getShips( world ), entityId );
+		// NOTE: the registered ships point back to the world, so the weak map alone can't let the world go
+		m_registries.remove( world );
 	}
 	
-	public static EntityShip getShip( World world, UUID uuid )
+	public static List<EntityShip> getShips( World world )
 	{
-		return getShip( getShips( world ), uuid );
+		return getRegistry( world ).getShips();
 	}
 	
-	private static EntityShip getShip( List<EntityShip> ships, int entityId )
+	public static EntityShip getShip( World world, int entityId )
 	{
-		for( EntityShip ship : ships )
-		{
-			if( ship.entityId == entityId )
-			{
-				return ship;
-			}
-		}
-		return null;
+		return getRegistry( world ).getShip( entityId );
 	}
 	
-	private static EntityShip getShip( List<EntityShip> ships, UUID uuid )
+	public static EntityShip getShip( World world, UUID uuid )
 	{
-		for( EntityShip ship : ships )
-		{
-			if( ship.getPersistentID().equals( uuid ) )
-			{
-				return ship;
-			}
-		}
-		return null;
+		return getRegistry( world ).getShip( uuid );
 	}
-
+	
 	public static EntityShip getFromPlayerLook( EntityPlayer player )
 	{
 		// find out what entity the player is looking at
@@ -130,14 +123,7 @@ public class ShipLocator
 		// sadly, we can't use World.getEntitiesWithinAABB() because ship entities are too big.
 		// It will only return entities whose positions are within near the chunk of the query box.
 		// it doesn't do a global box-to-box test. =(
-		List<EntityShip> ships = new ArrayList<EntityShip>();
-		for( EntityShip ship : getShips( world ) )
-		{
-			if( ship.boundingBox.intersectsWith( box ) )
-			{
-				ships.add( ship );
-			}
-		}
-		return ships;
+		// so we keep our own index of ship bounding boxes instead
+		return getRegistry( world ).findShipsInBox( box );
 	}
 }
@@ -0,0 +1,541 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import net.minecraft.util.AxisAlignedBB;
+import net.minecraft.util.MathHelper;
+import net.minecraft.util.Vec3;
+import cuchaz.modsShared.blocks.BlockSet;
+import cuchaz.modsShared.blocks.BoundingBoxInt;
+import cuchaz.modsShared.blocks.Coords;
+
+public class ShipOccupancy
+{
+	// NOTE: the ship is cut into 16x16x16 sections, each one is a 4096-bit bitset
+	// each 16-bit x row of a section is addressed by (y,z), and four rows are packed into a long
+	
+	private static final int SectionBits = 4;
+	private static final int SectionSize = 1 << SectionBits;
+	private static final int SectionMask = SectionSize - 1;
+	private static final int WordsPerSection = SectionSize*SectionSize*SectionSize/64;
+	private static final int RowMask = 0xffff;
+	
+	public static class Cursor
+	{
+		public int x;
+		public int y;
+		public int z;
+		
+		private ShipOccupancy m_occupancy;
+		private int m_minX;
+		private int m_maxX;
+		private int m_maxY;
+		private int m_minZ;
+		private int m_maxZ;
+		private int m_minSectionX;
+		private int m_maxSectionX;
+		private int m_rowY;
+		private int m_rowZ;
+		private int m_rowSectionX;
+		private int m_rowBits;
+		private boolean m_isDone;
+		
+		public Cursor( )
+		{
+			m_occupancy = null;
+			m_isDone = true;
+		}
+		
+		public void reset( ShipOccupancy occupancy, int minX, int minY, int minZ, int maxX, int maxY, int maxZ )
+		{
+			m_occupancy = occupancy;
+			m_rowBits = 0;
+			
+			// clamp the query to the ship bounds
+			if( occupancy.m_box != null )
+			{
+				minX = Math.max( minX, occupancy.m_box.minX );
+				minY = Math.max( minY, occupancy.m_box.minY );
+				minZ = Math.max( minZ, occupancy.m_box.minZ );
+				maxX = Math.min( maxX, occupancy.m_box.maxX );
+				maxY = Math.min( maxY, occupancy.m_box.maxY );
+				maxZ = Math.min( maxZ, occupancy.m_box.maxZ );
+			}
+			m_isDone = occupancy.m_box == null || minX > maxX || minY > maxY || minZ > maxZ;
+			
+			m_minX = minX;
+			m_maxX = maxX;
+			m_maxY = maxY;
+			m_minZ = minZ;
+			m_maxZ = maxZ;
+			m_minSectionX = minX >> SectionBits;
+			m_maxSectionX = maxX >> SectionBits;
+			
+			// start just before the first row so the first advance lands on it
+			m_rowY = minY;
+			m_rowZ = minZ;
+			m_rowSectionX = m_minSectionX - 1;
+		}
+		
+		public void reset( ShipOccupancy occupancy, AxisAlignedBB box )
+		{
+			reset(
+				occupancy,
+				MathHelper.floor_double( box.minX ),
+				MathHelper.floor_double( box.minY ),
+				MathHelper.floor_double( box.minZ ),
+				MathHelper.floor_double( box.maxX ),
+				MathHelper.floor_double( box.maxY ),
+				MathHelper.floor_double( box.maxZ )
+			);
+		}
+		
+		public boolean next( )
+		{
+			while( m_rowBits == 0 )
+			{
+				if( !advanceRow() )
+				{
+					return false;
+				}
+			}
+			
+			// pop the lowest set bit off the row
+			int localX = Integer.numberOfTrailingZeros( m_rowBits );
+			m_rowBits &= m_rowBits - 1;
+			
+			x = ( m_rowSectionX << SectionBits ) + localX;
+			y = m_rowY;
+			z = m_rowZ;
+			return true;
+		}
+		
+		public void getCoords( Coords out )
+		{
+			out.set( x, y, z );
+		}
+		
+		private boolean advanceRow( )
+		{
+			if( m_isDone )
+			{
+				return false;
+			}
+			
+			// move to the next section along x, then the next z row, then the next y layer
+			m_rowSectionX++;
+			if( m_rowSectionX > m_maxSectionX )
+			{
+				m_rowSectionX = m_minSectionX;
+				m_rowZ++;
+				if( m_rowZ > m_maxZ )
+				{
+					m_rowZ = m_minZ;
+					m_rowY++;
+					if( m_rowY > m_maxY )
+					{
+						m_isDone = true;
+						return false;
+					}
+				}
+			}
+			
+			m_rowBits = m_occupancy.getRow( m_rowSectionX, m_rowY, m_rowZ ) & getXMask( m_rowSectionX, m_minX, m_maxX );
+			return true;
+		}
+	}
+	
+	public static class RayCursor
+	{
+		// NOTE: this walks the grid cells along a line segment in order (Amanatides and Woo),
+		// but only stops at the occupied ones
+		
+		public int x;
+		public int y;
+		public int z;
+		
+		// the fraction of the segment where it enters the current cell
+		public double t;
+		
+		private ShipOccupancy m_occupancy;
+		private int m_stepX;
+		private int m_stepY;
+		private int m_stepZ;
+		private double m_nextTX;
+		private double m_nextTY;
+		private double m_nextTZ;
+		private double m_deltaTX;
+		private double m_deltaTY;
+		private double m_deltaTZ;
+		private double m_maxT;
+		private double[] m_range;
+		private boolean m_isStarted;
+		private boolean m_isDone;
+		
+		public RayCursor( )
+		{
+			m_occupancy = null;
+			m_range = new double[2];
+			m_isDone = true;
+		}
+		
+		public void reset( ShipOccupancy occupancy, double fromX, double fromY, double fromZ, double toX, double toY, double toZ )
+		{
+			m_occupancy = occupancy;
+			m_isStarted = false;
+			m_isDone = true;
+			
+			BoundingBoxInt box = occupancy.m_box;
+			if( box == null )
+			{
+				return;
+			}
+			
+			// clip the segment to the ship bounds so we don't walk through empty space
+			double dx = toX - fromX;
+			double dy = toY - fromY;
+			double dz = toZ - fromZ;
+			m_range[0] = 0;
+			m_range[1] = 1;
+			if( !clip( m_range, fromX, dx, box.minX, box.maxX + 1 ) || !clip( m_range, fromY, dy, box.minY, box.maxY + 1 ) || !clip( m_range, fromZ, dz, box.minZ, box.maxZ + 1 ) )
+			{
+				return;
+			}
+			double minT = m_range[0];
+			m_maxT = m_range[1];
+			
+			// find the first cell. Clamp it in case we entered exactly on a max face
+			t = minT;
+			x = clamp( MathHelper.floor_double( fromX + dx*minT ), box.minX, box.maxX );
+			y = clamp( MathHelper.floor_double( fromY + dy*minT ), box.minY, box.maxY );
+			z = clamp( MathHelper.floor_double( fromZ + dz*minT ), box.minZ, box.maxZ );
+			
+			m_stepX = dx > 0 ? 1 : ( dx < 0 ? -1 : 0 );
+			m_stepY = dy > 0 ? 1 : ( dy < 0 ? -1 : 0 );
+			m_stepZ = dz > 0 ? 1 : ( dz < 0 ? -1 : 0 );
+			m_deltaTX = m_stepX == 0 ? Double.POSITIVE_INFINITY : Math.abs( 1/dx );
+			m_deltaTY = m_stepY == 0 ? Double.POSITIVE_INFINITY : Math.abs( 1/dy );
+			m_deltaTZ = m_stepZ == 0 ? Double.POSITIVE_INFINITY : Math.abs( 1/dz );
+			m_nextTX = getNextT( fromX, dx, x, m_stepX );
+			m_nextTY = getNextT( fromY, dy, y, m_stepY );
+			m_nextTZ = getNextT( fromZ, dz, z, m_stepZ );
+			m_isDone = false;
+		}
+		
+		public void reset( ShipOccupancy occupancy, Vec3 from, Vec3 to )
+		{
+			reset( occupancy, from.xCoord, from.yCoord, from.zCoord, to.xCoord, to.yCoord, to.zCoord );
+		}
+		
+		public boolean next( )
+		{
+			while( !m_isDone )
+			{
+				if( m_isStarted )
+				{
+					advance();
+					if( m_isDone )
+					{
+						return false;
+					}
+				}
+				m_isStarted = true;
+				
+				if( m_occupancy.contains( x, y, z ) )
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		public void getCoords( Coords out )
+		{
+			out.set( x, y, z );
+		}
+		
+		private void advance( )
+		{
+			// step across whichever cell boundary comes first
+			if( m_nextTX <= m_nextTY && m_nextTX <= m_nextTZ )
+			{
+				t = m_nextTX;
+				x += m_stepX;
+				m_nextTX += m_deltaTX;
+			}
+			else if( m_nextTY <= m_nextTZ )
+			{
+				t = m_nextTY;
+				y += m_stepY;
+				m_nextTY += m_deltaTY;
+			}
+			else
+			{
+				t = m_nextTZ;
+				z += m_stepZ;
+				m_nextTZ += m_deltaTZ;
+			}
+			
+			BoundingBoxInt box = m_occupancy.m_box;
+			m_isDone = t > m_maxT
+				|| x < box.minX || x > box.maxX
+				|| y < box.minY || y > box.maxY
+				|| z < box.minZ || z > box.maxZ;
+		}
+		
+		private static boolean clip( double[] range, double from, double delta, double min, double max )
+		{
+			if( delta == 0 )
+			{
+				return from >= min && from <= max;
+			}
+			double t1 = ( min - from )/delta;
+			double t2 = ( max - from )/delta;
+			range[0] = Math.max( range[0], Math.min( t1, t2 ) );
+			range[1] = Math.min( range[1], Math.max( t1, t2 ) );
+			return range[0] <= range[1];
+		}
+		
+		private static double getNextT( double from, double delta, int cell, int step )
+		{
+			if( step == 0 )
+			{
+				return Double.POSITIVE_INFINITY;
+			}
+			return ( ( step > 0 ? cell + 1 : cell ) - from )/delta;
+		}
+		
+		private static int clamp( int val, int min, int max )
+		{
+			return Math.max( min, Math.min( max, val ) );
+		}
+	}
+	
+	private BoundingBoxInt m_box;
+	private int m_minSectionX;
+	private int m_minSectionY;
+	private int m_minSectionZ;
+	private int m_numSectionsX;
+	private int m_numSectionsY;
+	private int m_numSectionsZ;
+	private long[][] m_sections;
+	private int m_numBlocks;
+	
+	public ShipOccupancy( BlockSet blocks )
+	{
+		m_numBlocks = 0;
+		
+		if( blocks.isEmpty() )
+		{
+			m_box = null;
+			m_sections = new long[0][];
+			return;
+		}
+		
+		// allocate a dense grid of sections over the bounding box. Empty sections stay null
+		m_box = new BoundingBoxInt( blocks.getBoundingBox() );
+		m_minSectionX = m_box.minX >> SectionBits;
+		m_minSectionY = m_box.minY >> SectionBits;
+		m_minSectionZ = m_box.minZ >> SectionBits;
+		m_numSectionsX = ( m_box.maxX >> SectionBits ) - m_minSectionX + 1;
+		m_numSectionsY = ( m_box.maxY >> SectionBits ) - m_minSectionY + 1;
+		m_numSectionsZ = ( m_box.maxZ >> SectionBits ) - m_minSectionZ + 1;
+		m_sections = new long[m_numSectionsX*m_numSectionsY*m_numSectionsZ][];
+		
+		for( Coords coords : blocks )
+		{
+			int index = getSectionIndex( coords.x >> SectionBits, coords.y >> SectionBits, coords.z >> SectionBits );
+			long[] section = m_sections[index];
+			if( section == null )
+			{
+				section = new long[WordsPerSection];
+				m_sections[index] = section;
+			}
+			int bit = getBitIndex( coords.x, coords.y, coords.z );
+			section[bit >> 6] |= 1L << ( bit & 63 );
+			m_numBlocks++;
+		}
+	}
+	
+	public int getNumBlocks( )
+	{
+		return m_numBlocks;
+	}
+	
+	public BoundingBoxInt getBoundingBox( )
+	{
+		return m_box;
+	}
+	
+	public boolean contains( Coords coords )
+	{
+		return contains( coords.x, coords.y, coords.z );
+	}
+	
+	public boolean contains( int x, int y, int z )
+	{
+		return ( getRow( x >> SectionBits, y, z ) & ( 1 << ( x & SectionMask ) ) ) != 0;
+	}
+	
+	public boolean add( int x, int y, int z )
+	{
+		// NOTE: the section grid can't grow. If the block is outside it, the caller has to build a new occupancy
+		long[] section = null;
+		if( m_box != null )
+		{
+			section = getSection( x >> SectionBits, y >> SectionBits, z >> SectionBits );
+			if( section == null && isInGrid( x, y, z ) )
+			{
+				section = new long[WordsPerSection];
+				m_sections[getSectionIndex( x >> SectionBits, y >> SectionBits, z >> SectionBits )] = section;
+			}
+		}
+		if( section == null )
+		{
+			return false;
+		}
+		
+		int bit = getBitIndex( x, y, z );
+		long mask = 1L << ( bit & 63 );
+		if( ( section[bit >> 6] & mask ) == 0 )
+		{
+			section[bit >> 6] |= mask;
+			m_numBlocks++;
+		}
+		
+		m_box.minX = Math.min( m_box.minX, x );
+		m_box.minY = Math.min( m_box.minY, y );
+		m_box.minZ = Math.min( m_box.minZ, z );
+		m_box.maxX = Math.max( m_box.maxX, x );
+		m_box.maxY = Math.max( m_box.maxY, y );
+		m_box.maxZ = Math.max( m_box.maxZ, z );
+		return true;
+	}
+	
+	public void remove( int x, int y, int z )
+	{
+		// NOTE: the bounding box doesn't shrink, but it's only used to clamp queries
+		long[] section = getSection( x >> SectionBits, y >> SectionBits, z >> SectionBits );
+		if( section == null )
+		{
+			return;
+		}
+		int bit = getBitIndex( x, y, z );
+		long mask = 1L << ( bit & 63 );
+		if( ( section[bit >> 6] & mask ) != 0 )
+		{
+			section[bit >> 6] &= ~mask;
+			m_numBlocks--;
+		}
+	}
+	
+	public boolean containsAny( AxisAlignedBB box )
+	{
+		return containsAny(
+			MathHelper.floor_double( box.minX ),
+			MathHelper.floor_double( box.minY ),
+			MathHelper.floor_double( box.minZ ),
+			MathHelper.floor_double( box.maxX ),
+			MathHelper.floor_double( box.maxY ),
+			MathHelper.floor_double( box.maxZ )
+		);
+	}
+	
+	public boolean containsAny( int minX, int minY, int minZ, int maxX, int maxY, int maxZ )
+	{
+		if( m_box == null )
+		{
+			return false;
+		}
+		
+		// clamp the query to the ship bounds
+		minX = Math.max( minX, m_box.minX );
+		minY = Math.max( minY, m_box.minY );
+		minZ = Math.max( minZ, m_box.minZ );
+		maxX = Math.min( maxX, m_box.maxX );
+		maxY = Math.min( maxY, m_box.maxY );
+		maxZ = Math.min( maxZ, m_box.maxZ );
+		
+		// test whole rows at a time
+		int minSectionX = minX >> SectionBits;
+		int maxSectionX = maxX >> SectionBits;
+		for( int y=minY; y<=maxY; y++ )
+		{
+			for( int z=minZ; z<=maxZ; z++ )
+			{
+				for( int sx=minSectionX; sx<=maxSectionX; sx++ )
+				{
+					if( ( getRow( sx, y, z ) & getXMask( sx, minX, maxX ) ) != 0 )
+					{
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+	
+	private int getRow( int sectionX, int y, int z )
+	{
+		long[] section = getSection( sectionX, y >> SectionBits, z >> SectionBits );
+		if( section == null )
+		{
+			return 0;
+		}
+		int rowIndex = ( ( y & SectionMask ) << SectionBits ) | ( z & SectionMask );
+		return (int)( section[rowIndex >> 2] >>> ( ( rowIndex & 3 ) << SectionBits ) ) & RowMask;
+	}
+	
+	private long[] getSection( int sectionX, int sectionY, int sectionZ )
+	{
+		int ix = sectionX - m_minSectionX;
+		int iy = sectionY - m_minSectionY;
+		int iz = sectionZ - m_minSectionZ;
+		if( ix < 0 || ix >= m_numSectionsX || iy < 0 || iy >= m_numSectionsY || iz < 0 || iz >= m_numSectionsZ )
+		{
+			return null;
+		}
+		return m_sections[( iy*m_numSectionsZ + iz )*m_numSectionsX + ix];
+	}
+	
+	private boolean isInGrid( int x, int y, int z )
+	{
+		int ix = ( x >> SectionBits ) - m_minSectionX;
+		int iy = ( y >> SectionBits ) - m_minSectionY;
+		int iz = ( z >> SectionBits ) - m_minSectionZ;
+		return ix >= 0 && ix < m_numSectionsX && iy >= 0 && iy < m_numSectionsY && iz >= 0 && iz < m_numSectionsZ;
+	}
+	
+	private int getSectionIndex( int sectionX, int sectionY, int sectionZ )
+	{
+		return ( ( sectionY - m_minSectionY )*m_numSectionsZ + ( sectionZ - m_minSectionZ ) )*m_numSectionsX + ( sectionX - m_minSectionX );
+	}
+	
+	private static int getBitIndex( int x, int y, int z )
+	{
+		// this matches the row layout used by getRow()
+		int rowIndex = ( ( y & SectionMask ) << SectionBits ) | ( z & SectionMask );
+		return ( rowIndex << SectionBits ) | ( x & SectionMask );
+	}
+	
+	private static int getXMask( int sectionX, int minX, int maxX )
+	{
+		// get the bits of this section's row that fall inside [minX,maxX]
+		int sectionMinX = sectionX << SectionBits;
+		int lo = Math.max( minX - sectionMinX, 0 );
+		int hi = Math.min( maxX - sectionMinX, SectionMask );
+		if( lo > hi )
+		{
+			return 0;
+		}
+		return ( ( 1 << ( hi + 1 ) ) - 1 ) & ~( ( 1 << lo ) - 1 );
+	}
+}
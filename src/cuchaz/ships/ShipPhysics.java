@@ -12,14 +12,14 @@ package cuchaz.ships;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 import net.minecraft.block.Block;
 import net.minecraft.util.MathHelper;
 import net.minecraft.util.Vec3;
 import cuchaz.modsShared.Util;
+import cuchaz.modsShared.blocks.BlockSet;
 import cuchaz.modsShared.blocks.BlockSide;
+import cuchaz.modsShared.blocks.BoundingBoxInt;
 import cuchaz.modsShared.blocks.Coords;
 import cuchaz.ships.config.BlockProperties;
 import cuchaz.ships.propulsion.Propulsion;
@@ -61,42 +61,92 @@ public class ShipPhysics
 		}
 	}
 	
-	private static class ScaledDisplacementEntry
-	{
-		double surfaceDisplacement;
-		double underwaterDisplacement;
-	}
-	
 	private BlocksStorage m_blocks;
 	private double m_shipMass;
+	private double m_massMomentX;
+	private double m_massMomentY;
+	private double m_massMomentZ;
 	private Vec3 m_centerOfMass;
 	private Double m_equilibriumWaterHeight;
 	private Integer m_sinkWaterHeight;
-	private Map<Integer,ScaledDisplacementEntry> m_displacement;
+	private int m_displacementMinY;
+	private double[] m_surfaceDisplacement;
+	private double[] m_underwaterDisplacement;
+	private int m_envelopeMinY;
+	private int[][] m_envelopeCounts;
+	private double[][] m_envelopeDistances;
 	
 	public ShipPhysics( BlocksStorage blocks )
 	{
 		m_blocks = blocks;
 		
-		// compute the total mass
+		// compute the total mass and the center of mass
 		m_shipMass = 0.0;
+		m_massMomentX = 0.0;
+		m_massMomentY = 0.0;
+		m_massMomentZ = 0.0;
 		for( Coords coords : m_blocks.coords() )
 		{
-			m_shipMass += BlockProperties.getMass( getBlock( coords ) );
+			addMass( coords, BlockProperties.getMass( getBlock( coords ) ) );
 		}
+		m_centerOfMass = Vec3.createVectorHelper( 0, 0, 0 );
+		updateCenterOfMass();
 		
 		// compute some extra stuff
-		m_centerOfMass = computeCenterOfMass();
-		m_displacement = new TreeMap<Integer,ScaledDisplacementEntry>();
-		m_equilibriumWaterHeight = computeEquilibriumWaterHeight();
-		m_sinkWaterHeight = m_blocks.getDisplacement().getLastFillY();
+		computeDisplacement();
+		computeEnvelopeHistograms();
+		computeWaterHeights();
+	}
+	
+	public void onBlockChanged( Coords coords, Block oldBlock, boolean hadBlock, Block newBlock, boolean hasBlock, boolean isDisplacementPatched )
+	{
+		// NOTE: the blocks storage has already been updated
+		// hadBlock/hasBlock tell the difference between air and no block at all
 		
-		// is the ship unsinkable?
-		ScaledDisplacementEntry lastDisplacement = getScaledDisplacement( m_blocks.getDisplacement().getMaxY() + 1 );
-		if( lastDisplacement.surfaceDisplacement + lastDisplacement.underwaterDisplacement > m_shipMass )
+		// update the mass
+		int oldCenterX = (int)m_centerOfMass.xCoord;
+		int oldCenterZ = (int)m_centerOfMass.zCoord;
+		if( hadBlock )
 		{
-			m_sinkWaterHeight = null;
+			addMass( coords, -BlockProperties.getMass( oldBlock ) );
+		}
+		if( hasBlock )
+		{
+			addMass( coords, BlockProperties.getMass( newBlock ) );
+		}
+		updateCenterOfMass();
+		
+		// update the displacement
+		boolean wasWatertight = hadBlock && BlockProperties.isWatertight( oldBlock );
+		boolean isWatertight = hasBlock && BlockProperties.isWatertight( newBlock );
+		if( isDisplacementPatched && wasWatertight != isWatertight && m_blocks.getDisplacement().isTrappedAirChanged() )
+		{
+			// the trapped air changed too, so sum the layers that can see the block again
+			computeDisplacementLayers( coords.y - m_displacementMinY );
+		}
+		else if( isDisplacementPatched )
+		{
+			updateDisplacement( coords, oldBlock, hadBlock, newBlock, hasBlock );
 		}
+		else
+		{
+			computeDisplacement();
+		}
+		
+		// update the envelopes
+		BoundingBoxInt box = m_blocks.getBoundingBox();
+		boolean isSameLayers = box.minY == m_envelopeMinY && box.maxY - box.minY + 1 == m_envelopeCounts[0].length;
+		boolean isSameCenter = (int)m_centerOfMass.xCoord == oldCenterX && (int)m_centerOfMass.zCoord == oldCenterZ;
+		if( !isSameLayers || !isSameCenter )
+		{
+			computeEnvelopeHistograms();
+		}
+		else if( hadBlock != hasBlock )
+		{
+			updateEnvelopeHistograms( coords, hasBlock );
+		}
+		
+		computeWaterHeights();
 	}
 	
 	public double getMass( )
@@ -148,8 +198,6 @@ public class ShipPhysics
 	
 	public double getLinearAccelerationDueToDrag( Vec3 velocity, double waterHeight )
 	{
-		// UNDONE: it may be more efficient to cache these computations
-		
 		// which side is the leading side?
 		BlockSide leadingSide = null;
 		double bestDot = Double.NEGATIVE_INFINITY;
@@ -164,22 +212,7 @@ public class ShipPhysics
 		}
 		assert( leadingSide != null );
 		
-		// compute the viscosity
-		double airSurfaceArea = 0;
-		double waterSurfaceArea = 0;
-		for( Coords coords : m_blocks.getGeometry().getEnvelopes().getEnvelope( leadingSide ).toBlockSet() )
-		{
-			double fractionSubmerged = leadingSide.getFractionSubmerged( coords.y, waterHeight );
-			waterSurfaceArea += fractionSubmerged;
-			airSurfaceArea += 1 - fractionSubmerged;
-		}
-		double linearViscosity = AirViscosity*airSurfaceArea + WaterViscosity*waterSurfaceArea;
-		
-		// how fast are we going?
-		double speed = velocity.lengthVector();
-		
-		// compute the drag force using a quadratic drag approximation
-		return BaseLinearDrag + speed*speed*linearViscosity/m_shipMass;
+		return getLinearDrag( velocity.lengthVector(), getLinearViscosity( leadingSide, waterHeight ) );
 	}
 	
 	public float getAngularAccelerationDueToThrust( Propulsion propulsion )
@@ -189,12 +222,7 @@ public class ShipPhysics
 	
 	public float getAngularAccelerationDueToDrag( float motionYaw, double waterHeight )
 	{
-		// compute the viscosity in both directions
-		double angularViscosity = 0
-			+ getAngularViscosity( BlockSide.North, waterHeight, m_centerOfMass.xCoord )
-			+ getAngularViscosity( BlockSide.East, waterHeight, m_centerOfMass.zCoord );
-		
-		return (float)( BaseAngularDrag + motionYaw*motionYaw*angularViscosity/m_shipMass );
+		return getAngularDrag( motionYaw, getAngularViscosity( waterHeight ) );
 	}
 	
 	public List<AccelerationEntry> getLinearAcceleration( Propulsion propulsion, double stopSpeed, int numSteps )
@@ -204,18 +232,16 @@ public class ShipPhysics
 			throw new IllegalArgumentException( "Cannot compute acceleration for a non-buoyant ship!" );
 		}
 		
+		// NOTE: at the equilibrium water height, the viscosity doesn't depend on the speed
+		double linearViscosity = getLinearViscosity( propulsion.getFrontSide(), m_equilibriumWaterHeight );
 		List<AccelerationEntry> entries = new ArrayList<AccelerationEntry>( numSteps );
-		Vec3 velocity = Vec3.createVectorHelper( 0, 0, 0 );
 		for( int i=0; i<numSteps; i++ )
 		{
 			double speed = interpolateSpeed( stopSpeed, numSteps, i );
-			velocity.xCoord = speed*propulsion.getFrontSide().getDx();
-			velocity.zCoord = speed*propulsion.getFrontSide().getDz();
-			
 			entries.add( new AccelerationEntry(
 				speed,
 				getLinearAccelerationDueToThrust( propulsion, speed ),
-				getLinearAccelerationDueToDrag( velocity, m_equilibriumWaterHeight )
+				getLinearDrag( speed, linearViscosity )
 			) );
 		}
 		return entries;
@@ -228,6 +254,7 @@ public class ShipPhysics
 			throw new IllegalArgumentException( "Cannot compute acceleration for a non-buoyant ship!" );
 		}
 		
+		double angularViscosity = getAngularViscosity( m_equilibriumWaterHeight );
 		List<AccelerationEntry> entries = new ArrayList<AccelerationEntry>( numSteps );
 		for( int i=0; i<numSteps; i++ )
 		{
@@ -236,7 +263,7 @@ public class ShipPhysics
 			entries.add( new AccelerationEntry(
 				speed,
 				getAngularAccelerationDueToThrust( propulsion ),
-				getAngularAccelerationDueToDrag( (float)speed, m_equilibriumWaterHeight )
+				getAngularDrag( (float)speed, angularViscosity )
 			) );
 		}
 		return entries;
@@ -246,7 +273,7 @@ public class ShipPhysics
 	{
 		return (double)i/(double)( numSteps - 1 ) * stopSpeed;
 	}
-
+	
 	public SimulationResult simulateLinearAcceleration( Propulsion propulsion )
 	{
 		if( m_equilibriumWaterHeight == null )
@@ -255,16 +282,13 @@ public class ShipPhysics
 		}
 		
 		// discrete-time simulation of forward acceleration from rest
+		double linearViscosity = getLinearViscosity( propulsion.getFrontSide(), m_equilibriumWaterHeight );
 		double speed = 0;
-		Vec3 velocity = Vec3.createVectorHelper( 0, 0, 0 );
 		int i = 0;
 		for( ; i<NumSimulationTicks; i++ )
 		{
-			velocity.xCoord = speed*propulsion.getFrontSide().getDx();
-			velocity.zCoord = speed*propulsion.getFrontSide().getDz();
-			
 			double thrustAcceleration = getLinearAccelerationDueToThrust( propulsion, speed );
-			double dragAcceleration = getLinearAccelerationDueToDrag( velocity, m_equilibriumWaterHeight );
+			double dragAcceleration = getLinearDrag( speed, linearViscosity );
 			dragAcceleration = Math.min( speed + thrustAcceleration, dragAcceleration );
 			double netAcceleration = thrustAcceleration - dragAcceleration;
 			speed += netAcceleration;
@@ -288,11 +312,12 @@ public class ShipPhysics
 		// determine the top speed numerically
 		// again, I'm too lazy to write down the equations and solve them analytically...
 		double thrustAcceleration = getAngularAccelerationDueToThrust( propulsion );
+		double angularViscosity = getAngularViscosity( m_equilibriumWaterHeight );
 		float speed = 0;
 		int i = 0;
 		for( ; i<NumSimulationTicks; i++ )
 		{
-			double dragAcceleration = getAngularAccelerationDueToDrag( speed, m_equilibriumWaterHeight );
+			double dragAcceleration = getAngularDrag( speed, angularViscosity );
 			dragAcceleration = Math.min( speed + thrustAcceleration, dragAcceleration );
 			double netAcceleration = thrustAcceleration - dragAcceleration;
 			speed += netAcceleration;
@@ -319,32 +344,84 @@ public class ShipPhysics
 	
 	private double getUnderwaterDisplacement( int y )
 	{
-		return getScaledDisplacement( y ).underwaterDisplacement;
+		int i = getDisplacementIndex( y );
+		return i < 0 ? 0 : m_underwaterDisplacement[i];
 	}
 	
 	private double getSurfaceDisplacement( int y )
 	{
-		return getScaledDisplacement( y ).surfaceDisplacement;
+		int i = getDisplacementIndex( y );
+		return i < 0 ? 0 : m_surfaceDisplacement[i];
 	}
-
-	private ScaledDisplacementEntry getScaledDisplacement( int y )
+	
+	private int getDisplacementIndex( int y )
+	{
+		// below the ship, nothing is displaced
+		if( y < m_displacementMinY )
+		{
+			return -1;
+		}
+		
+		// above the ship, everything is underwater, so clamp like ShipDisplacement does
+		return Math.min( y - m_displacementMinY, m_surfaceDisplacement.length - 1 );
+	}
+	
+	private void computeDisplacement( )
 	{
-		ScaledDisplacementEntry entry = m_displacement.get( y );
-		if( entry == null )
+		// sum the displacement of each layer once, so buoyancy is just a table lookup
+		// NOTE: ShipDisplacement has an entry for every layer in [minY,maxY+1]
+		ShipDisplacement displacement = m_blocks.getDisplacement();
+		m_displacementMinY = displacement.getMinY();
+		int numLayers = displacement.getMaxY() - m_displacementMinY + 2;
+		m_surfaceDisplacement = new double[numLayers];
+		m_underwaterDisplacement = new double[numLayers];
+		computeDisplacementLayers( 0 );
+	}
+	
+	private void computeDisplacementLayers( int minLayer )
+	{
+		ShipDisplacement displacement = m_blocks.getDisplacement();
+		for( int i=Math.max( 0, minLayer ); i<m_surfaceDisplacement.length; i++ )
 		{
-			entry = new ScaledDisplacementEntry();
-			entry.surfaceDisplacement = 0;
-			for( Coords coords : m_blocks.getDisplacement().getSurfaceBlocks( y ) )
+			int y = m_displacementMinY + i;
+			m_surfaceDisplacement[i] = 0;
+			m_underwaterDisplacement[i] = 0;
+			for( Coords coords : displacement.getSurfaceBlocks( y ) )
+			{
+				m_surfaceDisplacement[i] += BlockProperties.getDisplacement( getBlock( coords ) );
+			}
+			for( Coords coords : displacement.getUnderwaterBlocks( y ) )
 			{
-				entry.surfaceDisplacement += BlockProperties.getDisplacement( getBlock( coords ) );
+				m_underwaterDisplacement[i] += BlockProperties.getDisplacement( getBlock( coords ) );
 			}
-			entry.underwaterDisplacement = 0;
-			for( Coords coords : m_blocks.getDisplacement().getUnderwaterBlocks( y ) )
+		}
+	}
+	
+	private void updateDisplacement( Coords coords, Block oldBlock, boolean hadBlock, Block newBlock, boolean hasBlock )
+	{
+		// only the layers at or above the block can see it
+		// before the edit, a watertight block was at the surface of its layer and underwater above it
+		// otherwise, the block was wherever the displacement still has it (e.g. in trapped air)
+		ShipDisplacement displacement = m_blocks.getDisplacement();
+		boolean wasWatertight = hadBlock && BlockProperties.isWatertight( oldBlock );
+		boolean isWatertight = hasBlock && BlockProperties.isWatertight( newBlock );
+		double oldDisplacement = BlockProperties.getDisplacement( oldBlock );
+		double newDisplacement = BlockProperties.getDisplacement( newBlock );
+		for( int i=Math.max( 0, coords.y - m_displacementMinY ); i<m_surfaceDisplacement.length; i++ )
+		{
+			int y = m_displacementMinY + i;
+			boolean isSurface = displacement.getSurfaceBlocks( y ).contains( coords );
+			boolean isUnderwater = displacement.getUnderwaterBlocks( y ).contains( coords );
+			boolean wasSurface = isSurface;
+			boolean wasUnderwater = isUnderwater;
+			if( wasWatertight != isWatertight )
 			{
-				entry.underwaterDisplacement += BlockProperties.getDisplacement( getBlock( coords ) );
+				wasSurface = wasWatertight && y == coords.y;
+				wasUnderwater = wasWatertight && y > coords.y;
 			}
+			m_surfaceDisplacement[i] += ( isSurface ? newDisplacement : 0 ) - ( wasSurface ? oldDisplacement : 0 );
+			m_underwaterDisplacement[i] += ( isUnderwater ? newDisplacement : 0 ) - ( wasUnderwater ? oldDisplacement : 0 );
 		}
-		return entry;
 	}
 	
 	private Double computeEquilibriumWaterHeight( )
@@ -374,22 +451,33 @@ public class ShipPhysics
 		return null;
 	}
 	
-	private Vec3 computeCenterOfMass( )
+	private void computeWaterHeights( )
 	{
-		Vec3 com = Vec3.createVectorHelper( 0, 0, 0 );
-		double totalMass = 0.0;
-		for( Coords coords : m_blocks.coords() )
+		m_equilibriumWaterHeight = computeEquilibriumWaterHeight();
+		m_sinkWaterHeight = m_blocks.getDisplacement().getLastFillY();
+		
+		// is the ship unsinkable?
+		int lastY = m_blocks.getDisplacement().getMaxY() + 1;
+		if( getSurfaceDisplacement( lastY ) + getUnderwaterDisplacement( lastY ) > m_shipMass )
 		{
-			double mass = BlockProperties.getMass( getBlock( coords ) );
-			totalMass += mass;
-			com.xCoord += mass*( coords.x + 0.5 );
-			com.yCoord += mass*( coords.y + 0.5 );
-			com.zCoord += mass*( coords.z + 0.5 );
+			m_sinkWaterHeight = null;
 		}
-		com.xCoord /= totalMass;
-		com.yCoord /= totalMass;
-		com.zCoord /= totalMass;
-		return com;
+	}
+	
+	private void addMass( Coords coords, double mass )
+	{
+		// keep the mass moments around so the center of mass can be updated one block at a time
+		m_shipMass += mass;
+		m_massMomentX += mass*( coords.x + 0.5 );
+		m_massMomentY += mass*( coords.y + 0.5 );
+		m_massMomentZ += mass*( coords.z + 0.5 );
+	}
+	
+	private void updateCenterOfMass( )
+	{
+		m_centerOfMass.xCoord = m_massMomentX/m_shipMass;
+		m_centerOfMass.yCoord = m_massMomentY/m_shipMass;
+		m_centerOfMass.zCoord = m_massMomentZ/m_shipMass;
 	}
 	
 	private double getBlockFractionSubmerged( int y, double waterHeight )
@@ -398,19 +486,146 @@ public class ShipPhysics
 		return BlockSide.North.getFractionSubmerged( y, waterHeight );
 	}
 	
-	private double getAngularViscosity( BlockSide side, double waterHeight, double center )
+	private double getLinearDrag( double speed, double linearViscosity )
+	{
+		// compute the drag force using a quadratic drag approximation
+		return BaseLinearDrag + speed*speed*linearViscosity/m_shipMass;
+	}
+	
+	private float getAngularDrag( float motionYaw, double angularViscosity )
+	{
+		return (float)( BaseAngularDrag + motionYaw*motionYaw*angularViscosity/m_shipMass );
+	}
+	
+	private double getLinearViscosity( BlockSide leadingSide, double waterHeight )
 	{
-		int centerCoord = (int)center;
+		double airSurfaceArea = 0;
+		double waterSurfaceArea = 0;
+		int[] counts = m_envelopeCounts[leadingSide.ordinal()];
+		for( int i=0; i<counts.length; i++ )
+		{
+			if( counts[i] > 0 )
+			{
+				double fractionSubmerged = leadingSide.getFractionSubmerged( m_envelopeMinY + i, waterHeight );
+				waterSurfaceArea += counts[i]*fractionSubmerged;
+				airSurfaceArea += counts[i]*( 1 - fractionSubmerged );
+			}
+		}
+		return AirViscosity*airSurfaceArea + WaterViscosity*waterSurfaceArea;
+	}
+	
+	private double getAngularViscosity( double waterHeight )
+	{
+		// compute the viscosity in both directions
+		return 0
+			+ getAngularViscosity( BlockSide.North, waterHeight )
+			+ getAngularViscosity( BlockSide.East, waterHeight );
+	}
+	
+	private double getAngularViscosity( BlockSide side, double waterHeight )
+	{
+		double[] distances = m_envelopeDistances[side.ordinal()];
 		double viscosity = 0;
-		for( Coords coords : m_blocks.getGeometry().getEnvelopes().getEnvelope( side ).toBlockSet() )
+		for( int i=0; i<distances.length; i++ )
 		{
-			double fractionSubmerged = side.getFractionSubmerged( coords.y, waterHeight );
-			double dist = Math.abs( side.getU( coords.x, coords.y, coords.z ) - centerCoord );
-			viscosity += ( fractionSubmerged*WaterViscosity + ( 1 - fractionSubmerged )*AirViscosity )*dist;
+			if( distances[i] > 0 )
+			{
+				double fractionSubmerged = side.getFractionSubmerged( m_envelopeMinY + i, waterHeight );
+				viscosity += ( fractionSubmerged*WaterViscosity + ( 1 - fractionSubmerged )*AirViscosity )*distances[i];
+			}
 		}
 		return viscosity*AngularViscosityScale;
 	}
 	
+	private void computeEnvelopeHistograms( )
+	{
+		// the drag only depends on the height of each envelope block, so bin the envelopes by y
+		m_envelopeMinY = m_blocks.getBoundingBox().minY;
+		int numLayers = m_blocks.getBoundingBox().maxY - m_envelopeMinY + 1;
+		m_envelopeCounts = new int[BlockSide.values().length][];
+		m_envelopeDistances = new double[BlockSide.values().length][];
+		for( BlockSide side : BlockSide.values() )
+		{
+			// linear drag needs the number of blocks at each y
+			BlockSet envelope = m_blocks.getGeometry().getEnvelopes().getEnvelope( side ).toBlockSet();
+			int[] counts = new int[numLayers];
+			for( Coords coords : envelope )
+			{
+				counts[coords.y - m_envelopeMinY]++;
+			}
+			m_envelopeCounts[side.ordinal()] = counts;
+			
+			// angular drag needs the total lever arm at each y
+			// NOTE: the north side is about the x center of mass, and the east side is about the z center
+			double[] distances = new double[numLayers];
+			if( side == BlockSide.North || side == BlockSide.East )
+			{
+				int centerCoord = (int)( side == BlockSide.North ? m_centerOfMass.xCoord : m_centerOfMass.zCoord );
+				for( Coords coords : envelope )
+				{
+					distances[coords.y - m_envelopeMinY] += Math.abs( side.getU( coords.x, coords.y, coords.z ) - centerCoord );
+				}
+			}
+			m_envelopeDistances[side.ordinal()] = distances;
+		}
+	}
+	
+	private void updateEnvelopeHistograms( Coords coords, boolean isAdded )
+	{
+		// only the column through the block can have a different envelope block
+		ShipOccupancy occupancy = m_blocks.getGeometry().getOccupancy();
+		BoundingBoxInt box = new BoundingBoxInt( m_blocks.getBoundingBox() );
+		box.expandBoxToInclude( coords );
+		Coords before = new Coords( 0, 0, 0 );
+		Coords after = new Coords( 0, 0, 0 );
+		for( BlockSide side : BlockSide.values() )
+		{
+			boolean hasBefore = findEnvelopeBlock( before, occupancy, box, side, coords, !isAdded );
+			boolean hasAfter = findEnvelopeBlock( after, occupancy, box, side, coords, isAdded );
+			if( hasBefore )
+			{
+				addEnvelopeBlock( side, before, -1 );
+			}
+			if( hasAfter )
+			{
+				addEnvelopeBlock( side, after, 1 );
+			}
+		}
+	}
+	
+	private boolean findEnvelopeBlock( Coords out, ShipOccupancy occupancy, BoundingBoxInt box, BlockSide side, Coords coords, boolean isOccupied )
+	{
+		// walk the column from the outside of the box in towards the ship
+		// NOTE: the occupancy is already updated, so the edited block is checked separately
+		int dx = side.getDx();
+		int dy = side.getDy();
+		int dz = side.getDz();
+		out.set(
+			dx > 0 ? box.maxX : dx < 0 ? box.minX : coords.x,
+			dy > 0 ? box.maxY : dy < 0 ? box.minY : coords.y,
+			dz > 0 ? box.maxZ : dz < 0 ? box.minZ : coords.z
+		);
+		while( out.x >= box.minX && out.x <= box.maxX && out.y >= box.minY && out.y <= box.maxY && out.z >= box.minZ && out.z <= box.maxZ )
+		{
+			if( out.equals( coords ) ? isOccupied : occupancy.contains( out ) )
+			{
+				return true;
+			}
+			out.set( out.x - dx, out.y - dy, out.z - dz );
+		}
+		return false;
+	}
+	
+	private void addEnvelopeBlock( BlockSide side, Coords coords, int sign )
+	{
+		m_envelopeCounts[side.ordinal()][coords.y - m_envelopeMinY] += sign;
+		if( side == BlockSide.North || side == BlockSide.East )
+		{
+			int centerCoord = (int)( side == BlockSide.North ? m_centerOfMass.xCoord : m_centerOfMass.zCoord );
+			m_envelopeDistances[side.ordinal()][coords.y - m_envelopeMinY] += sign*Math.abs( side.getU( coords.x, coords.y, coords.z ) - centerCoord );
+		}
+	}
+	
 	private Block getBlock( Coords coords )
 	{
 		return Block.blocksList[m_blocks.getBlock( coords ).id];
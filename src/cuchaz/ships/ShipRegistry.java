@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import net.minecraft.util.AxisAlignedBB;
+import net.minecraft.util.IntHashMap;
+import net.minecraft.util.MathHelper;
+
+public class ShipRegistry
+{
+	// NOTE: ships are indexed by a uniform grid over the xz plane
+	// each ship is listed in every cell its bounding box touches
+	
+	private static final int CellBits = 5;
+	
+	private static class Entry
+	{
+		public EntityShip ship;
+		public int minCellX;
+		public int minCellZ;
+		public int maxCellX;
+		public int maxCellZ;
+		public int lastQueryId;
+		
+		public Entry( EntityShip ship )
+		{
+			this.ship = ship;
+			this.lastQueryId = 0;
+		}
+	}
+	
+	private Map<EntityShip,Entry> m_entries;
+	private Map<Long,List<Entry>> m_cells;
+	private IntHashMap m_shipsById;
+	private Map<UUID,EntityShip> m_shipsByUuid;
+	private int m_queryId;
+	
+	public ShipRegistry( )
+	{
+		m_entries = new IdentityHashMap<EntityShip,Entry>();
+		m_cells = new HashMap<Long,List<Entry>>();
+		m_shipsById = new IntHashMap();
+		m_shipsByUuid = new HashMap<UUID,EntityShip>();
+		m_queryId = 0;
+	}
+	
+	public int getNumShips( )
+	{
+		return m_entries.size();
+	}
+	
+	public boolean contains( EntityShip ship )
+	{
+		return m_entries.containsKey( ship );
+	}
+	
+	public void add( EntityShip ship )
+	{
+		if( ship.isDead || m_entries.containsKey( ship ) )
+		{
+			return;
+		}
+		
+		Entry entry = new Entry( ship );
+		m_entries.put( ship, entry );
+		m_shipsById.addKey( ship.entityId, ship );
+		m_shipsByUuid.put( ship.getPersistentID(), ship );
+		setCells( entry );
+		addToCells( entry );
+	}
+	
+	public void remove( EntityShip ship )
+	{
+		Entry entry = m_entries.remove( ship );
+		if( entry != null )
+		{
+			removeFromCells( entry );
+			
+			// don't clobber a newer ship that took over the id
+			if( m_shipsById.lookup( ship.entityId ) == ship )
+			{
+				m_shipsById.removeObject( ship.entityId );
+			}
+			if( m_shipsByUuid.get( ship.getPersistentID() ) == ship )
+			{
+				m_shipsByUuid.remove( ship.getPersistentID() );
+			}
+		}
+	}
+	
+	public EntityShip getShip( int entityId )
+	{
+		return getLiveShip( (EntityShip)m_shipsById.lookup( entityId ) );
+	}
+	
+	public EntityShip getShip( UUID uuid )
+	{
+		return getLiveShip( m_shipsByUuid.get( uuid ) );
+	}
+	
+	public void update( EntityShip ship )
+	{
+		Entry entry = m_entries.get( ship );
+		if( entry == null )
+		{
+			// the ship isn't in the world yet
+			return;
+		}
+		
+		// most moves don't cross a cell boundary
+		AxisAlignedBB box = ship.boundingBox;
+		int minCellX = toCell( box.minX );
+		int minCellZ = toCell( box.minZ );
+		int maxCellX = toCell( box.maxX );
+		int maxCellZ = toCell( box.maxZ );
+		if( minCellX == entry.minCellX && minCellZ == entry.minCellZ && maxCellX == entry.maxCellX && maxCellZ == entry.maxCellZ )
+		{
+			return;
+		}
+		
+		// move the ship to its new cells
+		removeFromCells( entry );
+		entry.minCellX = minCellX;
+		entry.minCellZ = minCellZ;
+		entry.maxCellX = maxCellX;
+		entry.maxCellZ = maxCellZ;
+		addToCells( entry );
+	}
+	
+	public List<EntityShip> getShips( )
+	{
+		List<EntityShip> ships = new ArrayList<EntityShip>( m_entries.size() );
+		for( EntityShip ship : m_entries.keySet() )
+		{
+			if( !ship.isDead )
+			{
+				ships.add( ship );
+			}
+		}
+		return ships;
+	}
+	
+	public List<EntityShip> findShipsInBox( AxisAlignedBB box )
+	{
+		List<EntityShip> ships = new ArrayList<EntityShip>();
+		findShipsInBox( ships, box );
+		return ships;
+	}
+	
+	public void findShipsInBox( List<EntityShip> ships, AxisAlignedBB box )
+	{
+		if( m_entries.isEmpty() )
+		{
+			return;
+		}
+		
+		int minCellX = toCell( box.minX );
+		int minCellZ = toCell( box.minZ );
+		int maxCellX = toCell( box.maxX );
+		int maxCellZ = toCell( box.maxZ );
+		
+		// for really big queries, it's faster to just check every ship
+		long numCells = (long)( maxCellX - minCellX + 1 )*(long)( maxCellZ - minCellZ + 1 );
+		if( numCells > m_cells.size() )
+		{
+			for( Entry entry : m_entries.values() )
+			{
+				checkShip( ships, entry, box );
+			}
+			return;
+		}
+		
+		// NOTE: ships can be listed in more than one cell, so tag each ship as we visit it
+		m_queryId++;
+		for( int cellX=minCellX; cellX<=maxCellX; cellX++ )
+		{
+			for( int cellZ=minCellZ; cellZ<=maxCellZ; cellZ++ )
+			{
+				List<Entry> cell = m_cells.get( getCellKey( cellX, cellZ ) );
+				if( cell == null )
+				{
+					continue;
+				}
+				for( int i=0; i<cell.size(); i++ )
+				{
+					Entry entry = cell.get( i );
+					if( entry.lastQueryId != m_queryId )
+					{
+						entry.lastQueryId = m_queryId;
+						checkShip( ships, entry, box );
+					}
+				}
+			}
+		}
+	}
+	
+	private EntityShip getLiveShip( EntityShip ship )
+	{
+		if( ship == null || ship.isDead )
+		{
+			return null;
+		}
+		return ship;
+	}
+	
+	private void checkShip( List<EntityShip> ships, Entry entry, AxisAlignedBB box )
+	{
+		if( !entry.ship.isDead && entry.ship.boundingBox.intersectsWith( box ) )
+		{
+			ships.add( entry.ship );
+		}
+	}
+	
+	private void setCells( Entry entry )
+	{
+		AxisAlignedBB box = entry.ship.boundingBox;
+		entry.minCellX = toCell( box.minX );
+		entry.minCellZ = toCell( box.minZ );
+		entry.maxCellX = toCell( box.maxX );
+		entry.maxCellZ = toCell( box.maxZ );
+	}
+	
+	private void addToCells( Entry entry )
+	{
+		for( int cellX=entry.minCellX; cellX<=entry.maxCellX; cellX++ )
+		{
+			for( int cellZ=entry.minCellZ; cellZ<=entry.maxCellZ; cellZ++ )
+			{
+				Long key = getCellKey( cellX, cellZ );
+				List<Entry> cell = m_cells.get( key );
+				if( cell == null )
+				{
+					cell = new ArrayList<Entry>( 1 );
+					m_cells.put( key, cell );
+				}
+				cell.add( entry );
+			}
+		}
+	}
+	
+	private void removeFromCells( Entry entry )
+	{
+		for( int cellX=entry.minCellX; cellX<=entry.maxCellX; cellX++ )
+		{
+			for( int cellZ=entry.minCellZ; cellZ<=entry.maxCellZ; cellZ++ )
+			{
+				Long key = getCellKey( cellX, cellZ );
+				List<Entry> cell = m_cells.get( key );
+				if( cell == null )
+				{
+					continue;
+				}
+				cell.remove( entry );
+				if( cell.isEmpty() )
+				{
+					m_cells.remove( key );
+				}
+			}
+		}
+	}
+	
+	private static int toCell( double coord )
+	{
+		return MathHelper.floor_double( coord ) >> CellBits;
+	}
+	
+	private static long getCellKey( int cellX, int cellZ )
+	{
+		return ( (long)cellX << 32 ) | ( cellZ & 0xffffffffL );
+	}
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.AxisAlignedBB;
+import net.minecraft.world.IWorldAccess;
+import net.minecraft.world.World;
+
+public class ShipWaker implements IWorldAccess
+{
+	// NOTE: the world calls markBlockForUpdate() for every block change, and the client marks whole chunks when they load
+	// use them to wake up sleeping ships and refresh their water surfaces when the world changes under them
+	
+	private World m_world;
+	private AxisAlignedBB m_queryBox;
+	private List<EntityShip> m_ships;
+	
+	public ShipWaker( World world )
+	{
+		m_world = world;
+		m_queryBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		m_ships = new ArrayList<EntityShip>();
+	}
+	
+	@Override
+	public void markBlockForUpdate( int x, int y, int z )
+	{
+		onBlocksChanged( x, y, z, x, y, z );
+	}
+	
+	@Override
+	public void markBlockForRenderUpdate( int x, int y, int z )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void markBlockRangeForRenderUpdate( int minX, int minY, int minZ, int maxX, int maxY, int maxZ )
+	{
+		onBlocksChanged( minX, minY, minZ, maxX, maxY, maxZ );
+	}
+	
+	@Override
+	public void playSound( String sound, double x, double y, double z, float volume, float pitch )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void playSoundToNearExcept( EntityPlayer player, String sound, double x, double y, double z, float volume, float pitch )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void spawnParticle( String name, double x, double y, double z, double vx, double vy, double vz )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void onEntityCreate( Entity entity )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void onEntityDestroy( Entity entity )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void playRecord( String record, int x, int y, int z )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void broadcastSound( int soundId, int x, int y, int z, int data )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void playAuxSFX( EntityPlayer player, int sfxType, int x, int y, int z, int data )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void destroyBlockPartially( int entityId, int x, int y, int z, int progress )
+	{
+		// don't care
+	}
+	
+	private void onBlocksChanged( int minX, int minY, int minZ, int maxX, int maxY, int maxZ )
+	{
+		m_queryBox.setBounds( minX, minY, minZ, maxX + 1, maxY + 1, maxZ + 1 );
+		m_ships.clear();
+		ShipLocator.getRegistry( m_world ).findShipsInBox( m_ships, m_queryBox );
+		for( int i=0; i<m_ships.size(); i++ )
+		{
+			m_ships.get( i ).onWorldBlocksChanged( minX, minY, minZ, maxX, maxY, maxZ );
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.packet.Packet250CustomPayload;
+import cpw.mods.fml.common.network.PacketDispatcher;
+import cpw.mods.fml.common.network.Player;
+import cuchaz.ships.packets.Packet;
+import cuchaz.ships.packets.PacketPilotShip;
+import cuchaz.ships.packets.PacketShipBatch;
+
+public class ShipWatchers
+{
+	// NOTE: only players near the ship get its traffic. Clients ignore the vanilla position updates,
+	// so every player that tracks the ship entity has to get the corrections too
+	// players leave a little farther out than they enter, so players on the edge don't flicker in and out
+	// everything the ship sends in a tick goes out in one batch per player
+	
+	private static final double LeaveDistancePadding = 16;
+	private static final int NumTicksBetweenWatcherUpdates = 10;
+	
+	private static class Entry
+	{
+		public byte[] data;
+		public double x;
+		public double y;
+		public double z;
+		public double range;
+	}
+	
+	private EntityShip m_ship;
+	private List<EntityPlayerMP> m_watchers;
+	private List<Entry> m_entries;
+	private int m_numTicksUntilWatcherUpdate;
+	
+	public ShipWatchers( EntityShip ship )
+	{
+		m_ship = ship;
+		m_watchers = new ArrayList<EntityPlayerMP>();
+		m_entries = new ArrayList<Entry>();
+		m_numTicksUntilWatcherUpdate = 0;
+	}
+	
+	public void addPacket( Packet packet )
+	{
+		addEntry( PacketShipBatch.encodePacket( packet ), 0, 0, 0, 0 );
+	}
+	
+	public void addSound( double x, double y, double z, String name, float volume, float pitch, double range )
+	{
+		addEntry( PacketShipBatch.encodeSound( x, y, z, name, volume, pitch ), x, y, z, range );
+	}
+	
+	public void addAuxSFX( int sfxId, int x, int y, int z, int auxData )
+	{
+		addEntry( PacketShipBatch.encodeAuxSFX( sfxId, x, y, z, auxData ), 0, 0, 0, 0 );
+	}
+	
+	public void update( )
+	{
+		if( m_numTicksUntilWatcherUpdate-- <= 0 )
+		{
+			updateWatchers();
+			m_numTicksUntilWatcherUpdate = NumTicksBetweenWatcherUpdates;
+		}
+		
+		if( !m_entries.isEmpty() )
+		{
+			sendEntries();
+			m_entries.clear();
+		}
+	}
+	
+	public boolean addWatcher( EntityPlayerMP player )
+	{
+		// players that ask for the ship's blocks have to get every change after that, so don't wait for the next watcher update
+		if( m_watchers.contains( player ) )
+		{
+			return false;
+		}
+		m_watchers.add( player );
+		
+		List<EntityPlayerMP> newWatchers = new ArrayList<EntityPlayerMP>( 1 );
+		newWatchers.add( player );
+		onNewWatchers( newWatchers );
+		return true;
+	}
+	
+	private void addEntry( byte[] data, double x, double y, double z, double range )
+	{
+		// if nobody is watching, don't bother
+		if( m_watchers.isEmpty() )
+		{
+			return;
+		}
+		
+		Entry entry = new Entry();
+		entry.data = data;
+		entry.x = x;
+		entry.y = y;
+		entry.z = z;
+		entry.range = range;
+		m_entries.add( entry );
+	}
+	
+	private void updateWatchers( )
+	{
+		double enterDistance = EntityShip.TrackingRange;
+		double leaveDistance = enterDistance + LeaveDistancePadding;
+		
+		// did any watchers leave?
+		Iterator<EntityPlayerMP> iter = m_watchers.iterator();
+		while( iter.hasNext() )
+		{
+			EntityPlayerMP player = iter.next();
+			if( player.isDead || player.worldObj != m_ship.worldObj || player.getDistanceSqToEntity( m_ship ) > leaveDistance*leaveDistance )
+			{
+				iter.remove();
+			}
+		}
+		
+		// did any players show up?
+		List<EntityPlayerMP> newWatchers = null;
+		for( Object obj : m_ship.worldObj.playerEntities )
+		{
+			EntityPlayer player = (EntityPlayer)obj;
+			if( player instanceof EntityPlayerMP && !m_watchers.contains( player ) && player.getDistanceSqToEntity( m_ship ) <= enterDistance*enterDistance )
+			{
+				m_watchers.add( (EntityPlayerMP)player );
+				if( newWatchers == null )
+				{
+					newWatchers = new ArrayList<EntityPlayerMP>();
+				}
+				newWatchers.add( (EntityPlayerMP)player );
+			}
+		}
+		
+		if( newWatchers != null )
+		{
+			onNewWatchers( newWatchers );
+		}
+	}
+	
+	private void onNewWatchers( List<EntityPlayerMP> newWatchers )
+	{
+		// the new watchers missed the last correction. Send a new one to everyone,
+		// so all the clients predict from the same state as the server's model of them
+		m_ship.sendCorrection();
+		
+		// the new watchers also need to know how the ship is being piloted
+		if( m_ship.getSideShipForward() != null )
+		{
+			List<byte[]> entries = new ArrayList<byte[]>( 1 );
+			entries.add( PacketShipBatch.encodePacket( new PacketPilotShip(
+				m_ship.entityId,
+				m_ship.getPilotActions(),
+				m_ship.getSideShipForward(),
+				m_ship.linearThrottle,
+				m_ship.angularThrottle
+			) ) );
+			for( EntityPlayerMP player : newWatchers )
+			{
+				sendBatch( player, entries );
+			}
+		}
+	}
+	
+	private void sendEntries( )
+	{
+		for( EntityPlayerMP player : m_watchers )
+		{
+			// some entries only go to players near them
+			List<byte[]> entries = new ArrayList<byte[]>( m_entries.size() );
+			for( Entry entry : m_entries )
+			{
+				if( entry.range <= 0 || player.getDistanceSq( entry.x, entry.y, entry.z ) <= entry.range*entry.range )
+				{
+					entries.add( entry.data );
+				}
+			}
+			if( !entries.isEmpty() )
+			{
+				sendBatch( player, entries );
+			}
+		}
+	}
+	
+	private void sendBatch( EntityPlayerMP player, List<byte[]> entries )
+	{
+		// big batches get split up by the packet queue
+		PacketShipBatch batch = new PacketShipBatch( entries );
+		byte[] payload = batch.getPayload();
+		if( payload.length > Packet.MaxPacketSize )
+		{
+			Ships.m_packetQueue.sendToPlayer( batch, player );
+		}
+		else
+		{
+			Packet250CustomPayload customPacket = new Packet250CustomPayload();
+			customPacket.channel = PacketShipBatch.Channel;
+			customPacket.data = payload;
+			customPacket.length = payload.length;
+			PacketDispatcher.sendPacketToPlayer( customPacket, (Player)player );
+		}
+	}
+}
@@ -25,9 +25,6 @@ import net.minecraft.entity.EntityHanging;
 import net.minecraft.entity.EntityList;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.nbt.NBTTagCompound;
-import net.minecraft.network.packet.Packet61DoorChange;
-import net.minecraft.network.packet.Packet62LevelSound;
-import net.minecraft.server.MinecraftServer;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.AxisAlignedBB;
 import net.minecraft.util.MathHelper;
@@ -40,15 +37,22 @@ import cpw.mods.fml.relauncher.SideOnly;
 import cuchaz.modsShared.Environment;
 import cuchaz.modsShared.blocks.BlockMap;
 import cuchaz.modsShared.blocks.BlockSet;
+import cuchaz.modsShared.blocks.BlockSide;
 import cuchaz.modsShared.blocks.BlockUtils;
 import cuchaz.modsShared.blocks.BlockUtils.UpdateRules;
 import cuchaz.modsShared.blocks.BoundingBoxInt;
 import cuchaz.modsShared.blocks.Coords;
 import cuchaz.ships.packets.PacketChangedBlocks;
 import cuchaz.ships.packets.PacketShipBlockEvent;
+import cuchaz.ships.persistence.ShipWorldPersistence;
 
 public class ShipWorld extends DetachedWorld
 {	
+	private static final Coords Origin = new Coords( 0, 0, 0 );
+	
+	// blocks that change more than once in this window only get sent once
+	private static final int NumTicksPerBlockChangePush = 2;
+	
 	// NOTE: this member var is essentially cache. It works as long as the client/server are single-threaded
 	private Coords m_lookupCoords = new Coords( 0, 0, 0 );
 	
@@ -57,8 +61,15 @@ public class ShipWorld extends DetachedWorld
 	private BlockMap<TileEntity> m_tileEntities;
 	private BlockMap<EntityHanging> m_hangingEntities;
 	private BlockSet m_changedBlocks;
+	private int m_numTicksSinceBlockChangePush;
+	private CollisionBoxCache m_collisionBoxes;
+	private int m_numPatchedEdits;
+	private int m_numRebuiltEdits;
+	private long m_editNanos;
 	private boolean m_needsRenderUpdate;
 	private int m_biomeId;
+	private byte[] m_clientData;
+	private String m_clientDataHash;
 	
 	public ShipWorld( World world )
 	{
@@ -70,7 +81,14 @@ public class ShipWorld extends DetachedWorld
 		m_tileEntities = new BlockMap<TileEntity>();
 		m_hangingEntities = new BlockMap<EntityHanging>();
 		m_changedBlocks = new BlockSet();
+		m_numTicksSinceBlockChangePush = 0;
+		m_collisionBoxes = new CollisionBoxCache( this );
+		m_numPatchedEdits = 0;
+		m_numRebuiltEdits = 0;
+		m_editNanos = 0;
 		m_biomeId = 0;
+		m_clientData = null;
+		m_clientDataHash = null;
 	}
 	
 	public ShipWorld( World world, BlocksStorage storage, BlockMap<TileEntity> tileEntities, BlockMap<EntityHanging> hangingEntities, int biomeId )
@@ -367,9 +385,40 @@ public class ShipWorld extends DetachedWorld
 		return m_storage.getDisplacement();
 	}
 	
+	public CollisionBoxCache getCollisionBoxes( )
+	{
+		return m_collisionBoxes;
+	}
+	
 	public BoundingBoxInt getBoundingBox( )
 	{
-		return m_storage.getGeometry().getEnvelopes().getBoundingBox();
+		return m_storage.getBoundingBox();
+	}
+	
+	public byte[] getClientData( )
+	{
+		// NOTE: every client that starts tracking the ship asks for this, so only serialize it again after the ship changes
+		if( m_clientData == null )
+		{
+			m_clientData = ShipWorldPersistence.writeNewestVersion( this, true );
+			m_clientDataHash = null;
+		}
+		return m_clientData;
+	}
+	
+	public String getClientDataHash( )
+	{
+		if( m_clientDataHash == null )
+		{
+			m_clientDataHash = ShipBlocksCache.getHash( getClientData() );
+		}
+		return m_clientDataHash;
+	}
+	
+	private void invalidateClientData( )
+	{
+		m_clientData = null;
+		m_clientDataHash = null;
 	}
 	
 	public BlockStorage getBlockStorage( int x, int y, int z )
@@ -482,20 +531,43 @@ public class ShipWorld extends DetachedWorld
 		// lookup the affected block
 		BlockStorage storage = getBlockStorage( coords );
 		int oldBlockId = storage.id;
+		boolean hadBlock = m_storage.hasBlock( coords );
 		
 		// only allow benign changes to blocks
-		boolean isAllowed = false
+		boolean isChangeAllowed = hadBlock && ( false
 			// allow metadata changes
 			|| ( oldBlockId == newBlockId )
 			// allow furnace block changes
 			|| ( oldBlockId == Block.furnaceBurning.blockID && newBlockId == Block.furnaceIdle.blockID )
-			|| ( oldBlockId == Block.furnaceIdle.blockID && newBlockId == Block.furnaceBurning.blockID );
+			|| ( oldBlockId == Block.furnaceIdle.blockID && newBlockId == Block.furnaceBurning.blockID )
+		);
+		
+		// allow blocks to be removed, or added next to the ship
+		boolean isRemoveAllowed = hadBlock && newBlockId == 0 && !coords.equals( Origin ) && getBlockTileEntity( coords ) == null;
+		boolean isAddAllowed = !hadBlock && newBlockId != 0 && isAddable( Block.blocksList[newBlockId], newMeta ) && isNextToShip( coords );
 		
-		if( isAllowed )
+		if( !isChangeAllowed && !isRemoveAllowed && !isAddAllowed )
+		{
+			return false;
+		}
+		
+		long startTime = System.nanoTime();
+		Block oldBlock = Block.blocksList[oldBlockId];
+		boolean isPatched;
+		if( isRemoveAllowed )
+		{
+			isPatched = m_storage.removeBlock( coords );
+		}
+		else if( isAddAllowed )
+		{
+			isPatched = m_storage.addBlock( coords, new BlockStorage( newBlockId, newMeta ) );
+		}
+		else
 		{
 			// apply the change
 			storage.id = newBlockId;
 			storage.meta = newMeta;
+			isPatched = m_storage.onBlockChanged( coords, oldBlockId );
 			
 			// notify the tile entity if needed
 			TileEntity tileEntity = getBlockTileEntity( coords );
@@ -503,11 +575,71 @@ public class ShipWorld extends DetachedWorld
 			{
 				tileEntity.updateContainingBlockInfo();
 			}
-			
-			m_needsRenderUpdate = true;
 		}
 		
-		return isAllowed;
+		// update the ship physics if the mass or shape changed
+		if( m_ship != null && ( oldBlockId != newBlockId ) )
+		{
+			m_ship.onBlockChanged( coords, oldBlock, hadBlock, Block.blocksList[newBlockId], !isRemoveAllowed, isPatched );
+		}
+		
+		// the block might have a different shape now
+		m_collisionBoxes.invalidate( coords );
+		invalidateClientData();
+		
+		m_needsRenderUpdate = true;
+		
+		if( oldBlockId != newBlockId )
+		{
+			if( isPatched )
+			{
+				m_numPatchedEdits++;
+			}
+			else
+			{
+				m_numRebuiltEdits++;
+			}
+			m_editNanos += System.nanoTime() - startTime;
+		}
+		return true;
+	}
+	
+	public int getNumPatchedEdits( )
+	{
+		return m_numPatchedEdits;
+	}
+	
+	public int getNumRebuiltEdits( )
+	{
+		return m_numRebuiltEdits;
+	}
+	
+	public long getEditNanos( )
+	{
+		return m_editNanos;
+	}
+	
+	private boolean isAddable( Block block, int meta )
+	{
+		// tile entities are handled separately, and liquids and fire don't belong to ships
+		return block != null
+			&& !block.hasTileEntity( meta )
+			&& !block.blockMaterial.isLiquid()
+			&& block != Block.fire;
+	}
+	
+	private boolean isNextToShip( Coords coords )
+	{
+		Coords neighborCoords = new Coords( 0, 0, 0 );
+		for( BlockSide side : BlockSide.values() )
+		{
+			neighborCoords.set( coords.x + side.getDx(), coords.y + side.getDy(), coords.z + side.getDz() );
+			if( m_storage.hasBlock( neighborCoords ) )
+			{
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	@Override
@@ -567,7 +699,8 @@ public class ShipWorld extends DetachedWorld
 	@Override
 	public void markTileEntityChunkModified( int x, int y, int z, TileEntity tileEntity )
 	{
-		// don't need to do anything
+		// the tile entity data is sent to clients too
+		invalidateClientData();
 	}
 	
 	@Override
@@ -589,6 +722,7 @@ public class ShipWorld extends DetachedWorld
 			{
 				// remove the offending tile entity
 				iter.remove();
+				invalidateClientData();
 				
 				Ships.logger.warning(
 					ex,
@@ -606,10 +740,11 @@ public class ShipWorld extends DetachedWorld
 		}
 		
 		// on the server, push any accumulated changes to the client
-		if( Environment.isServer() && !m_changedBlocks.isEmpty() )
+		if( Environment.isServer() && !m_changedBlocks.isEmpty() && ++m_numTicksSinceBlockChangePush >= NumTicksPerBlockChangePush )
 		{
 			pushBlockChangesToClients();
 			m_changedBlocks.clear();
+			m_numTicksSinceBlockChangePush = 0;
 		}
 	}
 	
@@ -646,11 +781,7 @@ public class ShipWorld extends DetachedWorld
 			return;
 		}
 		
-		MinecraftServer.getServer().getConfigurationManager().sendToAllNear(
-			m_ship.posX, m_ship.posY, m_ship.posZ, 64,
-			m_ship.worldObj.provider.dimensionId,
-			new PacketChangedBlocks( m_ship, m_changedBlocks ).getCustomPacket()
-		);
+		m_ship.getWatchers().addPacket( new PacketChangedBlocks( m_ship, m_changedBlocks ) );
 	}
 	
 	@Override
@@ -667,16 +798,7 @@ public class ShipWorld extends DetachedWorld
 		// on the server, also send a packet to the client
 		if( Environment.isServer() && eventWasAccepted )
 		{
-			// get the pos in world space
-			Vec3 v = Vec3.createVectorHelper( x, y, z );
-			m_ship.blocksToShip( v );
-			m_ship.shipToWorld( v );
-			
-			MinecraftServer.getServer().getConfigurationManager().sendToAllNear(
-				v.xCoord, v.yCoord, v.zCoord, 64,
-				m_ship.worldObj.provider.dimensionId,
-				new PacketShipBlockEvent( m_ship.entityId, x, y, z, blockId, eventId, eventParam ).getCustomPacket()
-			);
+			m_ship.getWatchers().addPacket( new PacketShipBlockEvent( m_ship.entityId, x, y, z, blockId, eventId, eventParam ) );
 		}
 	}
 	
@@ -696,11 +818,10 @@ public class ShipWorld extends DetachedWorld
 			m_ship.blocksToShip( v );
 			m_ship.shipToWorld( v );
 			
-			MinecraftServer.getServer().getConfigurationManager().sendToAllNear(
+			m_ship.getWatchers().addSound(
 				v.xCoord, v.yCoord, v.zCoord,
-				volume > 1.0F ? (double)(16.0F * volume) : 16.0D,
-				m_ship.worldObj.provider.dimensionId,
-				new Packet62LevelSound( sound, v.xCoord, v.yCoord, v.zCoord, volume, pitch )
+				sound, volume, pitch,
+				volume > 1.0F ? (double)(16.0F * volume) : 16.0D
 			);
 		}
 		
@@ -720,18 +841,12 @@ public class ShipWorld extends DetachedWorld
 			m_ship.blocksToShip( v );
 			m_ship.shipToWorld( v );
 			
-			MinecraftServer.getServer().getConfigurationManager().sendToAllNear(
-				v.xCoord, v.yCoord, v.zCoord,
-				64.0D,
-				m_ship.worldObj.provider.dimensionId,
-				new Packet61DoorChange(
-					sfxID,
-					MathHelper.floor_double(v.xCoord),
-					MathHelper.floor_double(v.yCoord),
-					MathHelper.floor_double(v.zCoord),
-					auxData,
-					false
-				)
+			m_ship.getWatchers().addAuxSFX(
+				sfxID,
+				MathHelper.floor_double(v.xCoord),
+				MathHelper.floor_double(v.yCoord),
+				MathHelper.floor_double(v.zCoord),
+				auxData
 			);
 		}
 		
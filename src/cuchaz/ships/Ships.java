@@ -13,11 +13,13 @@ package cuchaz.ships;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 import net.minecraft.block.Block;
 import net.minecraft.block.material.MapColor;
 import net.minecraft.block.material.Material;
+import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.tileentity.TileEntityRenderer;
 import net.minecraft.client.renderer.tileentity.TileEntitySpecialRenderer;
 import net.minecraft.entity.player.EntityPlayer;
@@ -28,6 +30,8 @@ import net.minecraft.world.World;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.event.ForgeSubscribe;
 import net.minecraftforge.event.entity.EntityJoinWorldEvent;
+import net.minecraftforge.event.world.ChunkEvent;
+import net.minecraftforge.event.world.WorldEvent;
 
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
@@ -50,6 +54,7 @@ import cpw.mods.fml.common.network.Player;
 import cpw.mods.fml.common.registry.EntityRegistry;
 import cpw.mods.fml.common.registry.GameRegistry;
 import cpw.mods.fml.common.registry.LanguageRegistry;
+import cpw.mods.fml.common.registry.TickRegistry;
 import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 import cuchaz.modsShared.FMLHacker;
@@ -76,6 +81,7 @@ import cuchaz.ships.items.SupporterPlaqueType;
 import cuchaz.ships.packets.Packet;
 import cuchaz.ships.packets.PacketBlockPropertiesOverrides;
 import cuchaz.ships.packets.PacketChangedBlocks;
+import cuchaz.ships.packets.PacketChunk;
 import cuchaz.ships.packets.PacketEraseShip;
 import cuchaz.ships.packets.PacketHandler;
 import cuchaz.ships.packets.PacketLaunchShip;
@@ -83,9 +89,13 @@ import cuchaz.ships.packets.PacketPasteShip;
 import cuchaz.ships.packets.PacketPilotShip;
 import cuchaz.ships.packets.PacketPlaceProjector;
 import cuchaz.ships.packets.PacketPlayerSleepInBerth;
+import cuchaz.ships.packets.PacketQueue;
 import cuchaz.ships.packets.PacketRequestShipBlocks;
+import cuchaz.ships.packets.PacketShipBatch;
 import cuchaz.ships.packets.PacketShipBlockEvent;
 import cuchaz.ships.packets.PacketShipBlocks;
+import cuchaz.ships.packets.PacketShipBlocksHash;
+import cuchaz.ships.packets.PacketShipCorrection;
 import cuchaz.ships.packets.PacketShipLaunched;
 import cuchaz.ships.packets.PacketShipPlaque;
 import cuchaz.ships.packets.PacketUnlaunchShip;
@@ -101,7 +111,8 @@ import cuchaz.ships.render.TileEntityProjectorRenderer;
 		PacketRequestShipBlocks.Channel, PacketShipBlocks.Channel, PacketPilotShip.Channel,
 		PacketShipBlockEvent.Channel, PacketChangedBlocks.Channel, PacketPasteShip.Channel,
 		PacketEraseShip.Channel, PacketShipPlaque.Channel, PacketPlayerSleepInBerth.Channel,
-		PacketBlockPropertiesOverrides.Channel, PacketPlaceProjector.Channel },
+		PacketBlockPropertiesOverrides.Channel, PacketPlaceProjector.Channel, PacketChunk.Channel,
+		PacketShipBlocksHash.Channel, PacketShipCorrection.Channel, PacketShipBatch.Channel },
 	packetHandler = PacketHandler.class,
 	clientSideRequired = true, // clients without ship mod should not connect to a ships mod server
 	serverSideRequired = false // clients with ships mod should connect to a non-ships mod server
@@ -140,6 +151,16 @@ public class Ships extends DummyModContainer
 	public static final int EntitySupporterPlaqueId = 175;
 	public static final int EntityShipPlaqueId = 176;
 	
+	// networking
+	public static final PacketQueue m_packetQueue = new PacketQueue();
+	
+	// server-side launches wait for the ship analysis
+	public static final ShipLaunchQueue m_launchQueue = new ShipLaunchQueue();
+	
+	// the client's cache of ship blocks
+	private static final long ShipBlocksCacheSize = 64*1024*1024;
+	public static ShipBlocksCache m_shipBlocksCache = null;
+	
 	private File m_source;
 	
 	public Ships( )
@@ -242,6 +263,12 @@ public class Ships extends DummyModContainer
 			loadLanguage();
 			loadRecipes();
 			
+			// big packets are sent a bit at a time on server ticks
+			TickRegistry.registerTickHandler( m_packetQueue, Side.SERVER );
+			
+			// ship launches are analyzed in the background and finished on server ticks
+			TickRegistry.registerTickHandler( m_launchQueue, Side.SERVER );
+			
 			if( event.getSide().isClient() )
 			{
 				// load client things if needed
@@ -303,6 +330,9 @@ public class Ships extends DummyModContainer
 		// set tile entity renderers
 		registerTileEntityRenderer( TileEntityHelm.class, new TileEntityHelmRenderer() );
 		registerTileEntityRenderer( TileEntityProjector.class, new TileEntityProjectorRenderer( shipRenderer ) );
+		
+		// ships the client has seen before don't have to be sent again
+		m_shipBlocksCache = new ShipBlocksCache( new File( Minecraft.getMinecraft().mcDataDir, "shipsCache" ), ShipBlocksCacheSize );
 	}
 	
 	@SideOnly( Side.CLIENT )
@@ -337,8 +367,9 @@ public class Ships extends DummyModContainer
 		GameRegistry.registerItem( m_itemProjector, "shipProjector" );
 		
 		// entities
+		// NOTE: clients predict the ship motion and the server sends PacketShipCorrection, so the vanilla updates are rarely needed
 		EntityRegistry.registerGlobalEntityID( EntityShip.class, "Ship", EntityShipId );
-		EntityRegistry.registerModEntity( EntityShip.class, "Ship", EntityShipId, this, 256, 10, true );
+		EntityRegistry.registerModEntity( EntityShip.class, "Ship", EntityShipId, this, EntityShip.TrackingRange, 20*60, false );
 		EntityRegistry.registerGlobalEntityID( EntitySupporterPlaque.class, "Supporter Plaque", EntitySupporterPlaqueId );
 		EntityRegistry.registerModEntity( EntitySupporterPlaque.class, "Supporter Plaque", EntitySupporterPlaqueId, this, 256, 10, false );
 		EntityRegistry.registerGlobalEntityID( EntityShipPlaque.class, "Ship Plaque", EntityShipPlaqueId );
@@ -466,6 +497,12 @@ public class Ships extends DummyModContainer
 	@ForgeSubscribe
 	public void onEntityJoin( EntityJoinWorldEvent event )
 	{
+		// keep track of ships on both sides
+		if( event.entity instanceof EntityShip )
+		{
+			ShipLocator.getRegistry( event.world ).add( (EntityShip)event.entity );
+		}
+		
 		if( event.world.isRemote )
 		{
 			// ignore on client
@@ -487,4 +524,34 @@ public class Ships extends DummyModContainer
 		Packet packet = new PacketBlockPropertiesOverrides( BlockProperties.getOverrides() );
 		PacketDispatcher.sendPacketToPlayer( packet.getCustomPacket(), (Player)player );
 	}
+	
+	@ForgeSubscribe
+	public void onWorldLoad( WorldEvent.Load event )
+	{
+		// sleeping ships need to hear about block changes
+		event.world.addWorldAccess( new ShipWaker( event.world ) );
+	}
+	
+	@ForgeSubscribe
+	public void onWorldUnload( WorldEvent.Unload event )
+	{
+		// worlds can go away without unloading every chunk first, like when a client disconnects
+		ShipLocator.removeRegistry( event.world );
+	}
+	
+	@ForgeSubscribe
+	public void onChunkUnload( ChunkEvent.Unload event )
+	{
+		// ships in unloaded chunks leave the world without dying
+		for( List<?> entities : event.getChunk().entityLists )
+		{
+			for( Object entity : entities )
+			{
+				if( entity instanceof EntityShip )
+				{
+					ShipLocator.getRegistry( event.world ).remove( (EntityShip)entity );
+				}
+			}
+		}
+	}
 }
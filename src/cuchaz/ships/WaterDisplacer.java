@@ -11,9 +11,9 @@
 package cuchaz.ships;
 
 import java.util.Iterator;
+import java.util.Set;
 
 import net.minecraft.block.Block;
-import cuchaz.modsShared.blocks.BlockSet;
 import cuchaz.modsShared.blocks.Coords;
 import cuchaz.ships.config.BlockProperties;
 
@@ -27,7 +27,7 @@ public class WaterDisplacer extends Displacer
 	public void update( double waterHeightInBlockSpace )
 	{
 		// get all the trapped air blocks
-		BlockSet trappedAirBlocks = m_ship.getShipWorld().getDisplacement().getTrappedAirFromWaterHeight( waterHeightInBlockSpace );
+		Set<Coords> trappedAirBlocks = m_ship.getShipWorld().getDisplacement().getTrappedAirFromWaterHeight( waterHeightInBlockSpace );
 		if( trappedAirBlocks.isEmpty() )
 		{
 			// the ship is out of the water or flooded
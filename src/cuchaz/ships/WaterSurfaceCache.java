@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import java.util.Arrays;
+
+import net.minecraft.block.Block;
+import net.minecraft.util.AxisAlignedBB;
+import net.minecraft.util.MathHelper;
+import net.minecraft.world.World;
+import cuchaz.ships.config.BlockProperties;
+
+public class WaterSurfaceCache
+{
+	// NOTE: this caches the top water block of each column under the ship
+	// columns are only sampled again when the world changes there, or when the ship moves over new columns
+	
+	private static final int Unknown = Integer.MAX_VALUE;
+	private static final int NoWater = Integer.MIN_VALUE;
+	
+	private int m_minX;
+	private int m_minY;
+	private int m_minZ;
+	private int m_maxY;
+	private int m_sizeX;
+	private int m_sizeZ;
+	private int[] m_tops;
+	
+	public WaterSurfaceCache( )
+	{
+		m_minX = 0;
+		m_minY = 0;
+		m_minZ = 0;
+		m_maxY = -1;
+		m_sizeX = 0;
+		m_sizeZ = 0;
+		m_tops = new int[0];
+	}
+	
+	public double getWaterHeight( World world, AxisAlignedBB box )
+	{
+		// this matches BlockUtils.worldRangeQuery()
+		int minX = MathHelper.floor_double( box.minX );
+		int minY = MathHelper.floor_double( box.minY );
+		int minZ = MathHelper.floor_double( box.minZ );
+		int maxX = MathHelper.floor_double( box.maxX );
+		int maxY = MathHelper.floor_double( box.maxY );
+		int maxZ = MathHelper.floor_double( box.maxZ );
+		
+		// if the ship moved up or down, the tops could be different
+		if( minY != m_minY || maxY != m_maxY )
+		{
+			m_minY = minY;
+			m_maxY = maxY;
+			Arrays.fill( m_tops, Unknown );
+		}
+		
+		// if the ship moved sideways, keep the columns we already know
+		if( minX != m_minX || minZ != m_minZ || maxX - minX + 1 != m_sizeX || maxZ - minZ + 1 != m_sizeZ )
+		{
+			moveFootprint( minX, minZ, maxX - minX + 1, maxZ - minZ + 1 );
+		}
+		
+		// average the tops of the water columns
+		long sum = 0;
+		int numColumns = 0;
+		for( int i=0; i<m_sizeX; i++ )
+		{
+			for( int k=0; k<m_sizeZ; k++ )
+			{
+				int index = i*m_sizeZ + k;
+				if( m_tops[index] == Unknown )
+				{
+					m_tops[index] = sampleColumn( world, m_minX + i, m_minZ + k );
+				}
+				if( m_tops[index] != NoWater )
+				{
+					sum += m_tops[index];
+					numColumns++;
+				}
+			}
+		}
+		
+		if( numColumns == 0 )
+		{
+			return 0;
+		}
+		return (double)sum/numColumns;
+	}
+	
+	public void invalidate( int x, int y, int z )
+	{
+		invalidate( x, y, z, x, y, z );
+	}
+	
+	public void invalidate( int minX, int minY, int minZ, int maxX, int maxY, int maxZ )
+	{
+		// clip the range to the footprint
+		minX = Math.max( minX, m_minX );
+		maxX = Math.min( maxX, m_minX + m_sizeX - 1 );
+		minZ = Math.max( minZ, m_minZ );
+		maxZ = Math.min( maxZ, m_minZ + m_sizeZ - 1 );
+		if( minX > maxX || minZ > maxZ || maxY < m_minY || minY > m_maxY )
+		{
+			return;
+		}
+		
+		for( int x=minX; x<=maxX; x++ )
+		{
+			int i = ( x - m_minX )*m_sizeZ;
+			Arrays.fill( m_tops, i + minZ - m_minZ, i + maxZ - m_minZ + 1, Unknown );
+		}
+	}
+	
+	private void moveFootprint( int minX, int minZ, int sizeX, int sizeZ )
+	{
+		int[] tops = new int[sizeX*sizeZ];
+		Arrays.fill( tops, Unknown );
+		
+		// copy over the overlapping columns
+		for( int i=0; i<sizeX; i++ )
+		{
+			int oldI = minX + i - m_minX;
+			if( oldI < 0 || oldI >= m_sizeX )
+			{
+				continue;
+			}
+			for( int k=0; k<sizeZ; k++ )
+			{
+				int oldK = minZ + k - m_minZ;
+				if( oldK >= 0 && oldK < m_sizeZ )
+				{
+					tops[i*sizeZ + k] = m_tops[oldI*m_sizeZ + oldK];
+				}
+			}
+		}
+		
+		m_minX = minX;
+		m_minZ = minZ;
+		m_sizeX = sizeX;
+		m_sizeZ = sizeZ;
+		m_tops = tops;
+	}
+	
+	private int sampleColumn( World world, int x, int z )
+	{
+		// find the top water block (or air wall block) in the column
+		for( int y=m_maxY; y>=m_minY; y-- )
+		{
+			Block block = Block.blocksList[world.getBlockId( x, y, z )];
+			if( BlockProperties.isWater( block ) )
+			{
+				return y + 1; // +1 for the top of the block
+			}
+		}
+		return NoWater;
+	}
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+public class WorldSnapshot
+{
+	// NOTE: the world may only be read on the main thread, so background jobs read copies of its chunks instead
+	// a job asks for the chunks it hasn't seen yet and waits until the main thread copies them in update()
+	
+	private static final int NumSections = 16;
+	private static final int SectionVolume = 16*16*16;
+	
+	private static class ChunkCopy
+	{
+		public short[][] ids;
+		
+		public ChunkCopy( Chunk chunk )
+		{
+			ids = new short[NumSections][];
+			ExtendedBlockStorage[] sections = chunk.getBlockStorageArray();
+			for( int i=0; i<sections.length && i<NumSections; i++ )
+			{
+				ExtendedBlockStorage section = sections[i];
+				if( section == null || section.isEmpty() )
+				{
+					continue;
+				}
+				
+				ids[i] = new short[SectionVolume];
+				for( int y=0; y<16; y++ )
+				{
+					for( int z=0; z<16; z++ )
+					{
+						for( int x=0; x<16; x++ )
+						{
+							ids[i][getIndex( x, y, z )] = (short)section.getExtBlockID( x, y, z );
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	private World m_world;
+	private Map<Long,ChunkCopy> m_chunks;
+	private Set<Long> m_requestedChunks;
+	private boolean m_isClosed;
+	
+	public WorldSnapshot( World world )
+	{
+		m_world = world;
+		m_chunks = new HashMap<Long,ChunkCopy>();
+		m_requestedChunks = new LinkedHashSet<Long>();
+		m_isClosed = false;
+	}
+	
+	public int getBlockId( int x, int y, int z )
+	{
+		ChunkCopy chunk = getChunk( x >> 4, z >> 4 );
+		int section = y >> 4;
+		if( y < 0 || section >= NumSections || chunk.ids[section] == null )
+		{
+			return 0;
+		}
+		return chunk.ids[section][getIndex( x & 15, y & 15, z & 15 )];
+	}
+	
+	public void update( )
+	{
+		// this should only be called on the main thread
+		List<Long> keys;
+		synchronized( this )
+		{
+			if( m_requestedChunks.isEmpty() )
+			{
+				return;
+			}
+			keys = new ArrayList<Long>( m_requestedChunks );
+			m_requestedChunks.clear();
+		}
+		
+		// copy the chunks outside of the lock so jobs can keep reading the chunks they have
+		Map<Long,ChunkCopy> copies = new HashMap<Long,ChunkCopy>();
+		for( Long key : keys )
+		{
+			copies.put( key, new ChunkCopy( m_world.getChunkFromChunkCoords( getChunkX( key ), getChunkZ( key ) ) ) );
+		}
+		
+		synchronized( this )
+		{
+			m_chunks.putAll( copies );
+			notifyAll();
+		}
+	}
+	
+	public void close( )
+	{
+		synchronized( this )
+		{
+			m_isClosed = true;
+			m_chunks.clear();
+			m_requestedChunks.clear();
+			notifyAll();
+		}
+	}
+	
+	private synchronized ChunkCopy getChunk( int chunkX, int chunkZ )
+	{
+		Long key = getKey( chunkX, chunkZ );
+		ChunkCopy chunk = m_chunks.get( key );
+		while( chunk == null )
+		{
+			if( m_isClosed )
+			{
+				throw new CancellationException( "World snapshot was closed." );
+			}
+			
+			// ask the main thread for a copy and wait for it
+			m_requestedChunks.add( key );
+			try
+			{
+				wait();
+			}
+			catch( InterruptedException ex )
+			{
+				Thread.currentThread().interrupt();
+				throw new CancellationException( "Interrupted while waiting for a chunk." );
+			}
+			chunk = m_chunks.get( key );
+		}
+		return chunk;
+	}
+	
+	private static int getIndex( int x, int y, int z )
+	{
+		return ( y << 8 ) | ( z << 4 ) | x;
+	}
+	
+	private static long getKey( int chunkX, int chunkZ )
+	{
+		return ( (long)chunkX << 32 ) | ( chunkZ & 0xffffffffL );
+	}
+	
+	private static int getChunkX( long key )
+	{
+		return (int)( key >> 32 );
+	}
+	
+	private static int getChunkZ( long key )
+	{
+		return (int)key;
+	}
+}
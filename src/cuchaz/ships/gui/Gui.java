@@ -33,7 +33,7 @@ public enum Gui
 		@SideOnly( Side.CLIENT )
 		public GuiContainer getGui( EntityPlayer player, World world, int x, int y, int z )
 		{
-			return new GuiShipLaunch( new ContainerShip(), new ShipLauncher( world, new Coords( x, y, z ) ) );
+			return new GuiShipLaunch( new ContainerShip(), ShipLauncher.startAnalysis( world, new Coords( x, y, z ) ) );
 		}
 	},
 	UnbuildShip
@@ -57,7 +57,7 @@ public class GuiShipLaunch extends GuiShip
 			20,
 			GuiString.ShipLaunch.getLocalizedText()
 		);
-		m_buttonLaunchShip.enabled = m_shipLauncher.isLaunchable();
+		m_buttonLaunchShip.enabled = m_shipLauncher.isAnalyzed() && m_shipLauncher.isLaunchable();
 		buttonList.add( m_buttonLaunchShip );
 		
 		// add the rotate buttons
@@ -81,6 +81,32 @@ public class GuiShipLaunch extends GuiShip
 		buttonList.add( m_buttonRotateRight );
 	}
 	
+	@Override
+	public void updateScreen( )
+	{
+		super.updateScreen();
+		
+		// keep the analysis going
+		if( !m_shipLauncher.isAnalyzed() )
+		{
+			m_shipLauncher.update();
+			if( m_shipLauncher.isAnalyzed() )
+			{
+				m_shipSide = m_shipLauncher.getShipSide();
+				m_buttonLaunchShip.enabled = m_shipLauncher.isLaunchable();
+			}
+		}
+	}
+	
+	@Override
+	public void onGuiClosed( )
+	{
+		super.onGuiClosed();
+		
+		// don't leave the analysis running if we don't need it anymore
+		m_shipLauncher.cancel();
+	}
+	
 	@Override
 	protected void actionPerformed( GuiButton button )
 	{
@@ -91,11 +117,11 @@ public class GuiShipLaunch extends GuiShip
 			PacketDispatcher.sendPacketToServer( packet.getCustomPacket() );
 			close();
 		}
-		else if( button.id == m_buttonRotateLeft.id )
+		else if( button.id == m_buttonRotateLeft.id && m_shipSide != null )
 		{
 			m_shipSide = m_shipSide.rotateXZCcw( 1 );
 		}
-		else if( button.id == m_buttonRotateRight.id )
+		else if( button.id == m_buttonRotateRight.id && m_shipSide != null )
 		{
 			m_shipSide = m_shipSide.rotateXZCw( 1 );
 		}
@@ -106,6 +132,20 @@ public class GuiShipLaunch extends GuiShip
 	{
 		drawHeaderText( GuiString.ShipConstruction.getLocalizedText(), 0 );
 		
+		if( !m_shipLauncher.isAnalyzed() )
+		{
+			// show the progress of the analysis
+			drawLabelValueText(
+				GuiString.ShipCheckingBlocks.getLocalizedText(),
+				String.format( "%d / %d",
+					m_shipLauncher.getNumBlocksChecked(),
+					m_shipLauncher.getNumBlocksToCheck()
+				),
+				1
+			);
+			return;
+		}
+		
 		String valueText;
 		
 		// right number of blocks
@@ -19,6 +19,7 @@ public enum GuiString
 	ShipConstruction( "Ship Construction" ),
 	ShipDashboard( "Ship Dashboard" ),
 	ShipNumBlocks( "Blocks" ),
+	ShipCheckingBlocks( "Checking blocks" ),
 	ShipTooLarge( "Ship is too large!" ),
 	ShipLaunch( "Launch Ship" ),
 	ShipUnlaunch( "Dock Ship" ),
@@ -23,7 +23,7 @@ import net.minecraft.network.packet.Packet250CustomPayload;
 
 public abstract class Packet
 {
-	protected static final int MaxPacketSize = 32767;
+	public static final int MaxPacketSize = 32767;
 	
 	private String m_channel;
 	
@@ -32,45 +32,85 @@ public abstract class Packet
 		m_channel = channel;
 	}
 	
+	public String getChannel( )
+	{
+		return m_channel;
+	}
+	
 	public Packet250CustomPayload getCustomPacket( )
 	{
 		Packet250CustomPayload customPacket = new Packet250CustomPayload();
 		customPacket.channel = m_channel;
+		customPacket.data = getPayload();
+		customPacket.length = customPacket.data.length;
 		
-		// get the payload
+		if( customPacket.data.length > MaxPacketSize )
+		{
+			Ships.logger.warning( "Packet payload on channel %s too large! %dk Packet payload will be dropped. Send it with the PacketQueue instead.", m_channel, customPacket.data.length/1024 );
+		}
+		
+		return customPacket;
+	}
+	
+	public byte[] getPayload( )
+	{
 		try
 		{
 			ByteArrayOutputStream data = new ByteArrayOutputStream( 8 );
 			DataOutputStream out = new DataOutputStream( data );
 			writeData( out );
-			customPacket.data = data.toByteArray();
-			
-			if( customPacket.data.length > MaxPacketSize )
-			{
-				Ships.logger.warning( "Packet payload on channel %s too large! %dk Packet payload will be dropped.", m_channel, customPacket.data.length/1024 );
-			}
+			return data.toByteArray();
 		}
 		catch( IOException ex )
 		{
 			throw new Error( "Unable to get packet data!", ex );
 		}
-		customPacket.length = customPacket.data.length;
-		
-		return customPacket;
 	}
 	
-	public void readCustomPacket( Packet250CustomPayload customPacket )
+	public void readCustomPacket( Packet250CustomPayload customPacket ) throws IOException
 	{
-		try
+		// NOTE: packets come from the network, so bad data isn't a bug here. The caller drops the packet
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream( customPacket.data ) );
+		readData( in );
+		in.close();
+	}
+	
+	protected static void writeVarInt( DataOutputStream out, int value ) throws IOException
+	{
+		// write 7 bits at a time, low bits first. The high bit means more bytes follow
+		while( ( value & ~0x7f ) != 0 )
 		{
-			DataInputStream in = new DataInputStream( new ByteArrayInputStream( customPacket.data ) );
-			readData( in );
-			in.close();
+			out.writeByte( ( value & 0x7f ) | 0x80 );
+			value >>>= 7;
 		}
-		catch( IOException ex )
+		out.writeByte( value );
+	}
+	
+	protected static int readVarInt( DataInputStream in ) throws IOException
+	{
+		int value = 0;
+		for( int shift=0; shift<32; shift+=7 )
 		{
-			throw new Error( "Unable to read data from packet!", ex );
+			int b = in.readUnsignedByte();
+			value |= ( b & 0x7f ) << shift;
+			if( ( b & 0x80 ) == 0 )
+			{
+				return value;
+			}
 		}
+		throw new IOException( "Varint is too long!" );
+	}
+	
+	protected static void writeSignedVarInt( DataOutputStream out, int value ) throws IOException
+	{
+		// zig-zag encode so small negative numbers stay small
+		writeVarInt( out, ( value << 1 ) ^ ( value >> 31 ) );
+	}
+	
+	protected static int readSignedVarInt( DataInputStream in ) throws IOException
+	{
+		int value = readVarInt( in );
+		return ( value >>> 1 ) ^ -( value & 1 );
 	}
 	
 	public abstract void writeData( DataOutputStream out ) throws IOException;
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships.packets;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.network.packet.Packet250CustomPayload;
+import cuchaz.ships.Ships;
+
+public class PacketAssembler
+{
+	// NOTE: each player can only have so many bytes of unfinished transfers
+	// transfers that are too big, or that stop getting chunks, are dropped. The sender will ask again if it needs to
+	
+	private static final int MaxBufferedBytesPerPlayer = 16*1024*1024;
+	private static final long TransferTimeoutMilliseconds = 60*1000;
+	
+	private static class Transfer
+	{
+		public String username;
+		public String channel;
+		public byte[] data;
+		public int numBytesReceived;
+		public long lastChunkTime;
+	}
+	
+	private Map<String,Transfer> m_transfers;
+	
+	public PacketAssembler( )
+	{
+		m_transfers = new HashMap<String,Transfer>();
+	}
+	
+	public synchronized Packet250CustomPayload addChunk( EntityPlayer player, PacketChunk chunk )
+	{
+		long now = System.currentTimeMillis();
+		dropStaleTransfers( now );
+		
+		// NOTE: in single player, the client and the server share the packet handler
+		String key = ( player.worldObj.isRemote ? "client:" : "server:" ) + player.username + ":" + chunk.getTransferId();
+		Transfer transfer = m_transfers.get( key );
+		if( transfer == null )
+		{
+			// if we missed the start of the transfer, there's no point in keeping the rest of it
+			if( chunk.getOffset() != 0 )
+			{
+				return null;
+			}
+			
+			// chunks can't wrap other chunks
+			if( chunk.getPacketChannel().equals( PacketChunk.Channel ) )
+			{
+				Ships.logger.warning( "Received nested packet chunks from %s! Dropping them.", player.username );
+				return null;
+			}
+			
+			// NOTE: don't add to the buffered bytes, the sum can overflow
+			if( chunk.getTotalLength() > MaxBufferedBytesPerPlayer - getNumBufferedBytes( player.username ) )
+			{
+				Ships.logger.warning( "Packet on channel %s from %s is too large! %dk Packet will be dropped.",
+					chunk.getPacketChannel(), player.username, chunk.getTotalLength()/1024
+				);
+				return null;
+			}
+			
+			transfer = new Transfer();
+			transfer.username = player.username;
+			transfer.channel = chunk.getPacketChannel();
+			transfer.data = new byte[chunk.getTotalLength()];
+			transfer.numBytesReceived = 0;
+			m_transfers.put( key, transfer );
+		}
+		else if( !transfer.channel.equals( chunk.getPacketChannel() ) || transfer.data.length != chunk.getTotalLength() )
+		{
+			Ships.logger.warning( "Received mismatched packet chunk from %s! Dropping the transfer.", player.username );
+			m_transfers.remove( key );
+			return null;
+		}
+		else if( chunk.getOffset() != transfer.numBytesReceived )
+		{
+			// the queue sends chunks in order, so a repeated or skipped chunk would leave a gap in the data
+			Ships.logger.warning( "Received out-of-order packet chunk from %s! Dropping the transfer.", player.username );
+			m_transfers.remove( key );
+			return null;
+		}
+		
+		chunk.copyTo( transfer.data );
+		transfer.numBytesReceived += chunk.getLength();
+		transfer.lastChunkTime = now;
+		if( transfer.numBytesReceived < transfer.data.length )
+		{
+			return null;
+		}
+		
+		// the transfer is done, rebuild the original packet
+		m_transfers.remove( key );
+		Packet250CustomPayload customPacket = new Packet250CustomPayload();
+		customPacket.channel = transfer.channel;
+		customPacket.data = transfer.data;
+		customPacket.length = transfer.data.length;
+		return customPacket;
+	}
+	
+	private int getNumBufferedBytes( String username )
+	{
+		int numBytes = 0;
+		for( Transfer transfer : m_transfers.values() )
+		{
+			if( transfer.username.equals( username ) )
+			{
+				numBytes += transfer.data.length;
+			}
+		}
+		return numBytes;
+	}
+	
+	private void dropStaleTransfers( long now )
+	{
+		Iterator<Transfer> iter = m_transfers.values().iterator();
+		while( iter.hasNext() )
+		{
+			Transfer transfer = iter.next();
+			if( now - transfer.lastChunkTime > TransferTimeoutMilliseconds )
+			{
+				Ships.logger.warning( "Packet transfer on channel %s from %s timed out!", transfer.channel, transfer.username );
+				iter.remove();
+			}
+		}
+	}
+}
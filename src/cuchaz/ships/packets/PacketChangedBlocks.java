@@ -13,6 +13,11 @@ package cuchaz.ships.packets;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import net.minecraft.entity.player.EntityPlayer;
 import cuchaz.modsShared.blocks.BlockSet;
@@ -23,10 +28,12 @@ import cuchaz.ships.ShipWorld;
 
 public class PacketChangedBlocks extends Packet
 {
+	// NOTE: changed blocks are usually a few kinds of blocks in a few spots, so the packet is compressed:
+	// each distinct block id/meta is written once in a palette, and the blocks are grouped by 16x16x16 section
+	// so each block only needs its index in the section and its index in the palette
+	
 	public static final String Channel = "changedBlocks";
 	
-	private BlockSet m_changedBlocks;
-	private EntityShip m_ship;
 	private int m_entityId;
 	private int m_numChangedBlocks;
 	private int[] m_x;
@@ -44,23 +51,122 @@ public class PacketChangedBlocks extends Packet
 	{
 		this();
 		
-		m_changedBlocks = changedBlocks;
-		m_ship = ship;
+		// grab the new blocks now, the ship world could change again before the packet is written
+		ShipWorld world = ship.getShipWorld();
+		m_entityId = ship.entityId;
+		allocate( changedBlocks.size() );
+		int i = 0;
+		for( Coords coords : changedBlocks )
+		{
+			m_x[i] = coords.x;
+			m_y[i] = coords.y;
+			m_z[i] = coords.z;
+			m_blockId[i] = world.getBlockId( coords );
+			m_meta[i] = world.getBlockMetadata( coords );
+			i++;
+		}
+	}
+	
+	public PacketChangedBlocks( int entityId, int[] x, int[] y, int[] z, int[] blockId, int[] meta )
+	{
+		this();
+		
+		m_entityId = entityId;
+		m_numChangedBlocks = x.length;
+		m_x = x;
+		m_y = y;
+		m_z = z;
+		m_blockId = blockId;
+		m_meta = meta;
+	}
+	
+	public int getNumChangedBlocks( )
+	{
+		return m_numChangedBlocks;
+	}
+	
+	public int getX( int i )
+	{
+		return m_x[i];
+	}
+	
+	public int getY( int i )
+	{
+		return m_y[i];
+	}
+	
+	public int getZ( int i )
+	{
+		return m_z[i];
+	}
+	
+	public int getBlockId( int i )
+	{
+		return m_blockId[i];
+	}
+	
+	public int getMeta( int i )
+	{
+		return m_meta[i];
 	}
 	
 	@Override
 	public void writeData( DataOutputStream out ) throws IOException
 	{
-		ShipWorld world = m_ship.getShipWorld();
-		out.writeInt( m_ship.entityId );
-		out.writeInt( m_changedBlocks.size() );
-		for( Coords coords : m_changedBlocks )
+		// group the blocks by section
+		Map<Long,List<Integer>> sections = new LinkedHashMap<Long,List<Integer>>();
+		for( int i=0; i<m_numChangedBlocks; i++ )
+		{
+			Long key = getSectionKey( m_x[i] >> 4, m_y[i] >> 4, m_z[i] >> 4 );
+			List<Integer> section = sections.get( key );
+			if( section == null )
+			{
+				section = new ArrayList<Integer>();
+				sections.put( key, section );
+			}
+			section.add( i );
+		}
+		
+		// build the palette in the same order the blocks get written
+		Map<Integer,Integer> paletteIndices = new HashMap<Integer,Integer>();
+		List<Integer> palette = new ArrayList<Integer>();
+		int[] blockPaletteIndices = new int[m_numChangedBlocks];
+		for( List<Integer> section : sections.values() )
+		{
+			for( int i : section )
+			{
+				int state = getState( m_blockId[i], m_meta[i] );
+				Integer paletteIndex = paletteIndices.get( state );
+				if( paletteIndex == null )
+				{
+					paletteIndex = palette.size();
+					paletteIndices.put( state, paletteIndex );
+					palette.add( state );
+				}
+				blockPaletteIndices[i] = paletteIndex;
+			}
+		}
+		
+		out.writeInt( m_entityId );
+		writeVarInt( out, m_numChangedBlocks );
+		writeVarInt( out, palette.size() );
+		for( int state : palette )
+		{
+			writeVarInt( out, state );
+		}
+		writeVarInt( out, sections.size() );
+		for( List<Integer> section : sections.values() )
 		{
-			out.writeShort( coords.x );
-			out.writeShort( coords.y );
-			out.writeShort( coords.z );
-			out.writeShort( world.getBlockId( coords ) );
-			out.writeByte( world.getBlockMetadata( coords ) );
+			int first = section.get( 0 );
+			writeSignedVarInt( out, m_x[first] >> 4 );
+			writeSignedVarInt( out, m_y[first] >> 4 );
+			writeSignedVarInt( out, m_z[first] >> 4 );
+			writeVarInt( out, section.size() );
+			for( int i : section )
+			{
+				out.writeShort( ( m_y[i] & 15 ) << 8 | ( m_z[i] & 15 ) << 4 | ( m_x[i] & 15 ) );
+				writeVarInt( out, blockPaletteIndices[i] );
+			}
 		}
 	}
 	
@@ -68,24 +174,55 @@ public class PacketChangedBlocks extends Packet
 	public void readData( DataInputStream in ) throws IOException
 	{
 		// read the header
+		// NOTE: every block takes at least 3 bytes and every palette entry at least 1, so bad counts can't make us allocate a lot
 		m_entityId = in.readInt();
-		m_numChangedBlocks = in.readInt();
-		
-		// allocate space for the rest
-		m_x = new int[m_numChangedBlocks];
-		m_y = new int[m_numChangedBlocks];
-		m_z = new int[m_numChangedBlocks];
-		m_blockId = new int[m_numChangedBlocks];
-		m_meta = new int[m_numChangedBlocks];
+		int numChangedBlocks = readVarInt( in );
+		if( numChangedBlocks < 0 || numChangedBlocks > in.available()/3 )
+		{
+			throw new IOException( "Invalid number of changed blocks: " + numChangedBlocks );
+		}
+		allocate( numChangedBlocks );
+		int paletteSize = readVarInt( in );
+		if( paletteSize < 0 || paletteSize > in.available() )
+		{
+			throw new IOException( "Invalid palette size: " + paletteSize );
+		}
+		int[] palette = new int[paletteSize];
+		for( int i=0; i<palette.length; i++ )
+		{
+			palette[i] = readVarInt( in );
+		}
 		
 		// read the changes into a buffer
-		for( int i=0; i<m_numChangedBlocks; i++ )
+		int numSections = readVarInt( in );
+		int i = 0;
+		for( int s=0; s<numSections; s++ )
 		{
-			m_x[i] = in.readShort();
-			m_y[i] = in.readShort();
-			m_z[i] = in.readShort();
-			m_blockId[i] = in.readShort();
-			m_meta[i] = in.readByte();
+			int sectionX = readSignedVarInt( in ) << 4;
+			int sectionY = readSignedVarInt( in ) << 4;
+			int sectionZ = readSignedVarInt( in ) << 4;
+			int numBlocks = readVarInt( in );
+			for( int j=0; j<numBlocks; j++ )
+			{
+				int index = in.readUnsignedShort();
+				int paletteIndex = readVarInt( in );
+				if( i >= m_numChangedBlocks || paletteIndex < 0 || paletteIndex >= palette.length )
+				{
+					throw new IOException( "Invalid changed blocks!" );
+				}
+				m_x[i] = sectionX + ( index & 15 );
+				m_y[i] = sectionY + ( ( index >> 8 ) & 15 );
+				m_z[i] = sectionZ + ( ( index >> 4 ) & 15 );
+				m_blockId[i] = palette[paletteIndex] >>> 4;
+				m_meta[i] = palette[paletteIndex] & 15;
+				i++;
+			}
+		}
+		
+		// the sections have to hold exactly the blocks in the header, or the rest of the arrays would be garbage
+		if( i != m_numChangedBlocks )
+		{
+			throw new IOException( "Invalid changed blocks!" );
 		}
 	}
 	
@@ -99,11 +236,42 @@ public class PacketChangedBlocks extends Packet
 			return;
 		}
 		
-		// apply the block changes
-		ShipWorld world = ship.getShipWorld();
+		// if the blocks are still on the way, apply the changes after they get here
+		// NOTE: the packet handler reuses this packet, so save a copy. readData() allocates new arrays every time
+		if( ship.getShipWorld() == null )
+		{
+			ship.addPendingBlockChanges( new PacketChangedBlocks( m_entityId, m_x, m_y, m_z, m_blockId, m_meta ) );
+			return;
+		}
+		
+		applyTo( ship.getShipWorld() );
+	}
+	
+	public void applyTo( ShipWorld world )
+	{
 		for( int i=0; i<m_numChangedBlocks; i++ )
 		{
 			world.applyBlockChange( m_x[i], m_y[i], m_z[i], m_blockId[i], m_meta[i] );
 		}
 	}
+	
+	private void allocate( int numChangedBlocks )
+	{
+		m_numChangedBlocks = numChangedBlocks;
+		m_x = new int[numChangedBlocks];
+		m_y = new int[numChangedBlocks];
+		m_z = new int[numChangedBlocks];
+		m_blockId = new int[numChangedBlocks];
+		m_meta = new int[numChangedBlocks];
+	}
+	
+	private static int getState( int blockId, int meta )
+	{
+		return ( blockId << 4 ) | ( meta & 15 );
+	}
+	
+	private static long getSectionKey( int x, int y, int z )
+	{
+		return ( ( x & 0x1fffffL ) << 42 ) | ( ( y & 0x1fffffL ) << 21 ) | ( z & 0x1fffffL );
+	}
 }
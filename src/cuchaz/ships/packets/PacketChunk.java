@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import net.minecraft.entity.player.EntityPlayer;
+
+public class PacketChunk extends Packet
+{
+	public static final String Channel = "shipChunk";
+	
+	// leave some room for the chunk header
+	public static final int MaxChunkSize = MaxPacketSize - 64;
+	
+	private int m_transferId;
+	private String m_channel;
+	private int m_totalLength;
+	private int m_offset;
+	private int m_length;
+	private byte[] m_data;
+	private int m_dataStart;
+	
+	public PacketChunk( )
+	{
+		super( Channel );
+	}
+	
+	public PacketChunk( int transferId, String channel, byte[] payload, int offset, int length )
+	{
+		this();
+		
+		m_transferId = transferId;
+		m_channel = channel;
+		m_totalLength = payload.length;
+		m_offset = offset;
+		m_length = length;
+		m_data = payload;
+		m_dataStart = offset;
+	}
+	
+	public int getTransferId( )
+	{
+		return m_transferId;
+	}
+	
+	public String getPacketChannel( )
+	{
+		return m_channel;
+	}
+	
+	public int getTotalLength( )
+	{
+		return m_totalLength;
+	}
+	
+	public int getOffset( )
+	{
+		return m_offset;
+	}
+	
+	public int getLength( )
+	{
+		return m_length;
+	}
+	
+	public void copyTo( byte[] payload )
+	{
+		System.arraycopy( m_data, m_dataStart, payload, m_offset, m_length );
+	}
+	
+	@Override
+	public void writeData( DataOutputStream out ) throws IOException
+	{
+		out.writeInt( m_transferId );
+		out.writeUTF( m_channel );
+		out.writeInt( m_totalLength );
+		out.writeInt( m_offset );
+		out.writeInt( m_length );
+		out.write( m_data, m_dataStart, m_length );
+	}
+	
+	@Override
+	public void readData( DataInputStream in ) throws IOException
+	{
+		m_transferId = in.readInt();
+		m_channel = in.readUTF();
+		m_totalLength = in.readInt();
+		m_offset = in.readInt();
+		m_length = in.readInt();
+		// NOTE: don't add the offset and length, the sum can overflow
+		if( m_totalLength < 0 || m_length < 0 || m_length > MaxChunkSize || m_offset < 0 || m_offset > m_totalLength - m_length )
+		{
+			throw new IOException( "Invalid chunk range!" );
+		}
+		m_data = new byte[m_length];
+		m_dataStart = 0;
+		in.readFully( m_data );
+	}
+	
+	@Override
+	public void onPacketReceived( EntityPlayer player )
+	{
+		// NOTE: the packet handler reassembles the chunks, see PacketAssembler
+	}
+}
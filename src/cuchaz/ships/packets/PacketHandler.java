@@ -10,6 +10,7 @@
  ******************************************************************************/
 package cuchaz.ships.packets;
 
+import java.io.IOException;
 import java.util.HashMap;
 
 import net.minecraft.entity.player.EntityPlayer;
@@ -22,6 +23,7 @@ import cuchaz.ships.Ships;
 public class PacketHandler implements IPacketHandler
 {
 	private HashMap<String,Packet> m_packetTypes;
+	private PacketAssembler m_assembler;
 	
 	public PacketHandler( )
 	{
@@ -32,6 +34,9 @@ public class PacketHandler implements IPacketHandler
 		m_packetTypes.put( PacketUnlaunchShip.Channel, new PacketUnlaunchShip() );
 		m_packetTypes.put( PacketRequestShipBlocks.Channel, new PacketRequestShipBlocks() );
 		m_packetTypes.put( PacketShipBlocks.Channel, new PacketShipBlocks() );
+		m_packetTypes.put( PacketShipBlocksHash.Channel, new PacketShipBlocksHash() );
+		m_packetTypes.put( PacketShipCorrection.Channel, new PacketShipCorrection() );
+		m_packetTypes.put( PacketShipBatch.Channel, new PacketShipBatch() );
 		m_packetTypes.put( PacketPilotShip.Channel, new PacketPilotShip() );
 		m_packetTypes.put( PacketShipBlockEvent.Channel, new PacketShipBlockEvent() );
 		m_packetTypes.put( PacketChangedBlocks.Channel, new PacketChangedBlocks() );
@@ -41,6 +46,9 @@ public class PacketHandler implements IPacketHandler
 		m_packetTypes.put( PacketPlayerSleepInBerth.Channel, new PacketPlayerSleepInBerth() );
 		m_packetTypes.put( PacketBlockPropertiesOverrides.Channel, new PacketBlockPropertiesOverrides() );
 		m_packetTypes.put( PacketPlaceProjector.Channel, new PacketPlaceProjector() );
+		m_packetTypes.put( PacketChunk.Channel, new PacketChunk() );
+		
+		m_assembler = new PacketAssembler();
 	}
 	
 	@Override
@@ -55,11 +63,44 @@ public class PacketHandler implements IPacketHandler
 			return;
 		}
 		
+		// only the server sends chunks
+		if( customPacket.channel.equals( PacketChunk.Channel ) && !player.worldObj.isRemote )
+		{
+			Ships.logger.warning( "Received packet chunk from client %s! Dropping it.", player.username );
+			return;
+		}
+		
 		Packet packet = m_packetTypes.get( customPacket.channel );
 		if( packet != null )
 		{
-			packet.readCustomPacket( customPacket );
+			try
+			{
+				packet.readCustomPacket( customPacket );
+			}
+			catch( IOException ex )
+			{
+				Ships.logger.warning( ex, "Received malformed packet on channel %s from %s! Dropping it.", customPacket.channel, player.username );
+				return;
+			}
 			packet.onPacketReceived( player );
+			
+			// big packets arrive in chunks. When the last chunk is here, handle the whole packet
+			if( packet instanceof PacketChunk )
+			{
+				Packet250CustomPayload assembledPacket = m_assembler.addChunk( player, (PacketChunk)packet );
+				if( assembledPacket != null )
+				{
+					onPacketData( manager, assembledPacket, iPlayer );
+				}
+			}
+			else if( packet instanceof PacketShipBatch )
+			{
+				// ship batches hold a tick's worth of packets for one ship
+				for( Packet250CustomPayload batchedPacket : ( (PacketShipBatch)packet ).getPackets() )
+				{
+					onPacketData( manager, batchedPacket, iPlayer );
+				}
+			}
 		}
 		else
 		{
@@ -16,8 +16,6 @@ import java.io.IOException;
 
 import net.minecraft.entity.player.EntityPlayer;
 import cuchaz.modsShared.blocks.Coords;
-import cuchaz.ships.ShipLauncher;
-import cuchaz.ships.ShipLauncher.LaunchFlag;
 import cuchaz.ships.Ships;
 
 public class PacketLaunchShip extends Packet
@@ -63,23 +61,7 @@ public class PacketLaunchShip extends Packet
 	@Override
 	public void onPacketReceived( EntityPlayer player )
 	{
-		// spawn the ship
-		ShipLauncher launcher = new ShipLauncher( player.worldObj, new Coords( m_x, m_y, m_z ) );
-		if( launcher.isLaunchable() )
-		{
-			launcher.launch();
-		}
-		else
-		{
-			// debug info
-			Ships.logger.warning(
-				"Server can't launch ship at: (%d,%d,%d)",
-				m_x, m_y, m_z
-			);
-			for( LaunchFlag flag : LaunchFlag.values() )
-			{
-				Ships.logger.warning( "\t" + flag.name() + ": " + launcher.getLaunchFlag( flag ) );
-			}
-		}
+		// NOTE: the analysis runs in the background. The launch queue spawns the ship when it's done
+		Ships.m_launchQueue.launch( player, player.worldObj, new Coords( m_x, m_y, m_z ) );
 	}
 }
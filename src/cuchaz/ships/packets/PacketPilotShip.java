@@ -15,7 +15,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import net.minecraft.entity.player.EntityPlayer;
-import cpw.mods.fml.common.network.PacketDispatcher;
 import cuchaz.modsShared.Environment;
 import cuchaz.modsShared.blocks.BlockSide;
 import cuchaz.ships.EntityShip;
@@ -87,8 +86,7 @@ public class PacketPilotShip extends Packet
 		if( Environment.isServer() )
 		{
 			// broadcast the actions to the rest of the clients
-			final double BroadcastRange = 100;
-			PacketDispatcher.sendPacketToAllAround( ship.posX, ship.posY, ship.posZ, BroadcastRange, player.worldObj.provider.dimensionId, getCustomPacket() );
+			ship.getWatchers().addPacket( this );
 		}
 	}
 }
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships.packets;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.packet.Packet250CustomPayload;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.management.ServerConfigurationManager;
+import cpw.mods.fml.common.ITickHandler;
+import cpw.mods.fml.common.TickType;
+import cpw.mods.fml.common.network.PacketDispatcher;
+import cpw.mods.fml.common.network.Player;
+
+public class PacketQueue implements ITickHandler
+{
+	// NOTE: custom packets can only carry 32k, so bigger packets are split into chunks and reassembled by the PacketHandler
+	// each player only gets so many bytes per tick, so big ships don't hog the connection
+	
+	private static final int MaxBytesPerPlayerPerTick = 64*1024;
+	
+	private static class Transfer
+	{
+		public String key;
+		public List<Packet250CustomPayload> packets;
+		public int nextPacket;
+		
+		public Transfer( String key, List<Packet250CustomPayload> packets )
+		{
+			this.key = key;
+			this.packets = packets;
+			this.nextPacket = 0;
+		}
+	}
+	
+	private Map<String,LinkedList<Transfer>> m_queues;
+	private int m_nextTransferId;
+	
+	public PacketQueue( )
+	{
+		m_queues = new HashMap<String,LinkedList<Transfer>>();
+		m_nextTransferId = 0;
+	}
+	
+	public void sendToPlayer( Packet packet, EntityPlayer player )
+	{
+		sendToPlayer( packet, player, null );
+	}
+	
+	public void sendToPlayer( Packet packet, EntityPlayer player, String key )
+	{
+		addTransfer( player.username, new Transfer( key, split( packet ) ) );
+	}
+	
+	public void sendToAllPlayers( Packet packet )
+	{
+		// the chunks can be shared by all the transfers
+		List<Packet250CustomPayload> packets = split( packet );
+		for( Object player : getPlayers().playerEntityList )
+		{
+			addTransfer( ( (EntityPlayer)player ).username, new Transfer( null, packets ) );
+		}
+	}
+	
+	public boolean isSending( EntityPlayer player, String key )
+	{
+		LinkedList<Transfer> queue = m_queues.get( player.username );
+		if( queue != null )
+		{
+			for( Transfer transfer : queue )
+			{
+				if( key.equals( transfer.key ) )
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	public void update( )
+	{
+		ServerConfigurationManager players = getPlayers();
+		Iterator<Map.Entry<String,LinkedList<Transfer>>> iter = m_queues.entrySet().iterator();
+		while( iter.hasNext() )
+		{
+			Map.Entry<String,LinkedList<Transfer>> entry = iter.next();
+			LinkedList<Transfer> queue = entry.getValue();
+			
+			// did the player leave?
+			EntityPlayerMP player = players.getPlayerForUsername( entry.getKey() );
+			if( player == null )
+			{
+				iter.remove();
+				continue;
+			}
+			
+			// send packets until the player runs out of bytes for this tick
+			int numBytesSent = 0;
+			while( !queue.isEmpty() && numBytesSent < MaxBytesPerPlayerPerTick )
+			{
+				Transfer transfer = queue.getFirst();
+				Packet250CustomPayload customPacket = transfer.packets.get( transfer.nextPacket++ );
+				PacketDispatcher.sendPacketToPlayer( customPacket, (Player)player );
+				numBytesSent += customPacket.length;
+				if( transfer.nextPacket >= transfer.packets.size() )
+				{
+					queue.removeFirst();
+				}
+			}
+			
+			if( queue.isEmpty() )
+			{
+				iter.remove();
+			}
+		}
+	}
+	
+	@Override
+	public void tickStart( EnumSet<TickType> type, Object... tickData )
+	{
+		// don't care
+	}
+	
+	@Override
+	public void tickEnd( EnumSet<TickType> type, Object... tickData )
+	{
+		update();
+	}
+	
+	@Override
+	public EnumSet<TickType> ticks( )
+	{
+		return EnumSet.of( TickType.SERVER );
+	}
+	
+	@Override
+	public String getLabel( )
+	{
+		return "Ships packet queue";
+	}
+	
+	private void addTransfer( String username, Transfer transfer )
+	{
+		LinkedList<Transfer> queue = m_queues.get( username );
+		if( queue == null )
+		{
+			queue = new LinkedList<Transfer>();
+			m_queues.put( username, queue );
+		}
+		queue.addLast( transfer );
+	}
+	
+	private List<Packet250CustomPayload> split( Packet packet )
+	{
+		List<Packet250CustomPayload> packets = new ArrayList<Packet250CustomPayload>();
+		byte[] payload = packet.getPayload();
+		if( payload.length <= Packet.MaxPacketSize )
+		{
+			Packet250CustomPayload customPacket = new Packet250CustomPayload();
+			customPacket.channel = packet.getChannel();
+			customPacket.data = payload;
+			customPacket.length = payload.length;
+			packets.add( customPacket );
+			return packets;
+		}
+		
+		int transferId = m_nextTransferId++;
+		for( int offset=0; offset<payload.length; offset+=PacketChunk.MaxChunkSize )
+		{
+			int length = Math.min( PacketChunk.MaxChunkSize, payload.length - offset );
+			packets.add( new PacketChunk( transferId, packet.getChannel(), payload, offset, length ).getCustomPacket() );
+		}
+		return packets;
+	}
+	
+	private ServerConfigurationManager getPlayers( )
+	{
+		return MinecraftServer.getServer().getConfigurationManager();
+	}
+}
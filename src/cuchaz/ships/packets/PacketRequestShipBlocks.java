@@ -15,39 +15,45 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
 import cpw.mods.fml.common.network.PacketDispatcher;
 import cpw.mods.fml.common.network.Player;
 import cuchaz.ships.EntityShip;
 import cuchaz.ships.ShipLocator;
+import cuchaz.ships.Ships;
 
 public class PacketRequestShipBlocks extends Packet
 {
 	public static final String Channel = "requestBlocks";
 	
 	private int m_entityId;
+	private boolean m_sendBlocks;
 	
 	public PacketRequestShipBlocks( )
 	{
 		super( Channel );
 	}
 	
-	public PacketRequestShipBlocks( int entityId )
+	public PacketRequestShipBlocks( int entityId, boolean sendBlocks )
 	{
 		this();
 		
 		m_entityId = entityId;
+		m_sendBlocks = sendBlocks;
 	}
 	
 	@Override
 	public void writeData( DataOutputStream out ) throws IOException
 	{
 		out.writeInt( m_entityId );
+		out.writeBoolean( m_sendBlocks );
 	}
 	
 	@Override
 	public void readData( DataInputStream in ) throws IOException
 	{
 		m_entityId = in.readInt();
+		m_sendBlocks = in.readBoolean();
 	}
 	
 	@Override
@@ -60,7 +66,29 @@ public class PacketRequestShipBlocks extends Packet
 			return;
 		}
 		
-		// respond with the blocks
-		PacketDispatcher.sendPacketToPlayer( new PacketShipBlocks( ship ).getCustomPacket(), (Player)player );
+		// start watching the ship now, so the player can't miss any changes made after these blocks
+		boolean isNewWatcher = ship.getWatchers().addWatcher( (EntityPlayerMP)player );
+		
+		// the client might have these blocks cached already, so just send the hash first
+		if( !m_sendBlocks )
+		{
+			// the client just started tracking this ship, so it needs to know how the ship is moving too
+			// new watchers get a correction already
+			if( !isNewWatcher )
+			{
+				ship.sendCorrection();
+			}
+			
+			PacketShipBlocksHash packet = new PacketShipBlocksHash( m_entityId, ship.getShipWorld().getClientDataHash() );
+			PacketDispatcher.sendPacketToPlayer( packet.getCustomPacket(), (Player)player );
+			return;
+		}
+		
+		// respond with the blocks, unless they're already on the way
+		String key = PacketShipBlocks.Channel + m_entityId;
+		if( !Ships.m_packetQueue.isSending( player, key ) )
+		{
+			Ships.m_packetQueue.sendToPlayer( new PacketShipBlocks( ship ), player, key );
+		}
 	}
 }
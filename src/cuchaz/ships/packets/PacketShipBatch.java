@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships.packets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.network.packet.Packet250CustomPayload;
+import cuchaz.modsShared.Environment;
+
+public class PacketShipBatch extends Packet
+{
+	// NOTE: everything a ship sends to a player in one tick goes in one of these
+	// the entries are encoded once when they're added, and each player's batch just strings them together
+	
+	public static final String Channel = "shipBatch";
+	
+	private static final int TypePacket = 0;
+	private static final int TypeSound = 1;
+	private static final int TypeAuxSFX = 2;
+	
+	private static class Sound
+	{
+		public double x;
+		public double y;
+		public double z;
+		public String name;
+		public float volume;
+		public float pitch;
+	}
+	
+	private static class AuxSFX
+	{
+		public int sfxId;
+		public int x;
+		public int y;
+		public int z;
+		public int auxData;
+	}
+	
+	private List<byte[]> m_entries;
+	private List<Packet250CustomPayload> m_packets;
+	private List<Sound> m_sounds;
+	private List<AuxSFX> m_auxSFXs;
+	
+	public PacketShipBatch( )
+	{
+		super( Channel );
+		
+		m_packets = new ArrayList<Packet250CustomPayload>();
+		m_sounds = new ArrayList<Sound>();
+		m_auxSFXs = new ArrayList<AuxSFX>();
+	}
+	
+	public PacketShipBatch( List<byte[]> entries )
+	{
+		this();
+		
+		m_entries = entries;
+	}
+	
+	public static byte[] encodePacket( Packet packet )
+	{
+		try
+		{
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( buf );
+			byte[] payload = packet.getPayload();
+			out.writeByte( TypePacket );
+			out.writeUTF( packet.getChannel() );
+			writeVarInt( out, payload.length );
+			out.write( payload );
+			return buf.toByteArray();
+		}
+		catch( IOException ex )
+		{
+			throw new Error( "Unable to encode packet!", ex );
+		}
+	}
+	
+	public static byte[] encodeSound( double x, double y, double z, String name, float volume, float pitch )
+	{
+		try
+		{
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( buf );
+			out.writeByte( TypeSound );
+			out.writeDouble( x );
+			out.writeDouble( y );
+			out.writeDouble( z );
+			out.writeUTF( name );
+			out.writeFloat( volume );
+			out.writeFloat( pitch );
+			return buf.toByteArray();
+		}
+		catch( IOException ex )
+		{
+			throw new Error( "Unable to encode sound!", ex );
+		}
+	}
+	
+	public static byte[] encodeAuxSFX( int sfxId, int x, int y, int z, int auxData )
+	{
+		try
+		{
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( buf );
+			out.writeByte( TypeAuxSFX );
+			writeVarInt( out, sfxId );
+			out.writeInt( x );
+			out.writeInt( y );
+			out.writeInt( z );
+			out.writeInt( auxData );
+			return buf.toByteArray();
+		}
+		catch( IOException ex )
+		{
+			throw new Error( "Unable to encode sound effect!", ex );
+		}
+	}
+	
+	public List<Packet250CustomPayload> getPackets( )
+	{
+		return m_packets;
+	}
+	
+	@Override
+	public void writeData( DataOutputStream out ) throws IOException
+	{
+		writeVarInt( out, m_entries.size() );
+		for( byte[] entry : m_entries )
+		{
+			out.write( entry );
+		}
+	}
+	
+	@Override
+	public void readData( DataInputStream in ) throws IOException
+	{
+		m_packets.clear();
+		m_sounds.clear();
+		m_auxSFXs.clear();
+		
+		int numEntries = readVarInt( in );
+		for( int i=0; i<numEntries; i++ )
+		{
+			int type = in.readUnsignedByte();
+			switch( type )
+			{
+				case TypePacket:
+					m_packets.add( readPacketEntry( in ) );
+				break;
+				case TypeSound:
+					m_sounds.add( readSoundEntry( in ) );
+				break;
+				case TypeAuxSFX:
+					m_auxSFXs.add( readAuxSFXEntry( in ) );
+				break;
+				default:
+					throw new IOException( "Unknown batch entry type: " + type );
+			}
+		}
+	}
+	
+	@Override
+	public void onPacketReceived( EntityPlayer player )
+	{
+		// batches only go to clients
+		if( !Environment.isClient() )
+		{
+			return;
+		}
+		
+		// play the sounds and effects here, the packet handler delivers the packets
+		for( Sound sound : m_sounds )
+		{
+			player.worldObj.playSound( sound.x, sound.y, sound.z, sound.name, sound.volume, sound.pitch, false );
+		}
+		for( AuxSFX auxSFX : m_auxSFXs )
+		{
+			player.worldObj.playAuxSFX( auxSFX.sfxId, auxSFX.x, auxSFX.y, auxSFX.z, auxSFX.auxData );
+		}
+	}
+	
+	private Packet250CustomPayload readPacketEntry( DataInputStream in ) throws IOException
+	{
+		Packet250CustomPayload customPacket = new Packet250CustomPayload();
+		customPacket.channel = in.readUTF();
+		int length = readVarInt( in );
+		if( length < 0 || length > in.available() )
+		{
+			throw new IOException( "Invalid packet length in batch!" );
+		}
+		customPacket.data = new byte[length];
+		customPacket.length = length;
+		in.readFully( customPacket.data );
+		
+		// batches can't wrap other batches or chunks
+		if( customPacket.channel.equals( Channel ) || customPacket.channel.equals( PacketChunk.Channel ) )
+		{
+			throw new IOException( "Invalid packet in batch: " + customPacket.channel );
+		}
+		return customPacket;
+	}
+	
+	private Sound readSoundEntry( DataInputStream in ) throws IOException
+	{
+		Sound sound = new Sound();
+		sound.x = in.readDouble();
+		sound.y = in.readDouble();
+		sound.z = in.readDouble();
+		sound.name = in.readUTF();
+		sound.volume = in.readFloat();
+		sound.pitch = in.readFloat();
+		return sound;
+	}
+	
+	private AuxSFX readAuxSFXEntry( DataInputStream in ) throws IOException
+	{
+		AuxSFX auxSFX = new AuxSFX();
+		auxSFX.sfxId = readVarInt( in );
+		auxSFX.x = in.readInt();
+		auxSFX.y = in.readInt();
+		auxSFX.z = in.readInt();
+		auxSFX.auxData = in.readInt();
+		return auxSFX;
+	}
+}
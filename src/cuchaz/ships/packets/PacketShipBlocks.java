@@ -38,7 +38,7 @@ public class PacketShipBlocks extends Packet
 		this();
 		
 		m_entityId = ship.entityId;
-		m_shipData = ShipWorldPersistence.writeNewestVersion( ship.getShipWorld(), true );
+		m_shipData = ship.getShipWorld().getClientData();
 	}
 
 	@Override
@@ -53,8 +53,8 @@ public class PacketShipBlocks extends Packet
 	public void readData( DataInputStream in ) throws IOException
 	{
 		m_entityId = in.readInt();
-		m_shipData = new byte[Math.min( in.readInt(), MaxPacketSize )];
-		in.read( m_shipData );
+		m_shipData = new byte[in.readInt()];
+		in.readFully( m_shipData );
 	}
 	
 	@Override
@@ -73,6 +73,7 @@ public class PacketShipBlocks extends Packet
 			try
 			{
 				ship.setShipWorld( ShipWorldPersistence.readAnyVersion( ship.worldObj, m_shipData, true ) );
+				Ships.m_shipBlocksCache.put( m_shipData );
 			}
 			catch( PersistenceException ex )
 			{
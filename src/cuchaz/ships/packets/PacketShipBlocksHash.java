@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import net.minecraft.entity.player.EntityPlayer;
+import cpw.mods.fml.common.network.PacketDispatcher;
+import cuchaz.ships.EntityShip;
+import cuchaz.ships.ShipLocator;
+import cuchaz.ships.Ships;
+import cuchaz.ships.persistence.PersistenceException;
+import cuchaz.ships.persistence.ShipWorldPersistence;
+
+public class PacketShipBlocksHash extends Packet
+{
+	public static final String Channel = "shipBlocksHash";
+	
+	private int m_entityId;
+	private String m_hash;
+	
+	public PacketShipBlocksHash( )
+	{
+		super( Channel );
+	}
+	
+	public PacketShipBlocksHash( int entityId, String hash )
+	{
+		this();
+		
+		m_entityId = entityId;
+		m_hash = hash;
+	}
+	
+	@Override
+	public void writeData( DataOutputStream out ) throws IOException
+	{
+		out.writeInt( m_entityId );
+		out.writeUTF( m_hash );
+	}
+	
+	@Override
+	public void readData( DataInputStream in ) throws IOException
+	{
+		m_entityId = in.readInt();
+		m_hash = in.readUTF();
+	}
+	
+	@Override
+	public void onPacketReceived( EntityPlayer player )
+	{
+		// get the ship
+		EntityShip ship = ShipLocator.getShip( player.worldObj, m_entityId );
+		if( ship == null || ship.getShipWorld() != null )
+		{
+			return;
+		}
+		
+		// do we have the blocks already?
+		byte[] shipData = Ships.m_shipBlocksCache.get( m_hash );
+		if( shipData != null )
+		{
+			try
+			{
+				ship.setShipWorld( ShipWorldPersistence.readAnyVersion( ship.worldObj, shipData, true ) );
+				return;
+			}
+			catch( PersistenceException ex )
+			{
+				Ships.logger.warning( ex, "Unable to read cached ship! Asking the server for the blocks instead." );
+			}
+		}
+		
+		// nope, ask the server for them
+		PacketDispatcher.sendPacketToServer( new PacketRequestShipBlocks( m_entityId, true ).getCustomPacket() );
+	}
+}
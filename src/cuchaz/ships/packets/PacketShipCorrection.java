@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import net.minecraft.entity.player.EntityPlayer;
+import cuchaz.ships.EntityShip;
+import cuchaz.ships.ShipLocator;
+
+public class PacketShipCorrection extends Packet
+{
+	public static final String Channel = "shipCorrection";
+	
+	private int m_entityId;
+	private double m_x;
+	private double m_y;
+	private double m_z;
+	private float m_yaw;
+	private float m_motionX;
+	private float m_motionY;
+	private float m_motionZ;
+	private float m_motionYaw;
+	
+	public PacketShipCorrection( )
+	{
+		super( Channel );
+	}
+	
+	public PacketShipCorrection( EntityShip ship )
+	{
+		this();
+		
+		m_entityId = ship.entityId;
+		m_x = ship.posX;
+		m_y = ship.posY;
+		m_z = ship.posZ;
+		m_yaw = ship.rotationYaw;
+		m_motionX = (float)ship.motionX;
+		m_motionY = (float)ship.motionY;
+		m_motionZ = (float)ship.motionZ;
+		m_motionYaw = ship.motionYaw;
+	}
+	
+	@Override
+	public void writeData( DataOutputStream out ) throws IOException
+	{
+		out.writeInt( m_entityId );
+		out.writeDouble( m_x );
+		out.writeDouble( m_y );
+		out.writeDouble( m_z );
+		out.writeFloat( m_yaw );
+		out.writeFloat( m_motionX );
+		out.writeFloat( m_motionY );
+		out.writeFloat( m_motionZ );
+		out.writeFloat( m_motionYaw );
+	}
+	
+	@Override
+	public void readData( DataInputStream in ) throws IOException
+	{
+		m_entityId = in.readInt();
+		m_x = in.readDouble();
+		m_y = in.readDouble();
+		m_z = in.readDouble();
+		m_yaw = in.readFloat();
+		m_motionX = in.readFloat();
+		m_motionY = in.readFloat();
+		m_motionZ = in.readFloat();
+		m_motionYaw = in.readFloat();
+	}
+	
+	@Override
+	public void onPacketReceived( EntityPlayer player )
+	{
+		// get the ship
+		EntityShip ship = ShipLocator.getShip( player.worldObj, m_entityId );
+		if( ship == null )
+		{
+			return;
+		}
+		
+		ship.onCorrectionFromServer( m_x, m_y, m_z, m_yaw, m_motionX, m_motionY, m_motionZ, m_motionYaw );
+	}
+}
@@ -51,7 +51,7 @@ public class PacketShipLaunched extends Packet
 		this();
 		
 		m_entityId = ship.entityId;
-		m_shipData = ShipWorldPersistence.writeNewestVersion( ship.getShipWorld(), true );
+		m_shipData = ship.getShipWorld().getClientData();
 		m_launchX = shipBlock.x;
 		m_launchY = shipBlock.y;
 		m_launchZ = shipBlock.z;
@@ -72,8 +72,8 @@ public class PacketShipLaunched extends Packet
 	public void readData( DataInputStream in ) throws IOException
 	{
 		m_entityId = in.readInt();
-		m_shipData = new byte[Math.min( in.readInt(), MaxPacketSize )];
-		in.read( m_shipData );
+		m_shipData = new byte[in.readInt()];
+		in.readFully( m_shipData );
 		m_launchX = in.readInt();
 		m_launchY = in.readInt();
 		m_launchZ = in.readInt();
@@ -102,6 +102,7 @@ public class PacketShipLaunched extends Packet
 		{
 			ShipWorld shipWorld = ShipWorldPersistence.readAnyVersion( ship.worldObj, m_shipData, true );
 			ShipLauncher.initShip( ship, shipWorld, new Coords( m_launchX, m_launchY, m_launchZ ) );
+			Ships.m_shipBlocksCache.put( m_shipData );
 		}
 		catch( PersistenceException ex )
 		{
@@ -15,6 +15,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import net.minecraft.block.Block;
 import cuchaz.modsShared.blocks.BlockArray;
 import cuchaz.modsShared.blocks.BlockSide;
 import cuchaz.modsShared.blocks.Coords;
@@ -106,6 +107,24 @@ public class Propulsion
 		}
 	}
 	
+	public static boolean isAffectedByBlockChange( BlocksStorage blocksStorage, Coords coords, Block oldBlock, Block newBlock )
+	{
+		// the helm decides which way is forward
+		if( isHelm( oldBlock ) || isHelm( newBlock ) )
+		{
+			return true;
+		}
+		
+		for( PropulsionDiscoverer discoverer : PropulsionDiscovererRegistry.discoverers() )
+		{
+			if( discoverer.isAffectedByBlockChange( blocksStorage, coords, oldBlock, newBlock ) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	public BlockSide getFrontSide( )
 	{
 		return m_frontSide;
@@ -176,4 +195,9 @@ public class Propulsion
 		}
 		return null;
 	}
+	
+	private static boolean isHelm( Block block )
+	{
+		return block != null && block.blockID == Ships.m_blockHelm.blockID;
+	}
 }
@@ -12,10 +12,14 @@ package cuchaz.ships.propulsion;
 
 import java.util.List;
 
+import net.minecraft.block.Block;
 import cuchaz.modsShared.blocks.BlockSide;
+import cuchaz.modsShared.blocks.Coords;
 import cuchaz.ships.BlocksStorage;
 
 public interface PropulsionDiscoverer
 {
 	public List<PropulsionMethod> getPropulsionMethods( BlocksStorage blocksStorage, BlockSide frontDirection );
+	
+	public boolean isAffectedByBlockChange( BlocksStorage blocksStorage, Coords coords, Block oldBlock, Block newBlock );
 }
@@ -49,4 +49,30 @@ public class SailDiscoverer implements PropulsionDiscoverer
 		}
 		return sails;
 	}
+	
+	@Override
+	public boolean isAffectedByBlockChange( BlocksStorage shipBlocks, Coords coords, Block oldBlock, Block newBlock )
+	{
+		if( isCloth( oldBlock ) || isCloth( newBlock ) )
+		{
+			return true;
+		}
+		
+		// sails only push with their exposed blocks, so blocks next to a sail matter too
+		Coords neighborCoords = new Coords();
+		for( BlockSide side : BlockSide.values() )
+		{
+			neighborCoords.set( coords.x + side.getDx(), coords.y + side.getDy(), coords.z + side.getDz() );
+			if( shipBlocks.getBlock( neighborCoords ).id == Block.cloth.blockID )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean isCloth( Block block )
+	{
+		return block != null && block.blockID == Block.cloth.blockID;
+	}
 }
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.minecraft.network.packet.Packet250CustomPayload;
+
+import org.junit.Test;
+
+import cuchaz.ships.packets.PacketChangedBlocks;
+
+public class TestChangedBlocksEncoding
+{
+	// NOTE: the old encoding was an int header, an int count, and 9 bytes per block
+	
+	private static final int[] BlockIds = { 5, 35, 20, 0 };
+	
+	@Test
+	public void roundTrip( ) throws IOException
+	{
+		// use negative coords too, ships are centered on the origin
+		PacketChangedBlocks packet = makePacket( 500, -20, 20 );
+		PacketChangedBlocks copy = readPacket( packet );
+		assertEquals( packet.getNumChangedBlocks(), copy.getNumChangedBlocks() );
+		assertArrayEquals( packet.getPayload(), copy.getPayload() );
+		
+		// the blocks come back grouped by section, so compare them in sorted order
+		assertEquals( getSortedBlocks( packet ), getSortedBlocks( copy ) );
+	}
+	
+	@Test( expected = IOException.class )
+	public void tooFewBlocks( ) throws IOException
+	{
+		// claim one more block than the sections hold
+		readPacket( setNumChangedBlocks( makePacket( 500, -20, 20 ), 501 ) );
+	}
+	
+	@Test( expected = IOException.class )
+	public void tooManyBlocks( ) throws IOException
+	{
+		// claim one less block than the sections hold
+		readPacket( setNumChangedBlocks( makePacket( 500, -20, 20 ), 499 ) );
+	}
+	
+	@Test
+	public void bytesSaved( )
+	{
+		for( int numBlocks : new int[] { 10, 100, 1000, 5000 } )
+		{
+			PacketChangedBlocks packet = makePacket( numBlocks, -8, 24 );
+			int oldSize = getOldSize( numBlocks );
+			int newSize = packet.getPayload().length;
+			assertTrue( newSize < oldSize );
+			
+			System.out.println( String.format( "%5d changed blocks: %6d bytes -> %6d bytes, saved %6d bytes (%.0f%%)",
+				numBlocks, oldSize, newSize, oldSize - newSize,
+				100.0*( oldSize - newSize )/oldSize
+			) );
+		}
+	}
+	
+	private PacketChangedBlocks makePacket( int numBlocks, int min, int max )
+	{
+		// pick random blocks from a small palette, like a player building or a door opening
+		Random random = new Random( 12345 );
+		int range = max - min;
+		int[] x = new int[numBlocks];
+		int[] y = new int[numBlocks];
+		int[] z = new int[numBlocks];
+		int[] blockId = new int[numBlocks];
+		int[] meta = new int[numBlocks];
+		for( int i=0; i<numBlocks; i++ )
+		{
+			x[i] = min + random.nextInt( range );
+			y[i] = min + random.nextInt( range );
+			z[i] = min + random.nextInt( range );
+			blockId[i] = BlockIds[random.nextInt( BlockIds.length )];
+			meta[i] = random.nextInt( 4 );
+		}
+		return new PacketChangedBlocks( 42, x, y, z, blockId, meta );
+	}
+	
+	private PacketChangedBlocks readPacket( PacketChangedBlocks packet ) throws IOException
+	{
+		return readPacket( packet.getCustomPacket() );
+	}
+	
+	private PacketChangedBlocks readPacket( Packet250CustomPayload customPacket ) throws IOException
+	{
+		PacketChangedBlocks copy = new PacketChangedBlocks();
+		copy.readCustomPacket( customPacket );
+		return copy;
+	}
+	
+	private Packet250CustomPayload setNumChangedBlocks( PacketChangedBlocks packet, int numChangedBlocks )
+	{
+		// the count is a two-byte varint right after the entity id
+		Packet250CustomPayload customPacket = packet.getCustomPacket();
+		customPacket.data[4] = (byte)( ( numChangedBlocks & 0x7f ) | 0x80 );
+		customPacket.data[5] = (byte)( numChangedBlocks >>> 7 );
+		return customPacket;
+	}
+	
+	private List<String> getSortedBlocks( PacketChangedBlocks packet )
+	{
+		List<String> blocks = new ArrayList<String>();
+		for( int i=0; i<packet.getNumChangedBlocks(); i++ )
+		{
+			blocks.add( String.format( "%d,%d,%d %d:%d",
+				packet.getX( i ), packet.getY( i ), packet.getZ( i ),
+				packet.getBlockId( i ), packet.getMeta( i )
+			) );
+		}
+		Collections.sort( blocks );
+		return blocks;
+	}
+	
+	private int getOldSize( int numBlocks )
+	{
+		return 4 + 4 + numBlocks*( 2 + 2 + 2 + 2 + 1 );
+	}
+}
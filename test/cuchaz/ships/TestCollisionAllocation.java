@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.minecraft.util.AxisAlignedBB;
+import net.minecraft.util.Vec3;
+
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import cuchaz.modsShared.blocks.BlockSet;
+import cuchaz.modsShared.blocks.Coords;
+
+public class TestCollisionAllocation
+{
+	private static final int ShipSize = 16;
+	private static final int NumWarmupMoves = 10000;
+	private static final int NumMoves = 10000;
+	
+	@Test
+	public void offsetsMatchAxisAlignedBB( )
+	{
+		Random rand = new Random( 12345 );
+		for( int i=0; i<1000; i++ )
+		{
+			// make a bunch of random obstacles
+			List<AxisAlignedBB> boxes = new ArrayList<AxisAlignedBB>();
+			CollisionBoxList boxList = new CollisionBoxList();
+			int numBoxes = rand.nextInt( 100 );
+			for( int j=0; j<numBoxes; j++ )
+			{
+				AxisAlignedBB box = getRandomBox( rand );
+				boxes.add( box );
+				boxList.add( 0, 0, 0, box );
+			}
+			
+			// move a random box through them
+			AxisAlignedBB box = getRandomBox( rand );
+			double dx = rand.nextDouble()*4 - 2;
+			double dy = rand.nextDouble()*4 - 2;
+			double dz = rand.nextDouble()*4 - 2;
+			
+			double expectedDx = dx;
+			double expectedDy = dy;
+			double expectedDz = dz;
+			for( AxisAlignedBB obstacle : boxes )
+			{
+				expectedDx = obstacle.calculateXOffset( box, expectedDx );
+				expectedDy = obstacle.calculateYOffset( box, expectedDy );
+				expectedDz = obstacle.calculateZOffset( box, expectedDz );
+			}
+			
+			assertEquals( expectedDx, boxList.calculateXOffset( box, dx ), 0 );
+			assertEquals( expectedDy, boxList.calculateYOffset( box, dy ), 0 );
+			assertEquals( expectedDz, boxList.calculateZOffset( box, dz ), 0 );
+		}
+	}
+	
+	@Test
+	public void collisionPathDoesNotAllocate( )
+	{
+		ThreadMXBean threadBean = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+		assertTrue( threadBean.isThreadAllocatedMemorySupported() );
+		threadBean.setThreadAllocatedMemoryEnabled( true );
+		long threadId = Thread.currentThread().getId();
+		
+		// build a ship with a deck and some walls
+		BlockSet blocks = new BlockSet();
+		for( int x=0; x<ShipSize; x++ )
+		{
+			for( int z=0; z<ShipSize; z++ )
+			{
+				blocks.add( new Coords( x, 0, z ) );
+				if( x == 0 || z == 0 || x == ShipSize - 1 || z == ShipSize - 1 )
+				{
+					blocks.add( new Coords( x, 1, z ) );
+					blocks.add( new Coords( x, 2, z ) );
+				}
+			}
+		}
+		ShipGeometry geometry = new ShipGeometry( blocks );
+		
+		// use full blocks for collision boxes, since there's no world to ask for them
+		CollisionBoxCache collisionBoxes = new CollisionBoxCache( null )
+		{
+			@Override
+			protected double[] computeBoxes( int x, int y, int z )
+			{
+				return new double[] { x, y, z, x + 1, y + 1, z + 1 };
+			}
+		};
+		
+		// NOTE: the collider doesn't need a ship for the block space part of the collision path
+		ShipCollider collider = new ShipCollider( null );
+		CollisionBoxList boxList = new CollisionBoxList();
+		AxisAlignedBB entityBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		AxisAlignedBB newEntityBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		
+		// warm up so the buffers reach their full size, the box cache fills up, and the JIT settles down
+		Random rand = new Random( 12345 );
+		double sum = 0;
+		for( int i=0; i<NumWarmupMoves; i++ )
+		{
+			sum += moveEntity( rand, collider, geometry, collisionBoxes, boxList, entityBox, newEntityBox );
+		}
+		
+		// measure how much the measurement itself allocates
+		long overhead = -threadBean.getThreadAllocatedBytes( threadId );
+		overhead += threadBean.getThreadAllocatedBytes( threadId );
+		
+		long allocatedBytes = -threadBean.getThreadAllocatedBytes( threadId );
+		for( int i=0; i<NumMoves; i++ )
+		{
+			sum += moveEntity( rand, collider, geometry, collisionBoxes, boxList, entityBox, newEntityBox );
+		}
+		allocatedBytes += threadBean.getThreadAllocatedBytes( threadId );
+		
+		System.out.println( String.format( "Allocated %d bytes for %d moves (checksum %.2f)", allocatedBytes - overhead, NumMoves, sum ) );
+		assertEquals( 0, allocatedBytes - overhead );
+	}
+	
+	private double moveEntity( Random rand, ShipCollider collider, ShipGeometry geometry, CollisionBoxCache collisionBoxes, CollisionBoxList boxList, AxisAlignedBB entityBox, AxisAlignedBB newEntityBox )
+	{
+		// put a player-sized box somewhere on the deck
+		double x = rand.nextDouble()*ShipSize;
+		double y = 1 + rand.nextDouble()*2;
+		double z = rand.nextDouble()*ShipSize;
+		entityBox.setBounds( x - 0.3, y, z - 0.3, x + 0.3, y + 1.8, z + 0.3 );
+		double dx = rand.nextDouble() - 0.5;
+		double dy = rand.nextDouble() - 0.5;
+		double dz = rand.nextDouble() - 0.5;
+		newEntityBox.setBounds(
+			entityBox.minX + dx, entityBox.minY + dy, entityBox.minZ + dz,
+			entityBox.maxX + dx, entityBox.maxY + dy, entityBox.maxZ + dz
+		);
+		
+		// this is the block space part of ShipCollider.onNearbyEntityMoved()
+		collider.trajectoryQuery( boxList, geometry, collisionBoxes, entityBox, newEntityBox );
+		if( boxList.isEmpty() )
+		{
+			return 0;
+		}
+		Vec3 delta = collider.collideInBlockSpace( boxList, geometry, collisionBoxes, entityBox, newEntityBox, dx, dy, dz, dx, dy, dz, 0.5f );
+		return delta.xCoord + delta.yCoord + delta.zCoord;
+	}
+	
+	private AxisAlignedBB getRandomBox( Random rand )
+	{
+		double x = rand.nextDouble()*10;
+		double y = rand.nextDouble()*10;
+		double z = rand.nextDouble()*10;
+		return AxisAlignedBB.getBoundingBox(
+			x, y, z,
+			x + rand.nextDouble()*2, y + rand.nextDouble()*2, z + rand.nextDouble()*2
+		);
+	}
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import net.minecraft.util.AxisAlignedBB;
+import net.minecraft.util.MathHelper;
+
+import org.junit.Test;
+
+import cuchaz.modsShared.blocks.BlockSet;
+import cuchaz.modsShared.blocks.Coords;
+
+public class TestCollisionQuerySpeed
+{
+	// NOTE: this compares the old isColliding() loop over every block to the range query in ShipCollider.isColliding()
+	
+	private static final int NumQueries = 20000;
+	private static final float[] Yaws = { 0, 30, 90, 135, 200, 333 };
+	
+	// put the ship somewhere away from the origin, with its blocks centered on the ship position
+	private static final double ShipX = 103.3;
+	private static final double ShipY = 64.0;
+	private static final double ShipZ = -57.6;
+	
+	@Test
+	public void isColliding( )
+	{
+		for( int numBlocks : new int[] { 100, 1000, 10000 } )
+		{
+			benchmark( numBlocks );
+		}
+	}
+	
+	@Test
+	public void isCollidingWithYaw( )
+	{
+		for( float yaw : Yaws )
+		{
+			Random rand = new Random( 12345 );
+			int size = 10;
+			BlockSet blocks = getShip( 500, size );
+			ShipGeometry geometry = new ShipGeometry( blocks );
+			ShipCollider collider = new ShipCollider( null );
+			AxisAlignedBB blockBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+			for( AxisAlignedBB box : getQueryBoxes( rand, size ) )
+			{
+				assertEquals(
+					isCollidingLinear( blocks, blockBox, box, yaw, size ),
+					isCollidingRangeQuery( collider, geometry, box, yaw, size )
+				);
+			}
+		}
+	}
+	
+	private void benchmark( int numBlocks )
+	{
+		Random rand = new Random( 12345 );
+		
+		// stack square layers of blocks
+		int size = (int)Math.ceil( Math.sqrt( numBlocks ) );
+		BlockSet blocks = getShip( numBlocks, size );
+		ShipGeometry geometry = new ShipGeometry( blocks );
+		ShipCollider collider = new ShipCollider( null );
+		AxisAlignedBB blockBox = AxisAlignedBB.getBoundingBox( 0, 0, 0, 0, 0, 0 );
+		AxisAlignedBB[] boxes = getQueryBoxes( rand, size );
+		float yaw = 30;
+		
+		// warm up the JIT, and make sure both approaches agree
+		for( int i=0; i<NumQueries; i++ )
+		{
+			assertEquals(
+				isCollidingLinear( blocks, blockBox, boxes[i], yaw, size ),
+				isCollidingRangeQuery( collider, geometry, boxes[i], yaw, size )
+			);
+		}
+		
+		long linearTime = System.nanoTime();
+		int numLinearHits = 0;
+		for( int i=0; i<NumQueries; i++ )
+		{
+			if( isCollidingLinear( blocks, blockBox, boxes[i], yaw, size ) )
+			{
+				numLinearHits++;
+			}
+		}
+		linearTime = System.nanoTime() - linearTime;
+		
+		long rangeQueryTime = System.nanoTime();
+		int numRangeQueryHits = 0;
+		for( int i=0; i<NumQueries; i++ )
+		{
+			if( isCollidingRangeQuery( collider, geometry, boxes[i], yaw, size ) )
+			{
+				numRangeQueryHits++;
+			}
+		}
+		rangeQueryTime = System.nanoTime() - rangeQueryTime;
+		
+		assertEquals( numLinearHits, numRangeQueryHits );
+		System.out.println( String.format( "%5d blocks: linear %8.0f ns/query, range query %5.0f ns/query, %.1fx",
+			numBlocks,
+			(double)linearTime/NumQueries,
+			(double)rangeQueryTime/NumQueries,
+			(double)linearTime/rangeQueryTime
+		) );
+	}
+	
+	private BlockSet getShip( int numBlocks, int size )
+	{
+		BlockSet blocks = new BlockSet();
+		for( int i=0; i<numBlocks; i++ )
+		{
+			blocks.add( new Coords( i%size, i/size/size, ( i/size )%size ) );
+		}
+		return blocks;
+	}
+	
+	private AxisAlignedBB[] getQueryBoxes( Random rand, int size )
+	{
+		// make item-sized query boxes in and around the ship, which can be turned any which way
+		double radius = size*0.75 + 2;
+		AxisAlignedBB[] boxes = new AxisAlignedBB[NumQueries];
+		for( int i=0; i<NumQueries; i++ )
+		{
+			double x = ShipX + rand.nextDouble()*radius*2 - radius;
+			double y = ShipY + rand.nextDouble()*( size + 4 ) - size/2 - 2;
+			double z = ShipZ + rand.nextDouble()*radius*2 - radius;
+			boxes[i] = AxisAlignedBB.getBoundingBox( x, y, z, x + 0.25, y + 0.25, z + 0.25 );
+		}
+		return boxes;
+	}
+	
+	private boolean isCollidingLinear( BlockSet blocks, AxisAlignedBB blockBox, AxisAlignedBB box, float yaw, int size )
+	{
+		// this matches ShipCollider.getBlockWorldBoundingBox()
+		float yawRad = (float)Math.toRadians( yaw );
+		double halfSize = Math.max(
+			Math.abs( MathHelper.cos( yawRad ) - MathHelper.sin( yawRad ) ),
+			Math.abs( MathHelper.sin( yawRad ) + MathHelper.cos( yawRad ) )
+		)/2;
+		double cos = Math.cos( Math.toRadians( yaw ) );
+		double sin = Math.sin( Math.toRadians( yaw ) );
+		double shipBlock = -size/2;
+		for( Coords coords : blocks )
+		{
+			double x = coords.x + 0.5 + shipBlock;
+			double y = coords.y + 0.5 + shipBlock + ShipY;
+			double z = coords.z + 0.5 + shipBlock;
+			double worldX = x*cos + z*sin + ShipX;
+			double worldZ = -x*sin + z*cos + ShipZ;
+			blockBox.setBounds(
+				worldX - halfSize, y - 0.5, worldZ - halfSize,
+				worldX + halfSize, y + 0.5, worldZ + halfSize
+			);
+			if( blockBox.intersectsWith( box ) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean isCollidingRangeQuery( ShipCollider collider, ShipGeometry geometry, AxisAlignedBB box, float yaw, int size )
+	{
+		double shipBlock = -size/2;
+		return collider.isColliding( box, geometry, ShipX, ShipY, ShipZ, yaw, shipBlock, shipBlock, shipBlock );
+	}
+}
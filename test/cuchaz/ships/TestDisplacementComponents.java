@@ -80,7 +80,8 @@ public class TestDisplacementComponents
 		for( int y=minY; y<=maxY+1; y++ )
 		{
 			int waterHeight = y + 1;
-			BlockSet trappedAir = displacement.getTrappedAirFromWaterHeight( waterHeight );
+			BlockSet trappedAir = new BlockSet();
+			trappedAir.addAll( displacement.getTrappedAirFromWaterHeight( waterHeight ) );
 			
 			for( Coords coords : trappedAir )
 			{
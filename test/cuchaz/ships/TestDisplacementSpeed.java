@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import cuchaz.modsShared.blocks.BlockSet;
+import cuchaz.modsShared.blocks.Coords;
+
+public class TestDisplacementSpeed
+{
+	// NOTE: the ships are open hulls, so every level has trapped air to find and the top level releases all of it
+	
+	private static final int HullHeight = 8;
+	
+	@Test
+	public void hulls( )
+	{
+		// warm up the JIT
+		benchmark( 1000, false );
+		
+		for( int numBlocks : new int[] { 1000, 10000, 50000 } )
+		{
+			benchmark( numBlocks, true );
+		}
+	}
+	
+	private void benchmark( int numBlocks, boolean report )
+	{
+		// find the smallest hull with enough blocks
+		int length = 3;
+		while( getNumHullBlocks( length, length/2 ) < numBlocks )
+		{
+			length++;
+		}
+		int width = length/2;
+		BlockSet blocks = new BlockSet();
+		for( int x=0; x<length; x++ )
+		{
+			for( int z=0; z<width; z++ )
+			{
+				blocks.add( new Coords( x, 0, z ) );
+				if( x == 0 || x == length - 1 || z == 0 || z == width - 1 )
+				{
+					for( int y=1; y<HullHeight; y++ )
+					{
+						blocks.add( new Coords( x, y, z ) );
+					}
+				}
+			}
+		}
+		
+		long time = System.nanoTime();
+		ShipDisplacement displacement = new ShipDisplacement( blocks );
+		time = System.nanoTime() - time;
+		
+		// all the air inside the hull is trapped until the water goes over the top
+		int numInsideBlocks = ( length - 2 )*( width - 2 )*( HullHeight - 1 );
+		assertEquals( numInsideBlocks, displacement.getTrappedAir( HullHeight - 1 ).size() );
+		assertEquals( numInsideBlocks, displacement.getNumFillableBlocks( HullHeight - 1 ) );
+		assertEquals( 0, displacement.getTrappedAir( HullHeight ).size() );
+		
+		if( report )
+		{
+			System.out.println( String.format( "%5d blocks (%dx%dx%d): %6.1f ms",
+				blocks.size(), length, HullHeight, width,
+				time/1000000.0
+			) );
+		}
+	}
+	
+	private int getNumHullBlocks( int length, int width )
+	{
+		return length*width + ( length*2 + width*2 - 4 )*( HullHeight - 1 );
+	}
+}
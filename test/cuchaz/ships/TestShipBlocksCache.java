@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShipBlocksCache
+{
+	private File m_dir;
+	
+	@Before
+	public void makeDir( )
+	throws IOException
+	{
+		m_dir = File.createTempFile( "shipsCache", "" );
+		m_dir.delete();
+	}
+	
+	@After
+	public void deleteDir( )
+	{
+		File[] files = m_dir.listFiles();
+		if( files != null )
+		{
+			for( File file : files )
+			{
+				file.delete();
+			}
+		}
+		m_dir.delete();
+	}
+	
+	@Test
+	public void hitAndMiss( )
+	{
+		ShipBlocksCache cache = new ShipBlocksCache( m_dir, 1024 );
+		byte[] data = makeData( 100, 1 );
+		String hash = ShipBlocksCache.getHash( data );
+		assertEquals( 40, hash.length() );
+		assertNull( cache.get( hash ) );
+		
+		cache.put( data );
+		assertArrayEquals( data, cache.get( hash ) );
+		assertNull( cache.get( ShipBlocksCache.getHash( makeData( 100, 2 ) ) ) );
+	}
+	
+	@Test
+	public void badHash( )
+	{
+		ShipBlocksCache cache = new ShipBlocksCache( m_dir, 1024 );
+		assertNull( cache.get( "../../options" ) );
+	}
+	
+	@Test
+	public void evictLeastRecentlyUsed( )
+	{
+		ShipBlocksCache cache = new ShipBlocksCache( m_dir, 250 );
+		byte[] a = makeData( 100, 1 );
+		byte[] b = makeData( 100, 2 );
+		byte[] c = makeData( 100, 3 );
+		cache.put( a );
+		new File( m_dir, ShipBlocksCache.getHash( a ) + ".ship" ).setLastModified( 1000000000000L );
+		cache.put( b );
+		new File( m_dir, ShipBlocksCache.getHash( b ) + ".ship" ).setLastModified( 1100000000000L );
+		
+		// reading a makes it newer than b
+		assertArrayEquals( a, cache.get( ShipBlocksCache.getHash( a ) ) );
+		
+		// there's only room for two, so b gets evicted
+		cache.put( c );
+		assertArrayEquals( a, cache.get( ShipBlocksCache.getHash( a ) ) );
+		assertNull( cache.get( ShipBlocksCache.getHash( b ) ) );
+		assertArrayEquals( c, cache.get( ShipBlocksCache.getHash( c ) ) );
+	}
+	
+	private byte[] makeData( int size, int seed )
+	{
+		byte[] data = new byte[size];
+		for( int i=0; i<size; i++ )
+		{
+			data[i] = (byte)( i*seed );
+		}
+		return data;
+	}
+}
@@ -0,0 +1,422 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.minecraft.util.AxisAlignedBB;
+
+import org.junit.Test;
+
+import cuchaz.modsShared.blocks.BlockSet;
+import cuchaz.modsShared.blocks.BlockSide;
+import cuchaz.modsShared.blocks.Coords;
+
+public class TestShipCollisionShell
+{
+	private static final int ShipSize = 8;
+	private static final int NumShips = 20;
+	private static final int NumMoves = 50;
+	private static final int NumTreeShips = 4;
+	private static final int NumTreeMoves = 10;
+	private static final float[] RelativeYaws = { 0, 30, 45, 90, 135, 180, 250, 270 };
+	
+	@Test
+	public void solidCube( )
+	{
+		ShipGeometry geometry = new ShipGeometry( getCube( 3 ) );
+		
+		// only the center block is hidden
+		BlockSet allSides = geometry.getShell( ( 1 << BlockSide.values().length ) - 1 );
+		assertEquals( 26, allSides.size() );
+		assertTrue( !allSides.contains( new Coords( 1, 1, 1 ) ) );
+		
+		// moving along one axis only needs one face
+		assertEquals( 9, geometry.getCollisionShell( 0.5, 0, 0, 0 ).size() );
+		assertEquals( 9, geometry.getCollisionShell( 0, -0.5, 0, 0 ).size() );
+		
+		// moving diagonally needs the faces on every leading side
+		assertEquals( 19, geometry.getCollisionShell( 0.5, 0.5, 0.5, 0 ).size() );
+		
+		// rotating needs all the xz faces
+		assertEquals( 24, geometry.getCollisionShell( 0, 0, 0, 1 ).size() );
+		
+		// not moving needs nothing
+		assertEquals( 0, geometry.getCollisionShell( 0, 0, 0, 0 ).size() );
+	}
+	
+	@Test
+	public void shellMatchesAllBlocks( )
+	{
+		Random rand = new Random( 12345 );
+		for( int i=0; i<NumShips; i++ )
+		{
+			BlockSet blocks = getRandomShip( rand );
+			ShipGeometry geometry = new ShipGeometry( blocks );
+			
+			for( int j=0; j<NumMoves; j++ )
+			{
+				// pick a random move smaller than one block
+				double dx = rand.nextDouble()*2 - 1;
+				double dy = rand.nextDouble()*2 - 1;
+				double dz = rand.nextDouble()*2 - 1;
+				
+				// put a random obstacle somewhere next to the ship
+				Coords obstacle = getRandomObstacle( rand, blocks );
+				
+				double expectedScaling = getScaling( blocks, obstacle, dx, dy, dz );
+				double observedScaling = getScaling( geometry.getCollisionShell( dx, dy, dz, 0 ), obstacle, dx, dy, dz );
+				assertEquals( expectedScaling, observedScaling, 0 );
+			}
+		}
+	}
+	
+	@Test
+	public void solidCubeWithYaw( )
+	{
+		ShipGeometry geometry = new ShipGeometry( getCube( 3 ) );
+		
+		// turned around, moving forward in world space leads with the back of the ship
+		BlockSet shell = geometry.getCollisionShell( 0.5, 0, 0, 180, 0 );
+		for( Coords coords : getCube( 3 ) )
+		{
+			if( coords.x == 0 )
+			{
+				assertTrue( shell.contains( coords ) );
+			}
+			else if( coords.x == 2 )
+			{
+				assertTrue( !shell.contains( coords ) );
+			}
+		}
+		
+		// a quarter turn leads with the side of the ship
+		shell = geometry.getCollisionShell( 0.5, 0, 0, 90, 0 );
+		for( Coords coords : getCube( 3 ) )
+		{
+			if( coords.z == 2 )
+			{
+				assertTrue( shell.contains( coords ) );
+			}
+			else if( coords.z == 0 )
+			{
+				assertTrue( !shell.contains( coords ) );
+			}
+		}
+	}
+	
+	@Test
+	public void shellMatchesAllBlocksWithYaw( )
+	{
+		// NOTE: with quarter turns, the ship blocks stay on the world grid, so the shell is exact
+		Random rand = new Random( 12345 );
+		for( int i=0; i<NumShips; i++ )
+		{
+			BlockSet blocks = getRandomShip( rand );
+			ShipGeometry geometry = new ShipGeometry( blocks );
+			
+			for( int j=0; j<NumMoves; j++ )
+			{
+				float yaw = 90*( rand.nextInt( 3 ) + 1 );
+				double dx = rand.nextDouble()*2 - 1;
+				double dy = rand.nextDouble()*2 - 1;
+				double dz = rand.nextDouble()*2 - 1;
+				
+				AxisAlignedBB obstacleBox = getWorldBox( getRandomObstacle( rand, blocks ), yaw );
+				
+				double expectedScaling = getScaling( blocks, yaw, obstacleBox, dx, dy, dz );
+				double observedScaling = getScaling( geometry.getCollisionShell( dx, dy, dz, yaw, 0 ), yaw, obstacleBox, dx, dy, dz );
+				assertEquals( expectedScaling, observedScaling, 1e-9 );
+			}
+		}
+	}
+	
+	@Test
+	public void shellMatchesAllBlocksShipVsShip( )
+	{
+		Random rand = new Random( 12345 );
+		for( int i=0; i<NumShips; i++ )
+		{
+			BlockSet blocks = getRandomShip( rand );
+			BlockSet otherBlocks = getRandomShip( rand );
+			ShipGeometry geometry = new ShipGeometry( blocks );
+			
+			// turn the ships relative to each other
+			float yaw = 90*rand.nextInt( 4 );
+			float otherYaw = yaw + 90*( rand.nextInt( 3 ) + 1 );
+			
+			// put the other ship right up against the +x side of this ship
+			double maxX = Double.NEGATIVE_INFINITY;
+			for( Coords coords : blocks )
+			{
+				maxX = Math.max( maxX, getWorldBox( coords, yaw ).maxX );
+			}
+			double otherMinX = Double.POSITIVE_INFINITY;
+			for( Coords coords : otherBlocks )
+			{
+				otherMinX = Math.min( otherMinX, getWorldBox( coords, otherYaw ).minX );
+			}
+			List<AxisAlignedBB> otherBoxes = new ArrayList<AxisAlignedBB>();
+			for( Coords coords : otherBlocks )
+			{
+				otherBoxes.add( getWorldBox( coords, otherYaw ).offset( maxX - otherMinX, 0, 0 ) );
+			}
+			
+			for( int j=0; j<NumMoves; j++ )
+			{
+				// move towards the other ship
+				double dx = rand.nextDouble();
+				double dy = rand.nextDouble()*2 - 1;
+				double dz = rand.nextDouble()*2 - 1;
+				
+				BlockSet shell = geometry.getCollisionShell( dx, dy, dz, yaw, 0 );
+				for( AxisAlignedBB otherBox : otherBoxes )
+				{
+					double expectedScaling = getScaling( blocks, yaw, otherBox, dx, dy, dz );
+					double observedScaling = getScaling( shell, yaw, otherBox, dx, dy, dz );
+					assertEquals( expectedScaling, observedScaling, 1e-9 );
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void boxTreeMatchesAllBlockPairs( )
+	{
+		// use full blocks for collision boxes, since there's no world to ask for them
+		CollisionBoxCache otherCollisionBoxes = new CollisionBoxCache( null )
+		{
+			@Override
+			protected double[] computeBoxes( int x, int y, int z )
+			{
+				return new double[] { x, y, z, x + 1, y + 1, z + 1 };
+			}
+		};
+		
+		// NOTE: the collider doesn't need a ship when it gets the transforms directly
+		ShipCollider collider = new ShipCollider( null );
+		ShipCollider.CollisionResult result = new ShipCollider.CollisionResult();
+		
+		Random rand = new Random( 12345 );
+		for( float yaw : RelativeYaws )
+		{
+			for( int i=0; i<NumTreeShips; i++ )
+			{
+				BlockSet blocks = getRandomShip( rand );
+				BlockSet otherBlocks = getRandomShip( rand );
+				ShipBoxTree tree = new ShipBoxTree( blocks );
+				ShipBoxTree otherTree = new ShipBoxTree( otherBlocks );
+				ShipGeometry geometry = new ShipGeometry( blocks );
+				
+				// put this ship right up against the -x side of the other ship
+				double[] transform = getTransform( 0, 0, 0, yaw );
+				double maxX = Double.NEGATIVE_INFINITY;
+				for( Coords coords : blocks )
+				{
+					maxX = Math.max( maxX, getTransformedBox( coords, transform ).maxX );
+				}
+				double x = -maxX;
+				double y = rand.nextDouble()*4 - 2;
+				double z = rand.nextDouble()*4 - 2;
+				transform = getTransform( x, y, z, yaw );
+				
+				for( int j=0; j<NumTreeMoves; j++ )
+				{
+					// move towards the other ship
+					double dx = rand.nextDouble();
+					double dy = rand.nextDouble()*2 - 1;
+					double dz = rand.nextDouble()*2 - 1;
+					float dYaw = rand.nextFloat()*10 - 5;
+					double[] nextTransform = getTransform( x + dx, y + dy, z + dz, yaw + dYaw );
+					
+					double expectedScaling = getScaling( blocks, otherBlocks, transform, nextTransform );
+					collider.checkShipCollision( result, blocks, tree, transform, nextTransform, otherTree, otherCollisionBoxes );
+					assertEquals( expectedScaling, result.scaling, 1e-9 );
+					
+					// with quarter turns and no rotation, the collision shell is exact too
+					if( yaw % 90 == 0 )
+					{
+						nextTransform = getTransform( x + dx, y + dy, z + dz, yaw );
+						expectedScaling = getScaling( blocks, otherBlocks, transform, nextTransform );
+						BlockSet shell = geometry.getCollisionShell( dx, dy, dz, yaw, 0 );
+						collider.checkShipCollision( result, shell, tree, transform, nextTransform, otherTree, otherCollisionBoxes );
+						assertEquals( expectedScaling, result.scaling, 1e-9 );
+					}
+				}
+			}
+		}
+	}
+	
+	private double getScaling( BlockSet blocks, BlockSet otherBlocks, double[] transform, double[] nextTransform )
+	{
+		// this mimics ShipCollider.checkShipCollision() without the box trees
+		double scaling = 1;
+		for( Coords coords : blocks )
+		{
+			AxisAlignedBB box = getTransformedBox( coords, transform );
+			AxisAlignedBB nextBox = getTransformedBox( coords, nextTransform );
+			AxisAlignedBB combinedBox = box.func_111270_a( nextBox );
+			double dx = nextBox.minX - box.minX;
+			double dy = nextBox.minY - box.minY;
+			double dz = nextBox.minZ - box.minZ;
+			for( Coords otherCoords : otherBlocks )
+			{
+				AxisAlignedBB otherBox = getBox( otherCoords );
+				if( combinedBox.intersectsWith( otherBox ) )
+				{
+					scaling = Math.min( scaling, ShipCollider.getScalingToAvoidCollision( box, dx, dy, dz, otherBox ) );
+				}
+			}
+		}
+		return scaling;
+	}
+	
+	private double[] getTransform( double x, double y, double z, float yaw )
+	{
+		// this matches the layout of ShipCollider.getBlocksToBlocksTransform(): the origin, then the x and z axes
+		double yawRad = Math.toRadians( yaw );
+		double cos = Math.cos( yawRad );
+		double sin = Math.sin( yawRad );
+		return new double[] {
+			x, y, z,
+			cos, 0, -sin,
+			sin, 0, cos
+		};
+	}
+	
+	private AxisAlignedBB getTransformedBox( Coords coords, double[] transform )
+	{
+		// this mimics ShipCollider.transformBox() for a block box
+		double x = transform[0] + ( coords.x + 0.5 )*transform[3] + ( coords.z + 0.5 )*transform[6];
+		double y = transform[1] + coords.y + 0.5;
+		double z = transform[2] + ( coords.x + 0.5 )*transform[5] + ( coords.z + 0.5 )*transform[8];
+		double extentX = Math.abs( transform[3] )*0.5 + Math.abs( transform[6] )*0.5;
+		double extentZ = Math.abs( transform[5] )*0.5 + Math.abs( transform[8] )*0.5;
+		return AxisAlignedBB.getBoundingBox(
+			x - extentX, y - 0.5, z - extentZ,
+			x + extentX, y + 0.5, z + extentZ
+		);
+	}
+	
+	private double getScaling( BlockSet blocks, float yaw, AxisAlignedBB obstacleBox, double dx, double dy, double dz )
+	{
+		// this mimics ShipCollider.checkBlockCollision() for a ship with a yaw
+		double scaling = 1;
+		for( Coords coords : blocks )
+		{
+			AxisAlignedBB box = getWorldBox( coords, yaw );
+			AxisAlignedBB combinedBox = box.func_111270_a( box.getOffsetBoundingBox( dx, dy, dz ) );
+			if( combinedBox.intersectsWith( obstacleBox ) )
+			{
+				scaling = Math.min( scaling, ShipCollider.getScalingToAvoidCollision( box, dx, dy, dz, obstacleBox ) );
+			}
+		}
+		return scaling;
+	}
+	
+	private AxisAlignedBB getWorldBox( Coords coords, float yaw )
+	{
+		// this mimics ShipCollider.getBlockBoundingBox() for a ship at the origin
+		double yawRad = Math.toRadians( yaw );
+		double cos = Math.cos( yawRad );
+		double sin = Math.sin( yawRad );
+		double x = coords.x + 0.5;
+		double y = coords.y + 0.5;
+		double z = coords.z + 0.5;
+		double worldX = x*cos + z*sin;
+		double worldZ = -x*sin + z*cos;
+		double halfSize = Math.max( Math.abs( cos - sin ), Math.abs( sin + cos ) )/2;
+		return AxisAlignedBB.getBoundingBox(
+			worldX - halfSize, y - 0.5, worldZ - halfSize,
+			worldX + halfSize, y + 0.5, worldZ + halfSize
+		);
+	}
+	
+	private double getScaling( BlockSet blocks, Coords obstacle, double dx, double dy, double dz )
+	{
+		// this mimics ShipCollider.checkBlockCollision() for a ship with no rotation
+		AxisAlignedBB obstacleBox = getBox( obstacle );
+		double scaling = 1;
+		for( Coords coords : blocks )
+		{
+			AxisAlignedBB box = getBox( coords );
+			AxisAlignedBB combinedBox = box.func_111270_a( box.getOffsetBoundingBox( dx, dy, dz ) );
+			if( combinedBox.intersectsWith( obstacleBox ) )
+			{
+				scaling = Math.min( scaling, ShipCollider.getScalingToAvoidCollision( box, dx, dy, dz, obstacleBox ) );
+			}
+		}
+		return scaling;
+	}
+	
+	private AxisAlignedBB getBox( Coords coords )
+	{
+		return AxisAlignedBB.getBoundingBox( coords.x, coords.y, coords.z, coords.x + 1, coords.y + 1, coords.z + 1 );
+	}
+	
+	private BlockSet getCube( int size )
+	{
+		BlockSet blocks = new BlockSet();
+		for( int x=0; x<size; x++ )
+		{
+			for( int y=0; y<size; y++ )
+			{
+				for( int z=0; z<size; z++ )
+				{
+					blocks.add( new Coords( x, y, z ) );
+				}
+			}
+		}
+		return blocks;
+	}
+	
+	private BlockSet getRandomShip( Random rand )
+	{
+		// mostly-solid blobs have plenty of hidden blocks and some pockets
+		BlockSet blocks = new BlockSet();
+		for( int x=0; x<ShipSize; x++ )
+		{
+			for( int y=0; y<ShipSize; y++ )
+			{
+				for( int z=0; z<ShipSize; z++ )
+				{
+					if( rand.nextDouble() < 0.8 )
+					{
+						blocks.add( new Coords( x, y, z ) );
+					}
+				}
+			}
+		}
+		return blocks;
+	}
+	
+	private Coords getRandomObstacle( Random rand, BlockSet blocks )
+	{
+		// obstacles can't be inside the ship
+		while( true )
+		{
+			Coords coords = new Coords(
+				rand.nextInt( ShipSize + 2 ) - 1,
+				rand.nextInt( ShipSize + 2 ) - 1,
+				rand.nextInt( ShipSize + 2 ) - 1
+			);
+			if( !blocks.contains( coords ) )
+			{
+				return coords;
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import net.minecraft.util.AxisAlignedBB;
+import net.minecraft.util.Vec3;
+
+import org.junit.Test;
+
+import cuchaz.modsShared.blocks.BlockSet;
+import cuchaz.modsShared.blocks.BlockSide;
+import cuchaz.modsShared.blocks.Coords;
+import cuchaz.modsShared.math.BoxCorner;
+import cuchaz.modsShared.math.RotatedBB;
+
+public class TestShipGeometryQueries
+{
+	private static final int ShipSize = 12;
+	private static final int NumQueries = 500;
+	
+	@Test
+	public void xzRangeQueryMatchesBruteForce( )
+	{
+		Random rand = new Random( 12345 );
+		
+		// make a random ship
+		BlockSet blocks = new BlockSet();
+		for( int x=0; x<ShipSize; x++ )
+		{
+			for( int z=0; z<ShipSize; z++ )
+			{
+				if( rand.nextDouble() < 0.7 )
+				{
+					blocks.add( new Coords( x, 0, z ) );
+				}
+			}
+		}
+		ShipGeometry geometry = new ShipGeometry( blocks );
+		
+		for( int i=0; i<NumQueries; i++ )
+		{
+			// make a random rotated box over the ship
+			double x = rand.nextDouble()*ShipSize;
+			double z = rand.nextDouble()*ShipSize;
+			double dx = rand.nextDouble()*4;
+			double dz = rand.nextDouble()*4;
+			RotatedBB box = new RotatedBB(
+				AxisAlignedBB.getBoundingBox( x - dx, 0.1, z - dz, x + dx, 0.9, z + dz ),
+				rand.nextFloat()*360,
+				x, z
+			);
+			
+			// find the expected cells the hard way
+			double[] cornerX = new double[4];
+			double[] cornerZ = new double[4];
+			getCorners( cornerX, cornerZ, box );
+			BlockSet expectedCells = new BlockSet();
+			BlockSet expectedBlocks = new BlockSet();
+			for( int cx=-ShipSize; cx<2*ShipSize; cx++ )
+			{
+				for( int cz=-ShipSize; cz<2*ShipSize; cz++ )
+				{
+					if( cellIntersectsQuad( cx, cz, cornerX, cornerZ ) )
+					{
+						Coords coords = new Coords( cx, 0, cz );
+						expectedCells.add( coords );
+						if( blocks.contains( coords ) )
+						{
+							expectedBlocks.add( coords );
+						}
+					}
+				}
+			}
+			
+			assertEquals( expectedCells, geometry.xzCellQuery( 0, box ) );
+			assertEquals( expectedBlocks, geometry.xzRangeQuery( 0, box ) );
+			assertEquals( expectedBlocks, geometry.rangeQuery( box ) );
+		}
+	}
+	
+	@Test
+	public void lineSegmentQueryMatchesBruteForce( )
+	{
+		Random rand = new Random( 12345 );
+		
+		// make a random ship
+		BlockSet blocks = new BlockSet();
+		for( int x=0; x<ShipSize; x++ )
+		{
+			for( int y=0; y<ShipSize; y++ )
+			{
+				for( int z=0; z<ShipSize; z++ )
+				{
+					if( rand.nextDouble() < 0.3 )
+					{
+						blocks.add( new Coords( x, y, z ) );
+					}
+				}
+			}
+		}
+		ShipGeometry geometry = new ShipGeometry( blocks );
+		ShipOccupancy.RayCursor cursor = new ShipOccupancy.RayCursor();
+		
+		for( int i=0; i<NumQueries; i++ )
+		{
+			// make a random line segment that starts and ends near the ship
+			Vec3 from = getRandomPoint( rand );
+			Vec3 to = getRandomPoint( rand );
+			
+			// find the expected blocks the hard way
+			BlockSet expectedBlocks = new BlockSet();
+			for( Coords coords : blocks )
+			{
+				if( getEntryT( coords, from, to ) >= 0 )
+				{
+					expectedBlocks.add( coords );
+				}
+			}
+			
+			// the cursor should visit the same blocks, in order along the segment
+			BlockSet observedBlocks = new BlockSet();
+			double lastT = 0;
+			geometry.lineSegmentQuery( cursor, from, to );
+			while( cursor.next() )
+			{
+				Coords coords = new Coords( cursor.x, cursor.y, cursor.z );
+				observedBlocks.add( coords );
+				assertEquals( getEntryT( coords, from, to ), cursor.t, 1e-9 );
+				assertTrue( cursor.t >= lastT );
+				lastT = cursor.t;
+			}
+			assertEquals( expectedBlocks, observedBlocks );
+		}
+	}
+	
+	private Vec3 getRandomPoint( Random rand )
+	{
+		return Vec3.createVectorHelper(
+			rand.nextDouble()*ShipSize*2 - ShipSize/2,
+			rand.nextDouble()*ShipSize*2 - ShipSize/2,
+			rand.nextDouble()*ShipSize*2 - ShipSize/2
+		);
+	}
+	
+	private double getEntryT( Coords coords, Vec3 from, Vec3 to )
+	{
+		// clip the segment against the block's box, return -1 if it misses
+		double[] range = { 0, 1 };
+		if( clip( range, from.xCoord, to.xCoord - from.xCoord, coords.x )
+			&& clip( range, from.yCoord, to.yCoord - from.yCoord, coords.y )
+			&& clip( range, from.zCoord, to.zCoord - from.zCoord, coords.z ) )
+		{
+			return range[0];
+		}
+		return -1;
+	}
+	
+	private boolean clip( double[] range, double from, double delta, int min )
+	{
+		double t1 = ( min - from )/delta;
+		double t2 = ( min + 1 - from )/delta;
+		range[0] = Math.max( range[0], Math.min( t1, t2 ) );
+		range[1] = Math.min( range[1], Math.max( t1, t2 ) );
+		return range[0] < range[1];
+	}
+	
+	private void getCorners( double[] cornerX, double[] cornerZ, RotatedBB box )
+	{
+		Vec3 p = Vec3.createVectorHelper( 0, 0, 0 );
+		int i = 0;
+		for( BoxCorner corner : BlockSide.Top.getCorners() )
+		{
+			box.getCorner( p, corner );
+			cornerX[i] = p.xCoord;
+			cornerZ[i] = p.zCoord;
+			i++;
+		}
+	}
+	
+	private boolean cellIntersectsQuad( int x, int z, double[] cornerX, double[] cornerZ )
+	{
+		// use the separating axis test. Try the cell axes and every direction between corners
+		// NOTE: extra axes can't cause false separations
+		double[] cellX = { x, x + 1, x + 1, x };
+		double[] cellZ = { z, z, z + 1, z + 1 };
+		if( isSeparated( 1, 0, cellX, cellZ, cornerX, cornerZ ) || isSeparated( 0, 1, cellX, cellZ, cornerX, cornerZ ) )
+		{
+			return false;
+		}
+		for( int i=0; i<4; i++ )
+		{
+			for( int j=i+1; j<4; j++ )
+			{
+				if( isSeparated( cornerX[j] - cornerX[i], cornerZ[j] - cornerZ[i], cellX, cellZ, cornerX, cornerZ ) )
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private boolean isSeparated( double axisX, double axisZ, double[] aX, double[] aZ, double[] bX, double[] bZ )
+	{
+		double aMin = Double.POSITIVE_INFINITY;
+		double aMax = Double.NEGATIVE_INFINITY;
+		double bMin = Double.POSITIVE_INFINITY;
+		double bMax = Double.NEGATIVE_INFINITY;
+		for( int i=0; i<4; i++ )
+		{
+			double a = aX[i]*axisX + aZ[i]*axisZ;
+			aMin = Math.min( aMin, a );
+			aMax = Math.max( aMax, a );
+			double b = bX[i]*axisX + bZ[i]*axisZ;
+			bMin = Math.min( bMin, b );
+			bMax = Math.max( bMax, b );
+		}
+		return aMax < bMin || bMax < aMin;
+	}
+}
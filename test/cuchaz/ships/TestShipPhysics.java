@@ -0,0 +1,464 @@
+/*******************************************************************************
+ * Copyright (c) 2014 jeff.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     jeff - initial API and implementation
+ ******************************************************************************/
+package cuchaz.ships;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import net.minecraft.block.Block;
+import net.minecraft.util.MathHelper;
+import net.minecraft.util.Vec3;
+
+import org.junit.Test;
+
+import cuchaz.modsShared.blocks.BlockSet;
+import cuchaz.modsShared.blocks.BlockSide;
+import cuchaz.modsShared.blocks.BoundingBoxInt;
+import cuchaz.modsShared.blocks.Coords;
+import cuchaz.ships.config.BlockProperties;
+
+public class TestShipPhysics
+{
+	private static final int NumEdits = 200;
+	
+	// NOTE: these are the ships from TestShipDisplacement
+	
+	private static final int SingleBlockLayers = 3;
+	private static final String[] SingleBlock = {
+		" . ",
+		"...",
+		" . ",
+		
+		"...",
+		".x.",
+		"...",
+		
+		" . ",
+		"...",
+		" . "
+	};
+	
+	private static final int SingleBlockHoleLayers = 5;
+	private static final String[] SingleBlockHole = {
+		" ... ",
+		".....",
+		".....",
+		".....",
+		" ... ",
+		
+		".....",
+		".xxx.",
+		".xxx.",
+		".xxx.",
+		".....",
+		
+		".....",
+		".xxx.",
+		".x-x.",
+		".xxx.",
+		".....",
+		
+		".....",
+		".xxx.",
+		".xxx.",
+		".xxx.",
+		".....",
+		
+		" ... ",
+		".....",
+		".....",
+		".....",
+		" ... "
+	};
+	
+	private static final int ThreeByThreeByThreeHoleLayers = 7;
+	private static final String[] ThreeByThreeByThreeHole = {
+		" ..... ",
+		".......",
+		".......",
+		".......",
+		".......",
+		".......",
+		" ..... ",
+		
+		".......",
+		".xxxxx.",
+		".xxxxx.",
+		".xxxxx.",
+		".xxxxx.",
+		".xxxxx.",
+		".......",
+		
+		".......",
+		".xxxxx.",
+		".x---x.",
+		".x---x.",
+		".x---x.",
+		".xxxxx.",
+		".......",
+		
+		".......",
+		".xxxxx.",
+		".x---x.",
+		".x---x.",
+		".x---x.",
+		".xxxxx.",
+		".......",
+		
+		".......",
+		".xxxxx.",
+		".x---x.",
+		".x---x.",
+		".x---x.",
+		".xxxxx.",
+		".......",
+		
+		".......",
+		".xxxxx.",
+		".xxxxx.",
+		".xxxxx.",
+		".xxxxx.",
+		".xxxxx.",
+		".......",
+		
+		" ..... ",
+		".......",
+		".......",
+		".......",
+		".......",
+		".......",
+		" ..... "
+	};
+	
+	private static final int SingleBlockHullLayers = 5;
+	private static final String[] SingleBlockHull = {
+		" ... ",
+		".....",
+		".....",
+		".....",
+		" ... ",
+		
+		".....",
+		".xxx.",
+		".xxx.",
+		".xxx.",
+		".....",
+		
+		".....",
+		".xxx.",
+		".x.x.",
+		".xxx.",
+		".....",
+		
+		" ... ",
+		".....",
+		".....",
+		".....",
+		" ... "
+	};
+	
+	private static final int TwoLevelHullLayers = 6;
+	private static final String[] TwoLevelHull = {
+		" ..... ",
+		".......",
+		".......",
+		".......",
+		".......",
+		" ..... ",
+		
+		".......",
+		".xxxxx.",
+		".xxxxx.",
+		".xxxxx.",
+		".xxxxx.",
+		".......",
+		
+		".......",
+		".xxxxx.",
+		".x..xx.",
+		".x..xx.",
+		".xxxxx.",
+		".......",
+		
+		".......",
+		".xxxxx.",
+		".x...x.",
+		".x...x.",
+		".xxxxx.",
+		".......",
+		
+		" ..... ",
+		".......",
+		".......",
+		".......",
+		".......",
+		" ..... "
+	};
+	
+	private static final int SingleBlockHullEdgeNeighborsLayers = 5;
+	private static final String[] SingleBlockHullEdgeNeighbors = {
+		"     ",
+		"  .  ",
+		" ... ",
+		"  .  ",
+		"     ",
+		
+		"  .  ",
+		" ... ",
+		"..x..",
+		" ... ",
+		"  .  ",
+		
+		" ... ",
+		"..x..",
+		".x.x.",
+		"..x..",
+		" ... ",
+		
+		"  .  ",
+		" ... ",
+		".....",
+		" ... ",
+		"  .  "
+	};
+	
+	@Test
+	public void displacedWaterMass( )
+	throws Exception
+	{
+		new MinecraftRunner( )
+		{
+			@Override
+			public void onRun( )
+			throws Exception
+			{
+				checkDisplacedWaterMass( new BlockSet( SingleBlockLayers, 'x', SingleBlock ) );
+				checkDisplacedWaterMass( new BlockSet( SingleBlockHoleLayers, 'x', SingleBlockHole ) );
+				checkDisplacedWaterMass( new BlockSet( ThreeByThreeByThreeHoleLayers, 'x', ThreeByThreeByThreeHole ) );
+				checkDisplacedWaterMass( new BlockSet( SingleBlockHullLayers, 'x', SingleBlockHull ) );
+				checkDisplacedWaterMass( new BlockSet( TwoLevelHullLayers, 'x', TwoLevelHull ) );
+				checkDisplacedWaterMass( new BlockSet( SingleBlockHullEdgeNeighborsLayers, 'x', SingleBlockHullEdgeNeighbors ) );
+			}
+		}.run();
+	}
+	
+	@Test
+	public void incrementalEditsMatchRebuild( )
+	throws Exception
+	{
+		new MinecraftRunner( )
+		{
+			@Override
+			public void onRun( )
+			throws Exception
+			{
+				checkIncrementalEdits( new BlockSet( SingleBlockHullLayers, 'x', SingleBlockHull ) );
+				checkIncrementalEdits( new BlockSet( TwoLevelHullLayers, 'x', TwoLevelHull ) );
+				checkIncrementalEdits( new BlockSet( ThreeByThreeByThreeHoleLayers, 'x', ThreeByThreeByThreeHole ) );
+			}
+		}.run();
+	}
+	
+	@Test
+	public void editsInsideTrappedAirArePatched( )
+	throws Exception
+	{
+		new MinecraftRunner( )
+		{
+			@Override
+			public void onRun( )
+			throws Exception
+			{
+				// build an open hull, so the air inside is trapped
+				final int Size = 7;
+				final int Height = 4;
+				BlocksStorage storage = new BlocksStorage();
+				for( int x=0; x<Size; x++ )
+				{
+					for( int y=0; y<Height; y++ )
+					{
+						for( int z=0; z<Size; z++ )
+						{
+							if( y == 0 || x == 0 || z == 0 || x == Size - 1 || z == Size - 1 )
+							{
+								storage.setBlock( new Coords( x, y, z ), new BlockStorage( Block.planks.blockID, 0 ) );
+							}
+						}
+					}
+				}
+				ShipPhysics physics = new ShipPhysics( storage );
+				
+				// the crew builds stuff on the deck, then tears it down again
+				for( int i=0; i<2; i++ )
+				{
+					boolean isAdding = i == 0;
+					for( int x=2; x<Size - 2; x++ )
+					{
+						for( int z=2; z<Size - 2; z += 2 )
+						{
+							Coords coords = new Coords( x, 1, z );
+							boolean isPatched;
+							if( isAdding )
+							{
+								isPatched = storage.addBlock( coords, new BlockStorage( Block.planks.blockID, 0 ) );
+								physics.onBlockChanged( coords, null, false, Block.planks, true, isPatched );
+							}
+							else
+							{
+								isPatched = storage.removeBlock( coords );
+								physics.onBlockChanged( coords, Block.planks, true, null, false, isPatched );
+							}
+							assertTrue( isPatched );
+							
+							BlocksStorage expectedStorage = new BlocksStorage();
+							for( Coords blockCoords : storage.coords() )
+							{
+								expectedStorage.setBlock( blockCoords, new BlockStorage( Block.planks.blockID, 0 ) );
+							}
+							checkPhysics( new ShipPhysics( expectedStorage ), physics, expectedStorage.getDisplacement() );
+						}
+					}
+				}
+			}
+		}.run();
+	}
+	
+	private void checkIncrementalEdits( BlockSet blocks )
+	{
+		BlocksStorage storage = new BlocksStorage();
+		for( Coords coords : blocks )
+		{
+			storage.setBlock( coords, new BlockStorage( Block.planks.blockID, 0 ) );
+		}
+		ShipPhysics physics = new ShipPhysics( storage );
+		
+		Random rand = new Random( 12345 );
+		Block[] blockTypes = { Block.planks, Block.stone, Block.glass, Block.torchWood };
+		for( int i=0; i<NumEdits; i++ )
+		{
+			Coords coords = getRandomCoords( rand, storage );
+			if( storage.getNumBlocks() > 4 && storage.coords().contains( coords ) && rand.nextBoolean() )
+			{
+				// remove a block
+				Block oldBlock = Block.blocksList[storage.getBlock( coords ).id];
+				boolean isPatched = storage.removeBlock( coords );
+				physics.onBlockChanged( coords, oldBlock, true, null, false, isPatched );
+			}
+			else if( !storage.coords().contains( coords ) )
+			{
+				// add a block
+				Block newBlock = blockTypes[rand.nextInt( blockTypes.length )];
+				boolean isPatched = storage.addBlock( coords, new BlockStorage( newBlock.blockID, 0 ) );
+				physics.onBlockChanged( coords, null, false, newBlock, true, isPatched );
+			}
+			else
+			{
+				// change a block
+				BlockStorage block = storage.getBlock( coords );
+				Block oldBlock = Block.blocksList[block.id];
+				Block newBlock = blockTypes[rand.nextInt( blockTypes.length )];
+				block.id = newBlock.blockID;
+				boolean isPatched = storage.onBlockChanged( coords, oldBlock.blockID );
+				physics.onBlockChanged( coords, oldBlock, true, newBlock, true, isPatched );
+			}
+			
+			// the updated physics should match physics built from scratch
+			BlocksStorage expectedStorage = new BlocksStorage();
+			for( Coords blockCoords : storage.coords() )
+			{
+				BlockStorage block = storage.getBlock( blockCoords );
+				expectedStorage.setBlock( blockCoords, new BlockStorage( block.id, block.meta ) );
+			}
+			checkPhysics( new ShipPhysics( expectedStorage ), physics, expectedStorage.getDisplacement() );
+		}
+	}
+	
+	private Coords getRandomCoords( Random rand, BlocksStorage storage )
+	{
+		// pick somewhere in or just around the ship
+		BoundingBoxInt box = storage.getBoundingBox();
+		return new Coords(
+			box.minX - 1 + rand.nextInt( box.getDx() + 2 ),
+			box.minY - 1 + rand.nextInt( box.getDy() + 2 ),
+			box.minZ - 1 + rand.nextInt( box.getDz() + 2 )
+		);
+	}
+	
+	private void checkPhysics( ShipPhysics expected, ShipPhysics observed, ShipDisplacement displacement )
+	{
+		final double Epsilon = 1e-9;
+		assertEquals( expected.getMass(), observed.getMass(), Epsilon );
+		assertEquals( expected.getCenterOfMass().xCoord, observed.getCenterOfMass().xCoord, Epsilon );
+		assertEquals( expected.getCenterOfMass().yCoord, observed.getCenterOfMass().yCoord, Epsilon );
+		assertEquals( expected.getCenterOfMass().zCoord, observed.getCenterOfMass().zCoord, Epsilon );
+		if( expected.getEquilibriumWaterHeight() == null )
+		{
+			assertNull( observed.getEquilibriumWaterHeight() );
+		}
+		else
+		{
+			assertEquals( expected.getEquilibriumWaterHeight(), observed.getEquilibriumWaterHeight(), Epsilon );
+		}
+		assertEquals( expected.getSinkWaterHeight(), observed.getSinkWaterHeight() );
+		Vec3 velocity = Vec3.createVectorHelper( 0, 0, 0 );
+		for( double waterHeight=displacement.getMinY() - 1; waterHeight<=displacement.getMaxY() + 2; waterHeight+=0.125 )
+		{
+			assertEquals( expected.getDisplacedWaterMass( waterHeight ), observed.getDisplacedWaterMass( waterHeight ), Epsilon );
+			for( BlockSide side : BlockSide.xzSides() )
+			{
+				velocity.xCoord = side.getDx();
+				velocity.zCoord = side.getDz();
+				assertEquals( expected.getLinearAccelerationDueToDrag( velocity, waterHeight ), observed.getLinearAccelerationDueToDrag( velocity, waterHeight ), Epsilon );
+			}
+			assertEquals( expected.getAngularAccelerationDueToDrag( 1, waterHeight ), observed.getAngularAccelerationDueToDrag( 1, waterHeight ), Epsilon );
+		}
+	}
+	
+	private void checkDisplacedWaterMass( BlockSet blocks )
+	{
+		// build a ship out of a mix of blocks
+		BlocksStorage storage = new BlocksStorage();
+		for( Coords coords : blocks )
+		{
+			Block block = ( coords.x + coords.z )%2 == 0 ? Block.planks : Block.stone;
+			storage.setBlock( coords, new BlockStorage( block.blockID, 0 ) );
+		}
+		ShipPhysics physics = new ShipPhysics( storage );
+		
+		// check water heights from below the ship to above it
+		ShipDisplacement displacement = storage.getDisplacement();
+		for( double waterHeight=displacement.getMinY() - 1; waterHeight<=displacement.getMaxY() + 2; waterHeight+=0.125 )
+		{
+			assertEquals( getDisplacedWaterMass( storage, waterHeight ), physics.getDisplacedWaterMass( waterHeight ), 1e-9 );
+		}
+	}
+	
+	private double getDisplacedWaterMass( BlocksStorage storage, double waterHeight )
+	{
+		// this is how ShipPhysics used to compute it, by summing over the displacement blocks for every query
+		int surfaceLevel = MathHelper.floor_double( waterHeight );
+		double surfaceDisplacement = 0;
+		for( Coords coords : storage.getDisplacement().getSurfaceBlocks( surfaceLevel ) )
+		{
+			surfaceDisplacement += BlockProperties.getDisplacement( Block.blocksList[storage.getBlock( coords ).id] );
+		}
+		double underwaterDisplacement = 0;
+		for( Coords coords : storage.getDisplacement().getUnderwaterBlocks( surfaceLevel ) )
+		{
+			underwaterDisplacement += BlockProperties.getDisplacement( Block.blocksList[storage.getBlock( coords ).id] );
+		}
+		double surfaceFraction = BlockSide.North.getFractionSubmerged( surfaceLevel, waterHeight );
+		return ( underwaterDisplacement + surfaceDisplacement*surfaceFraction )*BlockProperties.getMass( Block.waterStill );
+	}
+}